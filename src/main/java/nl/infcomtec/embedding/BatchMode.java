@@ -0,0 +1,238 @@
+package nl.infcomtec.embedding;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import nl.infcomtec.ffmpeg.FfmpegProgress;
+import nl.infcomtec.jllama.Ollama;
+
+/**
+ * Runs a scan or Txt2Vid from the command line, without any Swing, for
+ * headless machines:
+ * <pre>
+ * java -cp Embedding.jar nl.infcomtec.embedding.BatchMode scan &lt;directory&gt; &lt;output directory&gt;
+ * java -cp Embedding.jar nl.infcomtec.embedding.BatchMode txt2vid &lt;text file, - for stdin&gt; &lt;output directory&gt;
+ * </pre> The same arguments given to {@link Embedding} also end up here, but
+ * that loads the Swing classes the GUI refers to. A scan streams to the output directory, as fragments arrive:
+ * "fragments.tsv" with the index, file, offset in the file and length of
+ * every fragment, "vectors.f32" with their vectors as little-endian float32
+ * rows, and unless "embedding.batch.tiles" is false a PNG per fragment in
+ * "tiles". After the scan the index is built, unless "embedding.batch.index"
+ * is false, and timed on its own. The session is saved as "scan.emb" with
+ * its index and manifest; a later scan into the same directory reuses what
+ * did not change. When fragments failed the manifest is left out, so the
+ * next scan starts over. Txt2Vid writes its movie, and with
+ * "embedding.pngFrames" its frames, to the output directory.
+ * <p>
+ * The host and model are those of the GUI unless given by the system
+ * properties "embedding.host" and "embedding.model"; "embedding.allHosts"
+ * spreads a scan over every host serving the model. The other "embedding.*"
+ * properties apply as in the GUI. A summary with fragments and bytes per
+ * second and the median and 99th percentile latency of the Ollama requests
+ * is printed at the end. The exit status is {@link #OK}, {@link #FAILED} if
+ * anything could not be embedded or written, or {@link #USAGE}.
+ *
+ * @author walter
+ */
+public class BatchMode {
+
+    /**
+     * Exit status when everything was done.
+     */
+    public static final int OK = 0;
+    /**
+     * Exit status when something could not be embedded or written.
+     */
+    public static final int FAILED = 1;
+    /**
+     * Exit status for a wrong command line or missing configuration.
+     */
+    public static final int USAGE = 2;
+    /**
+     * Name of the session file in the output directory.
+     */
+    public static final String SESSION = "scan.emb";
+
+    /**
+     * Run headless and exit with the status of {@link #run(String[])}.
+     *
+     * @param args Command line.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Ollama.init();
+        System.exit(run(args));
+    }
+
+    /**
+     * @param args Command line.
+     * @return Exit status.
+     */
+    public static int run(String[] args) {
+        if (args.length != 3 || !("scan".equals(args[0]) || "txt2vid".equals(args[0]))) {
+            System.err.println("Usage: scan <directory> <output directory>");
+            System.err.println("       txt2vid <text file, - for stdin> <output directory>");
+            return USAGE;
+        }
+        String host = System.getProperty("embedding.host", null == Ollama.config ? null : Ollama.config.getLastEndpoint());
+        String model = System.getProperty("embedding.model", null == Ollama.config ? null : Ollama.config.lastModel);
+        if (null == host || null == model) {
+            System.err.println("No host or model configured, set embedding.host and embedding.model");
+            return USAGE;
+        }
+        File out = new File(args[2]);
+        if (!out.isDirectory() && !out.mkdirs()) {
+            System.err.println("Cannot create " + out);
+            return FAILED;
+        }
+        try {
+            if ("scan".equals(args[0])) {
+                Path root = Paths.get(args[1]).toAbsolutePath().normalize();
+                if (!Files.isDirectory(root)) {
+                    System.err.println("Not a directory: " + root);
+                    return USAGE;
+                }
+                return scan(root, out, host, model);
+            }
+            return txt2vid(args[1], out, host, model);
+        } catch (Exception ex) {
+            Logger.getLogger(BatchMode.class.getName()).log(Level.SEVERE, null, ex);
+            return FAILED;
+        }
+    }
+
+    private static int scan(Path root, File out, String host, String model) throws Exception {
+        final ScanSession ss = new ScanSession(host, model, new VectorStore());
+        final VectorStore vs = ss.getStore();
+        ss.setStats(new CorpusStats(0.05, 0.5, 0.95));
+        ScanSession prev = null;
+        File session = new File(out, SESSION);
+        if (session.exists()) {
+            try {
+                prev = ScanSession.load(session);
+            } catch (IOException ex) {
+                System.err.println("Ignoring " + session + ": " + ex.getMessage());
+            }
+        }
+        boolean all = Boolean.getBoolean("embedding.allHosts");
+        final boolean tiles = Boolean.parseBoolean(System.getProperty("embedding.batch.tiles", "true"));
+        final File tileDir = new File(out, "tiles");
+        if (tiles && !tileDir.isDirectory() && !tileDir.mkdirs()) {
+            throw new IOException("Cannot create " + tileDir);
+        }
+        Latencies latencies = new Latencies();
+        DirectoryScan scan = new DirectoryScan(ss, root, EmbeddingCache.getShared(),
+                EmbeddingFanOut.hostsFor(host, model, all),
+                all ? Integer.getInteger("embedding.perHost", 2) : 1);
+        scan.setPrevious(prev);
+        scan.setLatencies(latencies);
+        final IOException[] error = new IOException[1];
+        try (final PrintWriter tsv = new PrintWriter(new File(out, "fragments.tsv"), StandardCharsets.UTF_8.name());
+                final OutputStream vectors = new BufferedOutputStream(new FileOutputStream(new File(out, "vectors.f32")), 1 << 16)) {
+            tsv.println("index\tfile\tstart\tlength");
+            scan.setListener(new DirectoryScan.Listener() {
+                private float[] vec;
+                private ByteBuffer row;
+
+                @Override
+                public void added(int index, boolean reused) {
+                    if (null != error[0]) {
+                        return;
+                    }
+                    try {
+                        vec = vs.get(index, vec);
+                        int file = vs.getFileIndex(index);
+                        tsv.printf("%d\t%s\t%d\t%d%n", index, vs.getFileName(file),
+                                vs.getStart(index) - vs.getFileStart(file), vs.getLength(index));
+                        if (null == row || row.capacity() != vec.length * 4) {
+                            row = ByteBuffer.allocate(vec.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                        }
+                        row.clear();
+                        row.asFloatBuffer().put(vec);
+                        vectors.write(row.array());
+                        if (tiles) {
+                            ImageIO.write(TileRenderer.toImage(vec), "png", new File(tileDir, String.format("%08d.png", index)));
+                        }
+                    } catch (IOException ex) {
+                        // stop writing, the scan itself goes on to report
+                        error[0] = ex;
+                    }
+                }
+
+                @Override
+                public void changed(int index) {
+                    // a batch scan fills a new store
+                }
+            });
+            scan.run();
+            if (tsv.checkError()) {
+                throw new IOException("Writing fragments.tsv failed");
+            }
+        }
+        if (null != error[0]) {
+            throw error[0];
+        }
+        String indexed = null;
+        if (Boolean.parseBoolean(System.getProperty("embedding.batch.index", "true"))) {
+            // built after the scan, so it neither slows the scan down nor hides in its time
+            HnswIndex index = new HnswIndex(vs);
+            long t0 = System.nanoTime();
+            index.update();
+            double s = Math.max(1, System.nanoTime() - t0) / 1e9;
+            ss.setIndex(index);
+            indexed = String.format("index: %d fragments in %.1f s: %.1f fragments/s", index.size(), s, index.size() / s);
+        }
+        if (scan.getFailed() > 0) {
+            // failed files must not look done to the next scan
+            ss.setManifest(null);
+        }
+        ss.save(session);
+        System.out.println(scan);
+        System.out.println(summary("scan", vs.size(), scan.getBytes(), scan.getNanos(), latencies));
+        if (null != indexed) {
+            System.out.println(indexed);
+        }
+        return 0 == scan.getFailed() ? OK : FAILED;
+    }
+
+    private static int txt2vid(String input, File out, String host, String model) throws Exception {
+        String text = "-".equals(input)
+                ? new String(System.in.readAllBytes(), StandardCharsets.UTF_8)
+                : new String(Files.readAllBytes(Paths.get(input)), StandardCharsets.UTF_8);
+        if (text.isEmpty()) {
+            System.err.println("No text");
+            return USAGE;
+        }
+        Latencies latencies = new Latencies();
+        CachedEmbeddings em = new CachedEmbeddings(EmbeddingCache.getShared(), host, model);
+        em.setLatencies(latencies);
+        FfmpegProgress progress = new FfmpegProgress(text.length());
+        long t0 = System.nanoTime();
+        File movie = new Txt2Vid(em, progress).make(text, out, null);
+        long nanos = System.nanoTime() - t0;
+        System.out.println("Txt2Vid: " + movie + ", " + progress);
+        System.out.println(summary("txt2vid", text.length(), text.getBytes(StandardCharsets.UTF_8).length, nanos, latencies));
+        return movie.isFile() ? OK : FAILED;
+    }
+
+    /**
+     * @return One line with the throughput and latencies.
+     */
+    private static String summary(String what, int fragments, long bytes, long nanos, Latencies latencies) {
+        double s = Math.max(1, nanos) / 1e9;
+        return String.format("%s: %d fragments, %d bytes in %.1f s: %.1f fragments/s, %.1f KB/s; %s",
+                what, fragments, bytes, s, fragments / s, bytes / s / 1024, latencies);
+    }
+}
@@ -0,0 +1,93 @@
+package nl.infcomtec.embedding;
+
+import nl.infcomtec.jllama.Embeddings;
+import nl.infcomtec.jllama.OllamaEmbeddings;
+
+/**
+ * Embedding client for one host and model that consults an
+ * {@link EmbeddingCache} before asking Ollama.
+ *
+ * @author walter
+ */
+public class CachedEmbeddings {
+
+    private final EmbeddingCache cache;
+    private final String host;
+    private final String model;
+    private final OllamaEmbeddings client;
+    private volatile Latencies latencies;
+
+    /**
+     * @param cache Cache to use, may be null.
+     * @param host Ollama endpoint.
+     * @param model Model name.
+     */
+    public CachedEmbeddings(EmbeddingCache cache, String host, String model) {
+        this.cache = cache;
+        this.host = host;
+        this.model = model;
+        this.client = new OllamaEmbeddings(host, model);
+    }
+
+    /**
+     * Get the embedding of some text, from the cache if possible.
+     *
+     * @param text The text.
+     * @return The embedding vector.
+     * @throws Exception If Ollama failed.
+     */
+    public float[] getVector(String text) throws Exception {
+        float[] ret = null == cache ? null : cache.get(host, model, text);
+        if (null == ret) {
+            ret = fetch(text);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the embedding of some text from Ollama and store it in the cache.
+     *
+     * @param text The text.
+     * @return The embedding vector.
+     * @throws Exception If Ollama failed.
+     */
+    public float[] fetch(String text) throws Exception {
+        long t0 = System.nanoTime();
+        Embeddings emb = client.getEmbeddings(text);
+        Latencies l = latencies;
+        if (null != l) {
+            l.add(System.nanoTime() - t0);
+        }
+        double[] d = emb.response.embedding;
+        float[] ret = new float[d.length];
+        for (int i = 0; i < d.length; i++) {
+            ret[i] = (float) d[i];
+        }
+        if (null != cache) {
+            cache.put(host, model, text, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @param latencies Receives the duration of every request to Ollama, or
+     * null.
+     */
+    public void setLatencies(Latencies latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the model
+     */
+    public String getModel() {
+        return model;
+    }
+}
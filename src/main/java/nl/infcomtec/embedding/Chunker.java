@@ -0,0 +1,152 @@
+package nl.infcomtec.embedding;
+
+/**
+ * Cuts the text of a file into the fragments that are embedded.
+ * <p>
+ * Three strategies are available: fixed windows with a stride, whole lines
+ * packed up to a maximum and, for Java sources, {@link JavaChunker} which
+ * follows the class, method and field structure. {@link #forFile(String)}
+ * picks one from the system properties.
+ *
+ * @author walter
+ */
+public interface Chunker {
+
+    /**
+     * Receives the chunks in text order.
+     */
+    interface Sink {
+
+        /**
+         * @param start Offset of the chunk in the text.
+         * @param length Length of the chunk, never 0.
+         */
+        void accept(int start, int length);
+    }
+
+    /**
+     * Cut a text into chunks.
+     *
+     * @param text The text.
+     * @param sink Receives the chunks.
+     */
+    void chunk(CharSequence text, Sink sink);
+
+    /**
+     * The chunker configured by the system properties "embedding.chunker"
+     * (auto, window, lines or java; default auto, which is java for ".java"
+     * files and lines otherwise), "embedding.chunk.max" (default 1024) and
+     * "embedding.chunk.stride" (window only, default half the maximum).
+     *
+     * @param file Name of the file to chunk.
+     * @return The chunker.
+     */
+    static Chunker forFile(String file) {
+        int max = Integer.getInteger("embedding.chunk.max", 1024);
+        switch (System.getProperty("embedding.chunker", "auto")) {
+            case "window":
+                return new Window(max, Integer.getInteger("embedding.chunk.stride", max / 2));
+            case "lines":
+                return new Lines(max);
+            case "java":
+                return new JavaChunker(max);
+            default:
+                return file.endsWith(".java") ? new JavaChunker(max) : new Lines(max);
+        }
+    }
+
+    /**
+     * Windows of a fixed size, each starting stride characters after the
+     * previous one; the last window ends at the end of the text.
+     */
+    class Window implements Chunker {
+
+        private final int size;
+        private final int stride;
+
+        /**
+         * @param size Characters per window.
+         * @param stride Characters between window starts, at most size to
+         * cover everything.
+         */
+        public Window(int size, int stride) {
+            this.size = Math.max(1, size);
+            this.stride = Math.max(1, stride);
+        }
+
+        @Override
+        public void chunk(CharSequence text, Sink sink) {
+            chunk(text, 0, text.length(), sink);
+        }
+
+        /**
+         * Cut a part of a text.
+         *
+         * @param text The text.
+         * @param from Start of the part.
+         * @param to End of the part.
+         * @param sink Receives the chunks.
+         */
+        public void chunk(CharSequence text, int from, int to, Sink sink) {
+            for (int ofs = from; ofs < to; ofs += stride) {
+                sink.accept(ofs, Math.min(size, to - ofs));
+                if (ofs + size >= to) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whole lines, as many as fit in the maximum; a longer line is cut into
+     * windows of the maximum.
+     */
+    class Lines implements Chunker {
+
+        private final int max;
+
+        /**
+         * @param max Maximum characters per chunk.
+         */
+        public Lines(int max) {
+            this.max = Math.max(1, max);
+        }
+
+        @Override
+        public void chunk(CharSequence text, Sink sink) {
+            chunk(text, 0, text.length(), sink);
+        }
+
+        /**
+         * Cut a part of a text.
+         *
+         * @param text The text.
+         * @param from Start of the part.
+         * @param to End of the part.
+         * @param sink Receives the chunks.
+         */
+        public void chunk(CharSequence text, int from, int to, Sink sink) {
+            int start = from;
+            int end = from;
+            while (end < to) {
+                int eol = end;
+                while (eol < to && text.charAt(eol) != '\n') {
+                    eol++;
+                }
+                eol = Math.min(to, eol + 1);
+                if (eol - start > max && end > start) {
+                    sink.accept(start, end - start);
+                    start = end;
+                }
+                if (eol - start > max) {
+                    new Window(max, max).chunk(text, start, eol, sink);
+                    start = eol;
+                }
+                end = eol;
+            }
+            if (end > start) {
+                sink.accept(start, end - start);
+            }
+        }
+    }
+}
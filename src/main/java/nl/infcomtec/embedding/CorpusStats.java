@@ -0,0 +1,340 @@
+package nl.infcomtec.embedding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Running per-dimension statistics over all vectors of a corpus.
+ * <p>
+ * Mean and variance are kept with Welford's method, together with minimum
+ * and maximum. Quantiles, if asked for, are estimated with the P-square
+ * algorithm, five markers per dimension and quantile. Memory depends only on
+ * the number of dimensions, not on the number of vectors. The dimensions are
+ * taken from the first vector.
+ * <p>
+ * A vector that is replaced, like that of an edited file, can be taken out
+ * again with {@link #remove(float[])}. Mean and variance are then exact, but
+ * minimum and maximum keep the values seen and the quantile markers only
+ * give up a position, so those stay estimates until the statistics are
+ * computed anew with {@link #of(VectorStore, double...)}.
+ *
+ * @author walter
+ */
+public class CorpusStats {
+
+    private final double[] probs;
+    private int dims;
+    private long count;
+    private double[] mean;
+    private double[] m2;
+    private float[] min;
+    private float[] max;
+    /**
+     * P-square marker heights, per dimension and quantile five.
+     */
+    private double[] height;
+    /**
+     * P-square marker positions, 1-based.
+     */
+    private long[] pos;
+
+    /**
+     * @param quantiles Quantiles to estimate, each in 0..1, may be empty.
+     */
+    public CorpusStats(double... quantiles) {
+        this.probs = quantiles.clone();
+    }
+
+    /**
+     * Statistics of all vectors in a store, but for the empty fragments.
+     *
+     * @param store The vectors.
+     * @param quantiles Quantiles to estimate.
+     * @return The statistics.
+     */
+    public static CorpusStats of(VectorStore store, double... quantiles) {
+        CorpusStats ret = new CorpusStats(quantiles);
+        float[] vec = null;
+        for (int i = 0, n = store.size(); i < n; i++) {
+            if (0 == store.getLength(i)) {
+                continue;
+            }
+            vec = store.get(i, vec);
+            ret.add(vec);
+        }
+        return ret;
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vec The vector, all must have the same length.
+     */
+    public synchronized void add(float[] vec) {
+        if (0 == count) {
+            dims = vec.length;
+            mean = new double[dims];
+            m2 = new double[dims];
+            min = new float[dims];
+            max = new float[dims];
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            height = new double[dims * probs.length * 5];
+            pos = new long[dims * probs.length * 5];
+        } else if (vec.length != dims) {
+            throw new IllegalArgumentException("Vector has " + vec.length + " dimensions, expected " + dims);
+        }
+        count++;
+        for (int d = 0; d < dims; d++) {
+            float x = vec[d];
+            double delta = x - mean[d];
+            mean[d] += delta / count;
+            m2[d] += delta * (x - mean[d]);
+            min[d] = Math.min(min[d], x);
+            max[d] = Math.max(max[d], x);
+            for (int q = 0; q < probs.length; q++) {
+                addQuantile((d * probs.length + q) * 5, probs[q], x);
+            }
+        }
+    }
+
+    /**
+     * Take out a vector added before, reversing Welford's update.
+     *
+     * @param vec The vector.
+     */
+    public synchronized void remove(float[] vec) {
+        if (0 == count) {
+            return;
+        }
+        if (vec.length != dims) {
+            throw new IllegalArgumentException("Vector has " + vec.length + " dimensions, expected " + dims);
+        }
+        if (1 == count) {
+            count = 0;
+            return;
+        }
+        count--;
+        for (int d = 0; d < dims; d++) {
+            float x = vec[d];
+            double delta = x - mean[d];
+            mean[d] -= delta / count;
+            m2[d] = Math.max(0, m2[d] - delta * (x - mean[d]));
+            for (int q = 0; q < probs.length; q++) {
+                removeQuantile((d * probs.length + q) * 5, x);
+            }
+        }
+    }
+
+    /**
+     * Move the markers above the value down one position, as far as they can
+     * stay apart.
+     */
+    private void removeQuantile(int o, double x) {
+        double[] h = height;
+        long[] n = pos;
+        if (count < 5) {
+            // back to the samples, of which the one closest to x goes
+            int drop = 0;
+            for (int i = 1; i <= (int) count; i++) {
+                if (Math.abs(h[o + i] - x) < Math.abs(h[o + drop] - x)) {
+                    drop = i;
+                }
+            }
+            for (int i = drop; i < (int) count; i++) {
+                h[o + i] = h[o + i + 1];
+            }
+            for (int i = 0; i < 5; i++) {
+                n[o + i] = i + 1;
+            }
+            return;
+        }
+        for (int i = 4; i > 0; i--) {
+            // the top marker is at the count
+            if ((4 == i || x <= h[o + i]) && n[o + i] - 1 > n[o + i - 1]) {
+                n[o + i]--;
+            }
+        }
+    }
+
+    private void addQuantile(int o, double p, double x) {
+        double[] h = height;
+        long[] n = pos;
+        if (count <= 5) {
+            // keep the first five sorted
+            int i = (int) count - 1;
+            for (; i > 0 && h[o + i - 1] > x; i--) {
+                h[o + i] = h[o + i - 1];
+            }
+            h[o + i] = x;
+            n[o + (int) count - 1] = count;
+            return;
+        }
+        int k;
+        if (x < h[o]) {
+            h[o] = x;
+            k = 0;
+        } else if (x >= h[o + 4]) {
+            h[o + 4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= h[o + k + 1]) {
+                k++;
+            }
+        }
+        for (int i = k + 1; i < 5; i++) {
+            n[o + i]++;
+        }
+        for (int i = 1; i < 4; i++) {
+            double want = 1 + (count - 1) * (1 == i ? p / 2 : 2 == i ? p : (1 + p) / 2);
+            double dn = want - n[o + i];
+            long below = n[o + i] - n[o + i - 1];
+            long above = n[o + i + 1] - n[o + i];
+            if ((dn >= 1 && above > 1) || (dn <= -1 && below > 1)) {
+                int s = dn > 0 ? 1 : -1;
+                double hp = h[o + i] + (double) s / (n[o + i + 1] - n[o + i - 1])
+                        * ((below + s) * (h[o + i + 1] - h[o + i]) / above
+                        + (above - s) * (h[o + i] - h[o + i - 1]) / below);
+                if (h[o + i - 1] < hp && hp < h[o + i + 1]) {
+                    h[o + i] = hp;
+                } else {
+                    h[o + i] += s * (h[o + i + s] - h[o + i]) / (n[o + i + s] - n[o + i]);
+                }
+                n[o + i] += s;
+            }
+        }
+    }
+
+    /**
+     * @return Number of vectors added.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Number of dimensions, 0 while empty.
+     */
+    public synchronized int getDims() {
+        return dims;
+    }
+
+    /**
+     * @param d Dimension.
+     * @return Mean.
+     */
+    public synchronized double getMean(int d) {
+        return mean[d];
+    }
+
+    /**
+     * @param d Dimension.
+     * @return Population standard deviation.
+     */
+    public synchronized double getStdDev(int d) {
+        return Math.sqrt(m2[d] / count);
+    }
+
+    /**
+     * @param d Dimension.
+     * @return Smallest value seen.
+     */
+    public synchronized float getMin(int d) {
+        return min[d];
+    }
+
+    /**
+     * @param d Dimension.
+     * @return Largest value seen.
+     */
+    public synchronized float getMax(int d) {
+        return max[d];
+    }
+
+    /**
+     * @param q Index of the quantile as passed to the constructor.
+     * @param d Dimension.
+     * @return Estimated quantile.
+     */
+    public synchronized double getQuantile(int q, int d) {
+        int o = (d * probs.length + q) * 5;
+        if (0 == count) {
+            return Double.NaN;
+        }
+        if (count <= 5) {
+            // the markers are still the samples, sorted
+            return height[o + (int) Math.min(count - 1, Math.round(probs[q] * (count - 1)))];
+        }
+        return height[o + 2];
+    }
+
+    /**
+     * Express a vector in standard deviations from the corpus mean.
+     *
+     * @param vec The vector.
+     * @param into Array to fill if it has the right length, may be null.
+     * @return The z-scores, into or a new array.
+     */
+    public synchronized float[] normalize(float[] vec, float[] into) {
+        float[] ret = null != into && into.length == vec.length ? into : new float[vec.length];
+        for (int d = 0; d < vec.length; d++) {
+            double sd = d < dims ? Math.sqrt(m2[d] / count) : 0;
+            ret[d] = sd > 0 ? (float) ((vec[d] - mean[d]) / sd) : 0;
+        }
+        return ret;
+    }
+
+    /**
+     * Draw one column per dimension: grey from minimum to maximum, the tile
+     * colour of the mean over mean plus or minus one standard deviation (or
+     * the outer quantiles if there are any) and a white mark at the mean.
+     *
+     * @param h Height of the image.
+     * @return The profile, dims wide.
+     */
+    public synchronized BufferedImage profile(int h) {
+        BufferedImage ret = new BufferedImage(Math.max(1, dims), h, BufferedImage.TYPE_INT_RGB);
+        if (0 == count) {
+            return ret;
+        }
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        double range = 0;
+        for (int d = 0; d < dims; d++) {
+            lo = Math.min(lo, min[d]);
+            hi = Math.max(hi, max[d]);
+            range = Math.max(range, Math.abs(mean[d]));
+        }
+        double scale = hi > lo ? (h - 1) / (hi - lo) : 0;
+        for (int d = 0; d < dims; d++) {
+            double sd = Math.sqrt(m2[d] / count);
+            // one standard deviation can reach past the extremes of a skewed dimension
+            double bLo = Math.max(min[d], probs.length > 1 ? getQuantile(0, d) : mean[d] - sd);
+            double bHi = Math.min(max[d], probs.length > 1 ? getQuantile(probs.length - 1, d) : mean[d] + sd);
+            int colour = TileRenderer.colour(range > 0 ? (float) (mean[d] / range) : 0);
+            fill(px, d, y(min[d], hi, scale), y(max[d], hi, scale), 0xFF404040);
+            fill(px, d, y(bLo, hi, scale), y(bHi, hi, scale), colour);
+            fill(px, d, y(mean[d], hi, scale), y(mean[d], hi, scale), 0xFFFFFFFF);
+        }
+        return ret;
+    }
+
+    private static int y(double v, double hi, double scale) {
+        return (int) Math.round((hi - v) * scale);
+    }
+
+    private void fill(int[] px, int x, int y0, int y1, int colour) {
+        int last = px.length / dims - 1;
+        for (int y = Math.max(0, Math.min(y0, y1)), to = Math.min(last, Math.max(y0, y1)); y <= to; y++) {
+            px[y * dims + x] = colour;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CorpusStats{%d vectors, %d dims, %d quantiles}", count, dims, probs.length);
+    }
+}
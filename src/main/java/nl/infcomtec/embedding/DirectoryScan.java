@@ -0,0 +1,589 @@
+package nl.infcomtec.embedding;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One scan of a directory tree into a {@link ScanSession}, without any user
+ * interface.
+ * <p>
+ * Files are found and read ahead by {@link FileDiscovery}, cut by the
+ * {@link Chunker} for their name and embedded through an
+ * {@link EmbeddingFanOut} with a few requests per worker in flight. Fragments
+ * are added to the store in file order. Given an earlier scan of the same
+ * root with the same model, its {@link Manifest} is used to skip unchanged
+ * files and to take over their fragments. The corpus statistics, index and
+ * projection of the session, those that are set, are updated as fragments
+ * arrive.
+ * <p>
+ * When the earlier scan is the session itself the scan updates it in place,
+ * as the watch mode does: unchanged files are left alone, the fragments of a
+ * changed file are replaced, extra ones are added at the end, and those no
+ * longer needed, like the fragments of deleted files, are left empty. Files
+ * the walk could not look at are kept as they were rather than taken for
+ * deleted. The store is compacted once more than half its text is old
+ * content. A file with a fragment that could not be embedded is marked dirty
+ * in the manifest, so the next scan tries it again. The watch mode sends its
+ * batches of changed paths through the same code with
+ * {@link #update(Set, FileDiscovery)}.
+ *
+ * @author walter
+ */
+public class DirectoryScan {
+
+    /**
+     * Told about every fragment added, on the scanning thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param index Index of the fragment in the store.
+         * @param reused Whether it was taken over from the earlier scan.
+         */
+        void added(int index, boolean reused);
+
+        /**
+         * Only when updating in place.
+         *
+         * @param index Index of a fragment that was replaced or left empty.
+         */
+        void changed(int index);
+    }
+
+    /**
+     * A fragment of a scanned file on its way to the store, or the end of a
+     * file.
+     */
+    private static class Fragment {
+
+        final int length;
+        final long start;
+        final Future<float[]> vector;
+        final boolean reused;
+        /**
+         * Fragment to replace, -1 to add one.
+         */
+        final int target;
+        /**
+         * Only for the end of a file.
+         */
+        final Manifest.Entry entry;
+
+        Fragment(int length, long start, Future<float[]> vector, boolean reused, int target) {
+            this.length = length;
+            this.start = start;
+            this.vector = vector;
+            this.reused = reused;
+            this.target = target;
+            this.entry = null;
+        }
+
+        Fragment(Manifest.Entry entry) {
+            this.length = 0;
+            this.start = 0;
+            this.vector = null;
+            this.reused = false;
+            this.target = -1;
+            this.entry = entry;
+        }
+    }
+
+    private final ScanSession ss;
+    private final VectorStore vs;
+    private final Path root;
+    private final EmbeddingCache cache;
+    private final List<String> hosts;
+    private final int perHost;
+    private Manifest manifest;
+    /**
+     * Fragments in file order.
+     */
+    private final ArrayDeque<Fragment> pending = new ArrayDeque<>();
+    private ScanSession prev;
+    private Manifest old;
+    private boolean inPlace;
+    /**
+     * Chars of text in the store no fragment uses any more.
+     */
+    private long garbage;
+    private float[] empty;
+    private Listener listener;
+    private Latencies latencies;
+    private volatile boolean cancelled;
+    /**
+     * Whether a fragment of the file being drained failed.
+     */
+    private boolean fileFailed;
+    private int files;
+    private int reused;
+    private int kept;
+    private int removed;
+    private int embedded;
+    private int failed;
+    private long bytes;
+    private long nanos;
+
+    /**
+     * @param ss Session to fill, with an empty store.
+     * @param root Top of the tree.
+     * @param cache Cache to use, may be null.
+     * @param hosts Ollama endpoints, all serving the model of the session.
+     * @param perHost Maximum number of requests in flight per host.
+     */
+    public DirectoryScan(ScanSession ss, Path root, EmbeddingCache cache, List<String> hosts, int perHost) {
+        this.ss = ss;
+        this.vs = ss.getStore();
+        this.root = root;
+        this.cache = cache;
+        this.hosts = hosts;
+        this.perHost = perHost;
+        this.manifest = new Manifest(root.toString());
+    }
+
+    /**
+     * Reuse what can be reused of an earlier scan; ignored unless it has a
+     * manifest of the same root and the same model.
+     *
+     * @param prev The earlier scan, or null; the session being scanned to
+     * update it in place.
+     */
+    public void setPrevious(ScanSession prev) {
+        boolean same = null != prev && null != prev.getManifest()
+                && prev.getManifest().getRoot().equals(root.toString())
+                && ss.getModel().equals(prev.getModel());
+        this.prev = same ? prev : null;
+        this.old = same ? prev.getManifest() : null;
+        this.inPlace = same && prev == ss;
+    }
+
+    /**
+     * @param listener Told about every fragment added, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param latencies Receives the duration of every request to Ollama, or
+     * null.
+     */
+    public void setLatencies(Latencies latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Stop the scan soon. The session gets no manifest, or when updating in
+     * place one with the files not reached yet as they were.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return Whether {@link #cancel()} was called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Run the scan on the calling thread.
+     *
+     * @throws IOException If an unchanged file could not be read after all.
+     * @throws InterruptedException If interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        FileDiscovery fd = new FileDiscovery(root);
+        try (EmbeddingFanOut em = new EmbeddingFanOut(cache, hosts, ss.getModel(), perHost); fd) {
+            em.setLatencies(latencies);
+            final int window = em.getParallelism() * 4;
+            // files are read ahead while the fragments are embedded
+            fd.setManifest(old);
+            fd.start();
+            for (FileDiscovery.SourceFile f = fd.take(); null != f && !cancelled; f = fd.take()) {
+                scanFile(em, f, window);
+            }
+            drain(0);
+            Logger.getLogger(DirectoryScan.class.getName()).log(Level.FINE, "{0}", fd);
+        }
+        if (inPlace) {
+            for (String path : old.getPaths()) {
+                if (null != manifest.get(path)) {
+                    continue;
+                }
+                if (cancelled || fd.missed(Paths.get(path))) {
+                    // not reached, or not seen by the walk; as it was
+                    manifest.put(old.get(path));
+                } else {
+                    // deleted, or no longer taken
+                    drop(old.get(path));
+                }
+            }
+        }
+        if (!cancelled || inPlace) {
+            settle();
+        }
+        nanos = System.nanoTime() - t0;
+    }
+
+    /**
+     * Update the session in place for some paths that changed, as the watch
+     * mode does: a file that can be read is scanned again, the files at or
+     * below a path that no longer exist are dropped and all other files stay
+     * as they were. Needs {@link #setPrevious(ScanSession)} with the session
+     * itself; the counts are those of the last update, and the text left
+     * behind is counted over all of them.
+     *
+     * @param paths Files or directories that changed.
+     * @param rules Decides which files are taken and reads them.
+     * @throws IOException If a file could not be read after all.
+     */
+    public void update(Set<Path> paths, FileDiscovery rules) throws IOException {
+        if (!inPlace) {
+            throw new IllegalStateException("No manifest of " + root + " to update");
+        }
+        long t0 = System.nanoTime();
+        old = ss.getManifest();
+        manifest = new Manifest(root.toString());
+        files = reused = kept = removed = embedded = failed = 0;
+        bytes = 0;
+        Set<String> gone = new HashSet<>();
+        try (EmbeddingFanOut em = new EmbeddingFanOut(cache, hosts, ss.getModel(), perHost)) {
+            em.setLatencies(latencies);
+            final int window = em.getParallelism() * 4;
+            for (Path p : paths) {
+                if (cancelled || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                if (Files.isDirectory(p) || !Files.exists(p)) {
+                    // a deleted file, or a directory with deleted files below it
+                    String dir = p.toString() + File.separator;
+                    for (String path : old.getPaths()) {
+                        if ((path.equals(p.toString()) || path.startsWith(dir)) && !Files.exists(Paths.get(path))) {
+                            gone.add(path);
+                        }
+                    }
+                } else {
+                    FileDiscovery.SourceFile f = rules.read(p);
+                    if (null == f) {
+                        // gone meanwhile, binary or too large now
+                        gone.add(p.toString());
+                    } else {
+                        scanFile(em, f, window);
+                    }
+                }
+            }
+            drain(0);
+        }
+        for (String path : old.getPaths()) {
+            if (null != manifest.get(path)) {
+                continue;
+            }
+            if (gone.contains(path)) {
+                drop(old.get(path));
+            } else {
+                manifest.put(old.get(path));
+            }
+        }
+        settle();
+        nanos = System.nanoTime() - t0;
+    }
+
+    /**
+     * Look at one file, embedding it again or reusing its fragments.
+     */
+    private void scanFile(EmbeddingFanOut em, FileDiscovery.SourceFile f, int window) throws IOException {
+        String path = f.path.toString();
+        files++;
+        bytes += f.size;
+        Manifest.Entry before = null == old ? null : old.get(path);
+        if (null != before) {
+            kept++;
+        }
+        if (null != before && before.file < 0 && !inPlace) {
+            before = null;
+        }
+        String content = f.text;
+        if (null == content && (null == before || before.isDirty())) {
+            content = new String(Files.readAllBytes(f.path), StandardCharsets.UTF_8);
+        }
+        long hash = null == content ? before.hash : Manifest.hash(content);
+        if (null != before && before.hash == hash && !before.isDirty()) {
+            if (inPlace) {
+                reused += before.fragments.length;
+            } else {
+                reuse(before, window);
+            }
+        } else {
+            embed(em, path, content, inPlace && null != before ? before : null, window);
+        }
+        // the file goes in the manifest once all its fragments are stored
+        pending.add(new Fragment(new Manifest.Entry(path, f.size, f.modified, hash)));
+    }
+
+    /**
+     * Leave the fragments of a file that is gone empty.
+     */
+    private void drop(Manifest.Entry gone) {
+        if (gone.file >= 0) {
+            garbage += vs.getFileLength(gone.file);
+        }
+        for (int i : gone.fragments) {
+            clear(i);
+        }
+        removed++;
+    }
+
+    /**
+     * Compact the store if it is mostly old text and give the session the
+     * new manifest.
+     */
+    private void settle() {
+        if (inPlace && garbage > vs.getTextSize() / 2) {
+            vs.compact();
+            garbage = 0;
+        }
+        manifest.index(vs);
+        ss.setManifest(manifest);
+    }
+
+    /**
+     * @param before When updating in place, the file as it was, or null.
+     */
+    private void embed(final EmbeddingFanOut em, String path, final String content, Manifest.Entry before, final int window) {
+        final long base = vs.addFile(path, content);
+        final int[] slots = null == before ? new int[0] : before.fragments;
+        if (null != before && before.file >= 0) {
+            garbage += vs.getFileLength(before.file);
+        }
+        final int[] n = new int[1];
+        Chunker.forFile(path).chunk(content, new Chunker.Sink() {
+            @Override
+            public void accept(int start, int length) {
+                String frag = content.substring(start, start + length);
+                int target = n[0] < slots.length ? slots[n[0]] : -1;
+                n[0]++;
+                pending.add(new Fragment(length, base + start, em.submit(frag), false, target));
+                embedded++;
+                drain(window);
+            }
+        });
+        for (int j = n[0]; j < slots.length; j++) {
+            clear(slots[j]);
+        }
+    }
+
+    /**
+     * Take over the text and fragments of an unchanged file from the earlier
+     * scan.
+     */
+    private void reuse(Manifest.Entry before, int window) {
+        VectorStore from = prev.getStore();
+        String content = from.getFileText(before.file);
+        long base = vs.addFile(before.path, content);
+        long oldBase = from.getFileStart(before.file);
+        for (int i : before.fragments) {
+            int ofs = (int) (from.getStart(i) - oldBase);
+            pending.add(new Fragment(from.getLength(i), base + ofs,
+                    CompletableFuture.completedFuture(from.get(i, null)), true, -1));
+            reused++;
+            drain(window);
+        }
+    }
+
+    /**
+     * Collect finished fragments in file order.
+     *
+     * @param keep Number of fragments that may stay in flight.
+     */
+    private void drain(int keep) {
+        while (pending.size() > keep) {
+            Fragment f = pending.removeFirst();
+            if (null != f.entry) {
+                Manifest.Entry e = f.entry;
+                manifest.put(fileFailed ? new Manifest.Entry(e.path, -1, e.modified, e.hash) : e);
+                fileFailed = false;
+                continue;
+            }
+            try {
+                float[] vec = f.vector.get();
+                if (null != ss.getStats()) {
+                    ss.getStats().add(vec);
+                }
+                if (f.target >= 0) {
+                    unstat(f.target);
+                    vs.set(f.target, vec, f.start, f.length);
+                    changed(f.target);
+                } else {
+                    int index = vs.add(vec, f.start, f.length);
+                    if (null != listener) {
+                        listener.added(index, f.reused);
+                    }
+                    if (null != ss.getIndex()) {
+                        ss.getIndex().updateLater();
+                    }
+                    if (null != ss.getProjection()) {
+                        ss.getProjection().updateLater();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                pending.addFirst(f);
+                abandon();
+                return;
+            } catch (Exception ex) {
+                failed++;
+                fileFailed = true;
+                if (f.target >= 0) {
+                    // its old text may be dropped, do not leave it behind
+                    clear(f.target);
+                }
+                Logger.getLogger(DirectoryScan.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Give up on the fragments in flight after an interrupt: those that were
+     * to replace a fragment leave it empty, as its old text may be dropped,
+     * and their files are dirty in the manifest.
+     */
+    private void abandon() {
+        for (Fragment f; null != (f = pending.pollFirst());) {
+            if (null != f.entry) {
+                Manifest.Entry e = f.entry;
+                manifest.put(new Manifest.Entry(e.path, -1, e.modified, e.hash));
+            } else if (f.target >= 0) {
+                clear(f.target);
+            }
+        }
+        fileFailed = false;
+    }
+
+    /**
+     * Leave a fragment empty, with a zero vector.
+     */
+    private void clear(int i) {
+        if (null == empty || empty.length != vs.getDims()) {
+            empty = new float[vs.getDims()];
+        }
+        unstat(i);
+        vs.set(i, empty, vs.getStart(i), 0);
+        changed(i);
+    }
+
+    /**
+     * Take the vector of a fragment about to be replaced out of the
+     * statistics; empty fragments were never in them.
+     */
+    private void unstat(int i) {
+        if (null != ss.getStats() && vs.getLength(i) > 0) {
+            ss.getStats().remove(vs.get(i, null));
+        }
+    }
+
+    private void changed(int i) {
+        if (null != ss.getIndex()) {
+            ss.getIndex().relink(i);
+        }
+        if (null != ss.getProjection()) {
+            ss.getProjection().reproject(i);
+        }
+        if (null != listener) {
+            listener.changed(i);
+        }
+    }
+
+    /**
+     * @return The manifest being built, complete after the scan.
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return Whether an earlier scan was used.
+     */
+    public boolean isIncremental() {
+        return null != old;
+    }
+
+    /**
+     * @return Number of files seen.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return Files of the earlier scan that are gone, 0 if none was used.
+     */
+    public int getDropped() {
+        return null == old ? 0 : old.size() - kept;
+    }
+
+    /**
+     * @return Files of the session dropped by the last
+     * {@link #update(Set, FileDiscovery)}, or by an in-place scan.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return Fragments sent to be embedded, cache hits included.
+     */
+    public int getEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * @return Fragments left out because embedding them failed; their files
+     * are dirty in the manifest, so the next scan embeds them again.
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Fragments taken over from the earlier scan.
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * @return Total size of the files seen, in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Duration of the scan in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Scanned %d files in %d ms: %d fragments embedded, %d reused%s%s",
+                getFiles(), nanos / 1000000, embedded, reused,
+                null == old ? "" : ", " + getDropped() + " files dropped",
+                0 == failed ? "" : ", " + failed + " failed");
+    }
+}
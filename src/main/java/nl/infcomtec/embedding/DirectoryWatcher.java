@@ -0,0 +1,280 @@
+package nl.infcomtec.embedding;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory tree for files that are created, modified or deleted,
+ * and reports them in batches.
+ * <p>
+ * Every directory the {@link FileDiscovery} rules would enter is registered
+ * with a {@link WatchService}, new directories as they appear. Events are
+ * collected per file until the tree has been quiet for a while, so the burst
+ * of events of one save, or of a checkout, ends up in one batch, and batches
+ * are at least a minimum interval apart. Only events for files that count
+ * keep the tree from being quiet, and a file keeps changing no longer than a
+ * maximum delay before its batch is reported anyway. The listener is called on the
+ * watcher thread, and events arriving meanwhile wait for the next batch. When
+ * the service loses events all files below the root, and the root itself,
+ * are reported.
+ *
+ * @author walter
+ */
+public class DirectoryWatcher implements AutoCloseable {
+
+    /**
+     * Receives the batches.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the watcher thread.
+         *
+         * @param paths Files that changed, in the order they were first seen.
+         * A path that no longer exists may have been a directory with
+         * everything below it; for a directory, files below it may have been
+         * deleted.
+         */
+        void changed(Set<Path> paths);
+    }
+
+    private final Path root;
+    private final FileDiscovery rules;
+    private final long quietMillis;
+    private final long intervalMillis;
+    private final long maxDelayMillis;
+    private final Listener listener;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final LinkedHashSet<Path> pending = new LinkedHashSet<>();
+    private WatchService service;
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Watcher configured by the system properties "embedding.watch.quietMs"
+     * (default 500), "embedding.watch.intervalMs" (default 2000) and
+     * "embedding.watch.maxDelayMs" (default 10000).
+     *
+     * @param root Top of the tree.
+     * @param rules Decides which files and directories count.
+     * @param listener Receives the batches.
+     */
+    public DirectoryWatcher(Path root, FileDiscovery rules, Listener listener) {
+        this(root, rules, Long.getLong("embedding.watch.quietMs", 500),
+                Long.getLong("embedding.watch.intervalMs", 2000),
+                Long.getLong("embedding.watch.maxDelayMs", 10000), listener);
+    }
+
+    /**
+     * @param root Top of the tree.
+     * @param rules Decides which files and directories count.
+     * @param quietMillis Time without events before a batch is reported.
+     * @param intervalMillis Minimum time between the starts of two batches.
+     * @param maxDelayMillis Maximum time from the first pending event to its
+     * batch while events keep coming; the minimum interval still applies.
+     * @param listener Receives the batches.
+     */
+    public DirectoryWatcher(Path root, FileDiscovery rules, long quietMillis, long intervalMillis,
+            long maxDelayMillis, Listener listener) {
+        this.root = root;
+        this.rules = rules;
+        this.quietMillis = Math.max(0, quietMillis);
+        this.intervalMillis = Math.max(0, intervalMillis);
+        this.maxDelayMillis = Math.max(this.quietMillis, maxDelayMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * Start the watcher thread, which registers the tree first.
+     *
+     * @throws IOException If no watch service is available.
+     */
+    public synchronized void start() throws IOException {
+        if (null != thread) {
+            return;
+        }
+        service = root.getFileSystem().newWatchService();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    register(root, null);
+                    loop();
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    // closed
+                } catch (IOException ex) {
+                    Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching; a batch being reported is finished first.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (null != service) {
+                try {
+                    service.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The top of the tree.
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Register a directory and those below it.
+     *
+     * @param dir The directory.
+     * @param found If not null, receives the files found in new directories.
+     */
+    private void register(Path dir, final Set<Path> found) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (!d.equals(root) && !rules.accepts(d, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                keys.put(d.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (null != found && (attrs.isRegularFile() || Files.isRegularFile(f)) && rules.accepts(f, false)) {
+                    found.add(f);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException ex) {
+                // deleted again before we got there
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void loop() throws InterruptedException {
+        long firstEvent = 0;
+        long lastEvent = 0;
+        long lastBatch = 0;
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            WatchKey key;
+            if (pending.isEmpty()) {
+                key = service.take();
+            } else {
+                long due = Math.max(Math.min(lastEvent + quietMillis, firstEvent + maxDelayMillis),
+                        lastBatch + intervalMillis);
+                key = due > now ? service.poll(due - now, TimeUnit.MILLISECONDS) : null;
+            }
+            if (null != key) {
+                boolean was = pending.isEmpty();
+                if (collect(key)) {
+                    lastEvent = System.currentTimeMillis();
+                    if (was) {
+                        firstEvent = lastEvent;
+                    }
+                }
+            } else if (!pending.isEmpty()) {
+                Set<Path> batch = new LinkedHashSet<>(pending);
+                pending.clear();
+                lastBatch = System.currentTimeMillis();
+                try {
+                    listener.changed(batch);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the events of a key to the pending files.
+     *
+     * @return Whether any of them was for a file that counts.
+     */
+    private boolean collect(WatchKey key) {
+        Path dir = keys.get(key);
+        boolean ret = false;
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (StandardWatchEventKinds.OVERFLOW == ev.kind()) {
+                rescan();
+                ret = true;
+                continue;
+            }
+            if (null == dir) {
+                continue;
+            }
+            Path p = dir.resolve((Path) ev.context());
+            if (StandardWatchEventKinds.ENTRY_DELETE == ev.kind()) {
+                // a directory cannot be told from a file anymore
+                pending.add(p);
+                ret = true;
+            } else if (Files.isDirectory(p)) {
+                if (StandardWatchEventKinds.ENTRY_CREATE == ev.kind() && rules.accepts(p, true)) {
+                    try {
+                        register(p, pending);
+                        ret = true;
+                    } catch (IOException ex) {
+                        Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            } else if (rules.accepts(p, false)) {
+                pending.add(p);
+                ret = true;
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+        return ret;
+    }
+
+    /**
+     * Events were lost, report everything.
+     */
+    private void rescan() {
+        for (WatchKey k : keys.keySet()) {
+            k.cancel();
+        }
+        keys.clear();
+        pending.add(root);
+        try {
+            register(root, pending);
+        } catch (IOException ex) {
+            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -1,15 +1,10 @@
 package nl.infcomtec.embedding;
 
 import java.awt.BorderLayout;
-import java.awt.Color;
+import java.awt.Component;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.EventQueue;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Point;
-import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
@@ -19,38 +14,41 @@ import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.LinkedList;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.Box;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
-import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
-import nl.infcomtec.ffmpeg.Ffmpeg;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import nl.infcomtec.ffmpeg.FfmpegProgress;
 import nl.infcomtec.jllama.AvailableModels;
 import nl.infcomtec.jllama.Embeddings;
 import nl.infcomtec.jllama.Ollama;
-import nl.infcomtec.jllama.OllamaEmbeddings;
 
 /**
  *
@@ -62,15 +60,38 @@ public class Embedding {
     private final JToolBar buttons;
     private final JComboBox<String> models;
     private final JComboBox<String> hosts;
-    private OllamaEmbeddings client;
-    private final JPanel center;
-    private final LinkedList<BufferedImage> embs = new LinkedList<>();
-    private final LinkedList<String> jTxt = new LinkedList<>();
-    private final LinkedList<Rectangle> clks = new LinkedList<>();
+    private final JCheckBox allHosts;
+    private final JCheckBox corpusColours;
+    private final JCheckBox watch;
+    private final JLabel status;
+    private final EmbeddingCache cache = EmbeddingCache.getShared();
+    private final TileGrid grid;
+    /**
+     * The current scan, only replaced on the EDT.
+     */
+    private ScanSession session = new ScanSession(null, null, new VectorStore());
+    private TileCache tiles = new TileCache(session.getStore(), 4096);
     private final JLabel lLabel;
     private final JScrollPane lPane;
     private final JLabel rLabel;
     private final JScrollPane rPane;
+    private final JList<SimilaritySearch.Hit> lHits;
+    private final JList<SimilaritySearch.Hit> rHits;
+    /**
+     * Fragment shown at each grid position and its inverse, null for file
+     * order; fragments added later are shown in file order after these.
+     */
+    private int[] order;
+    private int[] position;
+    /**
+     * Watches the directory of the current scan, only used on the EDT.
+     */
+    private DirectoryWatcher watcher;
+    /**
+     * Sessions a scan is still adding to or updating, only used on the EDT;
+     * they cannot be watched or scanned again until it is done.
+     */
+    private final Set<ScanSession> scanning = new HashSet<>();
     public static final File volatileWorkDir = new File("/tmp/embed");
 
     public Embedding() {
@@ -78,73 +99,59 @@ public class Embedding {
         buttons = new JToolBar();
         models = new JComboBox<>();
         hosts = new JComboBox<>();
+        allHosts = new JCheckBox("All hosts");
+        allHosts.setToolTipText("Spread the scan over all hosts serving the selected model");
+        corpusColours = new JCheckBox("Corpus colours");
+        corpusColours.setToolTipText("Colour tiles by standard deviations from the corpus mean per dimension");
+        corpusColours.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setSession(session);
+            }
+        });
+        watch = new JCheckBox("Watch");
+        watch.setToolTipText("Re-embed the files of the scanned directory when they change");
+        watch.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (watch.isSelected()) {
+                    startWatch(session);
+                } else {
+                    stopWatch();
+                    status.setText("Stopped watching");
+                }
+            }
+        });
+        status = new JLabel();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         Container cont = frame.getContentPane();
         cont.setLayout(new BorderLayout());
         buttonBar();
         cont.add(buttons, BorderLayout.NORTH);
-        center = new JPanel() {
+        grid = new TileGrid(new TileGrid.Model() {
             @Override
-            public void paint(Graphics g) {
-                clks.clear();
-                int dw = getWidth();
-                int dh = getHeight();
-                g.setColor(Color.BLACK);
-                g.fillRect(0, 0, dw - 1, dh - 1);
-                int x = 0;
-                int y = 0;
-                for (BufferedImage bi : embs) {
-                    int iw = bi.getWidth();
-                    int ih = bi.getHeight();
-                    g.drawImage(bi, x, y, null);
-                    clks.add(new Rectangle(x, y, iw, ih));
-                    x += iw;
-                    if (x > dw - iw) {
-                        x = 0;
-                        y += ih;
-                        if (y > dh - ih) {
-                            break;
-                        }
-                    }
-                }
+            public int size() {
+                return session.getStore().size();
             }
-            private final Dimension DIM = new Dimension(3480, 1080);
 
             @Override
-            public Dimension getMinimumSize() {
-                return DIM;
+            public BufferedImage getTile(int index) {
+                return tiles.get(fragmentAt(index));
             }
-
-            @Override
-            public Dimension getMaximumSize() {
-                return DIM;
-            }
-
-            @Override
-            public Dimension getPreferredSize() {
-                return DIM;
-            }
-        };
-        center.addMouseListener(new MouseAdapter() {
+        });
+        grid.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                Point p = e.getPoint();
-                for (int i = 0; i < clks.size(); i++) {
-                    if (clks.get(i).contains(p)) {
-                        if (SwingUtilities.isLeftMouseButton(e)) {
-                            lLabel.setIcon(new ImageIcon(embs.get(i).getScaledInstance(320, 320, BufferedImage.SCALE_DEFAULT)));
-                            lPane.setViewportView(new JTextArea(jTxt.get(i)));
-                        } else {
-                            rLabel.setIcon(new ImageIcon(embs.get(i).getScaledInstance(320, 320, BufferedImage.SCALE_DEFAULT)));
-                            rPane.setViewportView(new JTextArea(jTxt.get(i)));
-                        }
-                        frame.repaint();
-                        break;
-                    }
+                int i = grid.indexAt(e.getPoint());
+                if (i >= 0) {
+                    showFragment(fragmentAt(i), SwingUtilities.isLeftMouseButton(e));
                 }
             }
         });
-        cont.add(center, BorderLayout.SOUTH);
+        JScrollPane gridPane = new JScrollPane(grid,
+                JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        gridPane.setPreferredSize(new Dimension(3480, 1080));
+        cont.add(gridPane, BorderLayout.SOUTH);
         Box hor = Box.createHorizontalBox();
         BufferedImage b = new BufferedImage(320, 320, BufferedImage.TYPE_BYTE_BINARY);
         ImageIcon bi = new ImageIcon(b);
@@ -153,6 +160,8 @@ public class Embedding {
             ver.add(new JLabel("Left-click"));
             ver.add(lLabel = new JLabel(bi));
             ver.add(lPane = new JScrollPane());
+            ver.add(new JLabel("Most similar"));
+            ver.add(new JScrollPane(lHits = hitList(true)));
             hor.add(ver);
         }
         {
@@ -160,6 +169,8 @@ public class Embedding {
             ver.add(new JLabel("Right-click"));
             ver.add(rLabel = new JLabel(bi));
             ver.add(rPane = new JScrollPane());
+            ver.add(new JLabel("Most similar"));
+            ver.add(new JScrollPane(rHits = hitList(false)));
             hor.add(ver);
         }
         cont.add(hor, BorderLayout.CENTER);
@@ -225,29 +236,162 @@ public class Embedding {
         buttons.add(new JToolBar.Separator());
         buttons.add(new JLabel("Models:"));
         buttons.add(models);
+        buttons.add(allHosts);
         buttons.add(new JButton(new JavaScanner("Scan Java")));
+        buttons.add(watch);
+        buttons.add(corpusColours);
+        buttons.add(new JButton(new AbstractAction("Profile") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                CorpusStats stats = session.getStats();
+                if (null != stats && stats.getCount() > 0) {
+                    JFrame pf = new JFrame("Dimension profile, " + stats);
+                    pf.getContentPane().add(new JScrollPane(new JLabel(new ImageIcon(stats.profile(256)))));
+                    pf.setSize(1200, 340);
+                    pf.setVisible(true);
+                }
+            }
+        }));
+        buttons.add(new JButton(new AbstractAction("Heatmap") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showHeatmap();
+            }
+        }));
+        buttons.add(new JButton(new AbstractAction("Map") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showMap();
+            }
+        }));
+        buttons.add(new JButton(new AbstractAction("Cluster") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String k = JOptionPane.showInputDialog(frame, "Number of clusters, 0 for file order", "16");
+                if (null != k) {
+                    try {
+                        cluster(Integer.parseInt(k.trim()));
+                    } catch (NumberFormatException ex) {
+                        status.setText("Not a number: " + k);
+                    }
+                }
+            }
+        }));
+        buttons.add(new JButton(new AbstractAction("Save scan") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser jfc = new JFileChooser();
+                if (JFileChooser.APPROVE_OPTION == jfc.showSaveDialog(frame)) {
+                    final ScanSession s = session;
+                    final File f = jfc.getSelectedFile();
+                    final JButton button = (JButton) e.getSource();
+                    button.setEnabled(false);
+                    status.setText("Saving " + s);
+                    new SwingWorker<Void, Void>() {
+                        @Override
+                        protected Void doInBackground() throws Exception {
+                            s.save(f);
+                            return null;
+                        }
+
+                        @Override
+                        protected void done() {
+                            button.setEnabled(true);
+                            try {
+                                get();
+                                status.setText("Saved " + s);
+                            } catch (InterruptedException | ExecutionException ex) {
+                                Throwable t = null == ex.getCause() ? ex : ex.getCause();
+                                Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, t);
+                                JOptionPane.showMessageDialog(frame, "Saving failed: " + t.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            }
+        }));
+        buttons.add(new JButton(new AbstractAction("Load scan") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser jfc = new JFileChooser();
+                if (JFileChooser.APPROVE_OPTION == jfc.showOpenDialog(frame)) {
+                    final File f = jfc.getSelectedFile();
+                    final JButton button = (JButton) e.getSource();
+                    button.setEnabled(false);
+                    status.setText("Loading " + f);
+                    new SwingWorker<ScanSession, Void>() {
+                        @Override
+                        protected ScanSession doInBackground() throws Exception {
+                            ScanSession s = ScanSession.load(f);
+                            if (null == s.getIndex()) {
+                                s.setIndex(new HnswIndex(s.getStore()));
+                            }
+                            s.getIndex().updateLater();
+                            s.setProjection(new Projection(s.getStore()));
+                            s.getProjection().updateLater();
+                            return s;
+                        }
+
+                        @Override
+                        protected void done() {
+                            button.setEnabled(true);
+                            try {
+                                ScanSession s = get();
+                                setSession(s);
+                                computeStats(s);
+                                status.setText("Loaded " + s);
+                                if (watch.isSelected()) {
+                                    startWatch(s);
+                                }
+                            } catch (InterruptedException | ExecutionException ex) {
+                                Throwable t = null == ex.getCause() ? ex : ex.getCause();
+                                Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, t);
+                                status.setText("Loading " + f + " failed");
+                                JOptionPane.showMessageDialog(frame, "Loading failed: " + t.getMessage());
+                            }
+                        }
+                    }.execute();
+                }
+            }
+        }));
         buttons.add(new JButton(new AbstractAction("Txt2Vid") {
             @Override
             public void actionPerformed(ActionEvent e) {
                 final String input = JOptionPane.showInputDialog(frame, "Enter some text and press the button.");
                 if (null != input && !input.isEmpty()) {
 
-                    final OllamaEmbeddings em = new OllamaEmbeddings(
+                    final CachedEmbeddings em = new CachedEmbeddings(cache,
                             hosts.getSelectedItem().toString(),
                             models.getSelectedItem().toString());
-                    SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+                    SwingWorker<Void, String> worker = new SwingWorker<Void, String>() {
+                        private final FfmpegProgress progress = new FfmpegProgress(input.length());
+                        private volatile int embedded;
+
                         @Override
-                        protected void process(List<Void> chunks) {
-                            JOptionPane.showMessageDialog(frame, "The video is being generated.");
+                        protected void process(List<String> chunks) {
+                            status.setText(chunks.get(chunks.size() - 1));
                         }
 
                         @Override
                         protected void done() {
+                            try {
+                                get();
+                            } catch (Exception ex) {
+                                Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                                status.setText("Txt2Vid failed: " + ex.getMessage());
+                                return;
+                            }
+                            status.setText("Txt2Vid: " + progress);
                             JOptionPane.showMessageDialog(frame, "The video is done."
                                     + "\nYou will find it in:"
                                     + "\n" + Embedding.volatileWorkDir);
                         }
 
+                        private void report() {
+                            publish(String.format("Txt2Vid: %d/%d embedded, encoder %s",
+                                    embedded, input.length(), progress));
+                        }
+
                         @Override
                         protected Void doInBackground() throws Exception {
                             if (volatileWorkDir.exists()) {
@@ -257,35 +401,14 @@ public class Embedding {
                                 JOptionPane.showMessageDialog(frame, "Failed to create " + volatileWorkDir);
                                 return null;
                             }
-                            StringBuilder chars = new StringBuilder();
-                            int fNum = 0;
-                            for (char ch : input.toCharArray()) {
-                                chars.append(ch);
-                                Embeddings emb = em.getEmbeddings(chars.toString());
-                                Image img = toImage(emb).getScaledInstance(640, 360, BufferedImage.SCALE_DEFAULT);
-                                BufferedImage out = new BufferedImage(640, 360, BufferedImage.TYPE_INT_RGB);
-                                Graphics2D gr = out.createGraphics();
-                                gr.drawImage(img, 0, 0, null);
-                                gr.dispose();
-                                File frame = new File(volatileWorkDir, String.format("frm%04d.png", fNum++));
-                                ImageIO.write(out, "png", frame);
-                                if (1 == fNum) {
-                                    process(null);
-                                }
-                                while (chars.length() > 256) {
-                                    chars.deleteCharAt(0);
+                            progress.setListener(p -> report());
+                            new Txt2Vid(em, progress).make(input, volatileWorkDir, new Txt2Vid.Listener() {
+                                @Override
+                                public void embedded(int frames) {
+                                    embedded = frames;
+                                    report();
                                 }
-                            }
-                            File movie = new File(volatileWorkDir, "LLM_the_Movie.mp4");
-                            // try for 10 second movie
-                            int rate = fNum / 10;
-                            if (rate <= 0) {
-                                rate = 1;
-                            }
-                            if (rate > 24) {
-                                rate = 24;
-                            }
-                            Ffmpeg.imgToMP4(volatileWorkDir, rate, "/tmp/embed/frm*.png", movie);
+                            });
                             return null;
                         }
                     };
@@ -293,48 +416,346 @@ public class Embedding {
                 }
             }
         }));
+        buttons.add(new JToolBar.Separator());
+        buttons.add(status);
     }
 
-    public static BufferedImage toImage(Embeddings em) {
-        int w = (int) Math.round(Math.sqrt(em.response.embedding.length));
-        int h = em.response.embedding.length / w;
-        if (w * h < em.response.embedding.length) {
-            h++;
+    /**
+     * Show a fragment in one of the click panels and look for the fragments
+     * most similar to it.
+     *
+     * @param i Fragment index.
+     * @param left Left or right panel.
+     */
+    private void showFragment(final int i, boolean left) {
+        final ScanSession ss = session;
+        (left ? lLabel : rLabel).setIcon(new ImageIcon(tiles.get(i).getScaledInstance(320, 320, BufferedImage.SCALE_DEFAULT)));
+        (left ? lPane : rPane).setViewportView(new JTextArea(ss.getStore().getText(i)));
+        final DefaultListModel<SimilaritySearch.Hit> hits = (DefaultListModel<SimilaritySearch.Hit>) (left ? lHits : rHits).getModel();
+        hits.clear();
+        frame.repaint();
+        new SwingWorker<List<SimilaritySearch.Hit>, Void>() {
+            private long nanos;
+
+            private HnswIndex index;
+
+            @Override
+            protected List<SimilaritySearch.Hit> doInBackground() throws Exception {
+                long t0 = System.nanoTime();
+                // exact search is fast enough for small scans
+                if (ss.getStore().size() > Integer.getInteger("embedding.exactLimit", 100000)) {
+                    index = ss.getIndex();
+                }
+                List<SimilaritySearch.Hit> ret = null == index
+                        ? new SimilaritySearch(ss.getStore()).similarTo(i, 20)
+                        : index.similarTo(i, 20);
+                nanos = System.nanoTime() - t0;
+                return ret;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    if (ss == session) {
+                        for (SimilaritySearch.Hit h : get()) {
+                            hits.addElement(h);
+                        }
+                        status.setText(String.format("Searched %d fragments in %d ms (%s)",
+                                ss.getStore().size(), nanos / 1000000, null == index ? "exact" : index));
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * List of search results, selecting one shows it in the same panel.
+     *
+     * @param left Left or right panel.
+     * @return The list.
+     */
+    private JList<SimilaritySearch.Hit> hitList(final boolean left) {
+        final JList<SimilaritySearch.Hit> ret = new JList<>(new DefaultListModel<SimilaritySearch.Hit>());
+        ret.setVisibleRowCount(8);
+        ret.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                SimilaritySearch.Hit h = (SimilaritySearch.Hit) value;
+                String file = session.getStore().getFile(h.index);
+                String text = String.format("%.3f %s #%d", h.score,
+                        null == file ? "" : new File(file).getName(), h.index);
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        ret.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                SimilaritySearch.Hit h = ret.getSelectedValue();
+                if (!e.getValueIsAdjusting() && null != h) {
+                    grid.scrollRectToVisible(grid.getTileBounds(positionOf(h.index)));
+                    showFragment(h.index, left);
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Compute the pairwise similarity of the current scan and show it in a
+     * window; clicking the map shows the two fragments in the click panels.
+     */
+    private void showHeatmap() {
+        final ScanSession ss = session;
+        final int n = ss.getStore().size();
+        if (n == 0) {
+            return;
+        }
+        status.setText("Computing heatmap of " + n + " fragments");
+        new SwingWorker<BufferedImage, Void>() {
+            private long nanos;
+
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                long t0 = System.nanoTime();
+                BufferedImage ret = new SimilarityHeatmap(ss.getStore()).toImage(Integer.getInteger("embedding.heatmapSize", 4096));
+                nanos = System.nanoTime() - t0;
+                return ret;
+            }
+
+            @Override
+            protected void done() {
+                final BufferedImage map;
+                try {
+                    map = get();
+                } catch (Exception ex) {
+                    Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                    status.setText("Heatmap failed: " + ex.getMessage());
+                    return;
+                }
+                status.setText(String.format("Heatmap of %d fragments in %d ms", n, nanos / 1000000));
+                final JLabel label = new JLabel(new ImageIcon(map));
+                label.addMouseListener(new MouseAdapter() {
+                    @Override
+                    public void mouseClicked(MouseEvent e) {
+                        int size = map.getWidth();
+                        if (ss == session && e.getX() < size && e.getY() < size) {
+                            showFragment(SimilarityHeatmap.fragment(e.getY(), n, size), true);
+                            showFragment(SimilarityHeatmap.fragment(e.getX(), n, size), false);
+                        }
+                    }
+                });
+                JFrame hf = new JFrame("Similarity of " + n + " fragments");
+                hf.getContentPane().add(new JScrollPane(label));
+                hf.setSize(Math.min(map.getWidth() + 40, 1200), Math.min(map.getHeight() + 60, 1000));
+                hf.setVisible(true);
+            }
+        }.execute();
+    }
+
+    /**
+     * Show the fragments of the current scan as a scatter map that follows
+     * the scan; clicking a dot shows its fragment in the click panels.
+     */
+    private void showMap() {
+        final ScanSession ss = session;
+        if (null == ss.getProjection()) {
+            ss.setProjection(new Projection(ss.getStore()));
+            ss.getProjection().updateLater();
         }
-        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        double min = Double.POSITIVE_INFINITY;
-        double max = Double.NEGATIVE_INFINITY;
-        for (double d : em.response.embedding) {
-            min = Math.min(min, d);
-            max = Math.max(max, d);
+        final ScatterMap map = new ScatterMap(ss.getProjection());
+        map.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int i = map.indexAt(e.getPoint());
+                if (ss == session && i >= 0) {
+                    showFragment(i, SwingUtilities.isLeftMouseButton(e));
+                }
+            }
+        });
+        JFrame mf = new JFrame("Map of " + (null == ss.getModel() ? "scan" : ss.getModel()));
+        mf.getContentPane().add(map);
+        mf.pack();
+        mf.setVisible(true);
+    }
+
+    /**
+     * Cluster the current scan in the background and show the tiles grouped
+     * by cluster, the fragment nearest to its centroid first.
+     *
+     * @param k Number of clusters, 0 to go back to file order.
+     */
+    private void cluster(final int k) {
+        final ScanSession ss = session;
+        if (k <= 0 || 0 == ss.getStore().size()) {
+            order = position = null;
+            grid.tilesChanged();
+            return;
         }
-        min = Math.log(-min);
-        max = Math.log(max);
-//        System.out.format("WxH=%dx%d, MiniMax=%.2f - %.2f\n", w, h, min, max);
-        double rf = 255.0 / min;
-        double bf = 255 / max;
-        int x = 0;
-        int y = 0;
-        for (double d : em.response.embedding) {
-            double r, b;
-            if (d < 0) {
-                r = Math.log(-d) * rf;
-                b = 0;
-            } else {
-                r = 0;
-                b = Math.log(d) * bf;
-            }
-            r = Math.max(0, Math.min(255, r));
-            b = Math.max(0, Math.min(255, b));
-            Color c = new Color((int) r, 64 + (int) ((r + b) / 4), (int) b, 255);
-            ret.setRGB(x, y, c.getRGB());
-            x++;
-            if (x >= w) {
-                x = 0;
-                y++;
+        status.setText("Clustering " + ss.getStore().size() + " fragments");
+        new SwingWorker<KMeans, String>() {
+            private long nanos;
+
+            @Override
+            protected KMeans doInBackground() throws Exception {
+                long t0 = System.nanoTime();
+                KMeans ret = new KMeans(ss.getStore(), k);
+                ret.setListener(new KMeans.Listener() {
+                    @Override
+                    public void iteration(int iteration, long took, double inertia) {
+                        publish(String.format("k-means iteration %d: %d ms, batch inertia %.4f",
+                                iteration, took / 1000000, inertia));
+                    }
+                });
+                ret.run();
+                nanos = System.nanoTime() - t0;
+                return ret;
+            }
+
+            @Override
+            protected void process(List<String> chunks) {
+                if (ss == session) {
+                    status.setText(chunks.get(chunks.size() - 1));
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    KMeans km = get();
+                    if (ss == session) {
+                        order = km.getOrder();
+                        position = new int[order.length];
+                        for (int p = 0; p < order.length; p++) {
+                            position[order[p]] = p;
+                        }
+                        grid.tilesChanged();
+                        status.setText(String.format("%d clusters in %d ms, inertia %.4f, sizes %s",
+                                km.getSizes().length, nanos / 1000000, km.getInertia(),
+                                Arrays.toString(km.getSizes())));
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                    status.setText("Clustering failed: " + ex.getMessage());
+                }
             }
+        }.execute();
+    }
+
+    /**
+     * @param p Grid position.
+     * @return Fragment shown there.
+     */
+    private int fragmentAt(int p) {
+        return null != order && p < order.length ? order[p] : p;
+    }
+
+    /**
+     * @param f Fragment index.
+     * @return Grid position showing it.
+     */
+    private int positionOf(int f) {
+        return null != position && f < position.length ? position[f] : f;
+    }
+
+    /**
+     * Show another scan, or the same scan in other colours; call on the EDT.
+     *
+     * @param s The new session.
+     */
+    private void setSession(ScanSession s) {
+        if (s != session) {
+            order = position = null;
+            stopWatch();
         }
-        return ret;
+        session = s;
+        tiles = new TileCache(s.getStore(), 4096, corpusColours.isSelected() ? s.getStats() : null);
+        grid.tilesChanged();
+    }
+
+    /**
+     * Watch the directory of a scan, replacing any earlier watch; call on the
+     * EDT.
+     *
+     * @param ss The scan, it needs a manifest.
+     */
+    private void startWatch(ScanSession ss) {
+        stopWatch();
+        if (scanning.contains(ss)) {
+            status.setText("Still scanning, the watch starts when the scan is done");
+            return;
+        }
+        if (null == ss.getManifest() || null == ss.getModel()) {
+            status.setText("Nothing to watch, scan a directory first");
+            return;
+        }
+        Path root = Paths.get(ss.getManifest().getRoot());
+        FileDiscovery rules = new FileDiscovery(root);
+        watcher = new DirectoryWatcher(root, rules, new Watcher(ss, rules));
+        try {
+            watcher.start();
+            status.setText("Watching " + root);
+        } catch (IOException ex) {
+            Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+            status.setText("Cannot watch " + root + ": " + ex.getMessage());
+            watcher = null;
+        }
+    }
+
+    private void stopWatch() {
+        if (null != watcher) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * @param host The host of the scan.
+     * @param model The model.
+     * @return Hosts to embed with, see {@link EmbeddingFanOut#hostsFor}.
+     */
+    private List<String> embedHosts(String host, String model) {
+        return EmbeddingFanOut.hostsFor(host, model, allHosts.isSelected());
+    }
+
+    /**
+     * Compute the statistics of a loaded session in the background.
+     *
+     * @param s The session.
+     */
+    private void computeStats(final ScanSession s) {
+        new SwingWorker<CorpusStats, Void>() {
+            @Override
+            protected CorpusStats doInBackground() throws Exception {
+                return CorpusStats.of(s.getStore(), 0.05, 0.5, 0.95);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    s.setStats(get());
+                    if (s == session && corpusColours.isSelected()) {
+                        setSession(s);
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }.execute();
+    }
+
+    public static BufferedImage toImage(Embeddings em) {
+        return toImage(em.response.embedding);
+    }
+
+    public static BufferedImage toImage(float[] vec) {
+        return TileRenderer.toImage(vec);
+    }
+
+    public static BufferedImage toImage(double[] embedding) {
+        return TileRenderer.toImage(embedding);
     }
 
     private class AddSelectHost implements ActionListener {
@@ -385,7 +806,88 @@ public class Embedding {
         }
     }
 
+    /**
+     * Re-embeds the files of a scan that changed, through the in-place update
+     * of a {@link DirectoryScan} kept for the whole watch. The fragments of a
+     * changed file are replaced in place, so their tiles keep their positions
+     * in the grid. Runs on the watcher thread, only the repaint is passed to
+     * the EDT.
+     */
+    private class Watcher implements DirectoryWatcher.Listener {
+
+        private final ScanSession ss;
+        private final FileDiscovery rules;
+        private final DirectoryScan scan;
+        private final List<Integer> changed = new ArrayList<>();
+
+        Watcher(ScanSession ss, FileDiscovery rules) {
+            this.ss = ss;
+            this.rules = rules;
+            int perHost = allHosts.isSelected() ? Integer.getInteger("embedding.perHost", 2) : 1;
+            this.scan = new DirectoryScan(ss, Paths.get(ss.getManifest().getRoot()), cache,
+                    embedHosts(ss.getHost(), ss.getModel()), perHost);
+            scan.setPrevious(ss);
+            scan.setListener(new DirectoryScan.Listener() {
+                @Override
+                public void added(int index, boolean reused) {
+                }
+
+                @Override
+                public void changed(int index) {
+                    changed.add(index);
+                }
+            });
+        }
+
+        @Override
+        public void changed(Set<Path> paths) {
+            final VectorStore vs = ss.getStore();
+            final int from = vs.size();
+            changed.clear();
+            try {
+                scan.update(paths, rules);
+            } catch (IOException ex) {
+                Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            final int to = vs.size();
+            final int[] redraw = new int[changed.size()];
+            for (int i = 0; i < redraw.length; i++) {
+                redraw[i] = changed.get(i);
+            }
+            final String msg = String.format("Watching %s: %d files re-embedded, %d removed, %d fragments embedded in %d ms%s",
+                    ss.getManifest().getRoot(), scan.getFiles(), scan.getRemoved(), scan.getEmbedded(),
+                    scan.getNanos() / 1000000, 0 == scan.getFailed() ? "" : ", " + scan.getFailed() + " failed");
+            Logger.getLogger(Embedding.class.getName()).log(Level.FINE, msg);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (ss == session) {
+                        for (int i : redraw) {
+                            tiles.invalidate(i);
+                            grid.tileChanged(positionOf(i));
+                        }
+                        if (to > from) {
+                            grid.tilesAdded(from, to);
+                        }
+                        status.setText(msg);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Without arguments start the GUI, with arguments run headless, see
+     * {@link BatchMode}.
+     *
+     * @param args Command line.
+     */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // exits with the status of the batch, never opens the GUI
+            BatchMode.main(args);
+            return;
+        }
         Ollama.init();
         Ollama.setupGUI();
         new Embedding();
@@ -402,66 +904,86 @@ public class Embedding {
             JFileChooser jfc = new JFileChooser();
             jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
             int ans = jfc.showOpenDialog(frame);
-            SwingWorker<Void, BufferedImage> worker = new SwingWorker<>() {
+            if (ans != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            final Path root = jfc.getSelectedFile().toPath();
+            String model = models.getSelectedItem().toString();
+            // a complete earlier scan of the same root with the same model is updated in place
+            final boolean again = null != session && null != session.getManifest()
+                    && session.getManifest().getRoot().equals(root.toString())
+                    && model.equals(session.getModel()) && null != session.getIndex();
+            if (again && scanning.contains(session)) {
+                status.setText("Already scanning " + root);
+                return;
+            }
+            final ScanSession ss;
+            if (again) {
+                ss = session;
+                // the watcher would update the same store
+                stopWatch();
+            } else {
+                ss = new ScanSession(hosts.getSelectedItem().toString(), model, new VectorStore());
+                ss.setIndex(new HnswIndex(ss.getStore()));
+                ss.setStats(new CorpusStats(0.05, 0.5, 0.95));
+                ss.setProjection(new Projection(ss.getStore()));
+                setSession(ss);
+            }
+            scanning.add(ss);
+            SwingWorker<Void, Integer> worker = new SwingWorker<>() {
+                private DirectoryScan scan;
+
                 @Override
                 protected Void doInBackground() throws Exception {
-                    if (ans == JFileChooser.APPROVE_OPTION) {
-                        try {
-                            OllamaEmbeddings em = new OllamaEmbeddings(
-                                    hosts.getSelectedItem().toString(),
-                                    models.getSelectedItem().toString());
-                            embs.clear();
-                            jTxt.clear();
-                            final BufferedImage blank = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_BINARY);
-
-                            Files.walkFileTree(jfc.getSelectedFile().toPath(), new SimpleFileVisitor<>() {
-                                @Override
-                                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                                    if (file.toString().endsWith(".java")) {
-                                        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
-                                        if (content.length() > 1024) {
-                                            for (int ofs = 0; ofs < content.length() - 512; ofs += 256) {
-                                                String frag = content.substring(ofs, ofs + 512);
-                                                System.out.println(frag);
-                                                strToImg(em, frag);
-                                            }
-                                        } else {
-                                            System.out.println(content);
-                                            strToImg(em, content);
-                                        }
-                                        // separator
-                                        publish(blank);
-                                    }
-                                    return super.visitFile(file, attrs);
-                                }
+                    int perHost = allHosts.isSelected() ? Integer.getInteger("embedding.perHost", 2) : 1;
+                    scan = new DirectoryScan(ss, root, cache, embedHosts(ss.getHost(), ss.getModel()), perHost);
+                    if (again) {
+                        scan.setPrevious(ss);
+                    }
+                    scan.setListener(new DirectoryScan.Listener() {
+                        @Override
+                        public void added(int index, boolean reused) {
+                            if (!reused) {
+                                System.out.println(ss.getStore().getText(index));
+                            }
+                            publish(index);
+                        }
 
-                                private void strToImg(OllamaEmbeddings em, String frag) {
-                                    try {
-                                        Embeddings embeddings = em.getEmbeddings(frag);
-                                        BufferedImage img = toImage(embeddings);
-                                        embs.add(img);
-                                        jTxt.add(frag);
-                                        publish(img);
-                                    } catch (Exception ex) {
-                                        Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
+                        @Override
+                        public void changed(final int index) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (ss == session) {
+                                        tiles.invalidate(index);
+                                        grid.tileChanged(positionOf(index));
                                     }
                                 }
                             });
-                        } catch (IOException ex) {
-                            Logger.getLogger(Embedding.class.getName()).log(Level.SEVERE, null, ex);
                         }
-                    }
+                    });
+                    scan.run();
                     return null;
                 }
 
                 @Override
-                protected void process(List<BufferedImage> chunks) {
-                    frame.repaint();
+                protected void process(List<Integer> chunks) {
+                    if (ss == session) {
+                        grid.tilesAdded(chunks.get(0), chunks.get(chunks.size() - 1) + 1);
+                    }
                 }
 
                 @Override
                 protected void done() {
-                    // Final updates or cleanup after background work is done.
+                    scanning.remove(ss);
+                    Logger.getLogger(Embedding.class.getName()).log(Level.FINE, "{0}", ss);
+                    Logger.getLogger(Embedding.class.getName()).log(Level.FINE, "{0}", cache);
+                    if (ss == session && null != scan) {
+                        status.setText(scan.toString());
+                        if (watch.isSelected() && null != ss.getManifest()) {
+                            startWatch(ss);
+                        }
+                    }
                 }
             };
 
@@ -0,0 +1,591 @@
+package nl.infcomtec.embedding;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk-backed cache of embedding vectors.
+ * <p>
+ * Vectors are keyed by the SHA-256 of host, model and fragment text and are
+ * stored as floats in fixed-size, memory-mapped segment files. New vectors
+ * are appended to the newest segment; once the total size exceeds the cap the
+ * oldest segment is dropped. A hit in the oldest segment is copied forward,
+ * so frequently used vectors survive eviction.
+ * <p>
+ * Several processes can share a cache directory. Every process appends to a
+ * segment of its own, held with a file lock, and reads those of the others:
+ * on a miss the segments are checked for records published since, and at
+ * most once a second the directory for new and deleted segments. A segment
+ * is only deleted, for eviction or because it is damaged, by a process that
+ * can lock it, so never while another process writes it.
+ *
+ * @author walter
+ */
+public class EmbeddingCache implements AutoCloseable {
+
+    /**
+     * Size of one segment file.
+     */
+    public static final int SEGMENT_SIZE = 64 << 20;
+    private static final int MAGIC = 0x454d4243; // "EMBC"
+    private static final int VERSION = 1;
+    /**
+     * Magic, version, write limit, reserved.
+     */
+    private static final int HEADER = 16;
+    private static final int KEY_SIZE = 32;
+    /**
+     * Minimum time between two looks at the directory.
+     */
+    private static final long SCAN_MILLIS = 1000;
+    private static EmbeddingCache shared;
+
+    private final File dir;
+    private final long maxBytes;
+    /**
+     * Oldest first.
+     */
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private final HashMap<Key, Slot> index = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private boolean open;
+    /**
+     * The segment this process appends to, or null.
+     */
+    private Segment writer;
+    private long nextSeq;
+    private long lastScan;
+
+    /**
+     * Opens (or creates) a cache.
+     *
+     * @param dir Directory holding the segment files.
+     * @param maxBytes Size cap, at least one segment is always kept.
+     */
+    public EmbeddingCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            scan();
+            open = true;
+            // go on with the newest segment unless another process writes it
+            if (!segments.isEmpty()) {
+                Segment last = segments.getLast();
+                last.channel = claim(last.file);
+                if (null != last.channel) {
+                    readRecords(last);
+                    writer = last;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(EmbeddingCache.class.getName()).log(Level.SEVERE, null, ex);
+            close();
+        }
+    }
+
+    /**
+     * The cache used by the application, configured by the system properties
+     * "embedding.cache.dir" (default ~/.cache/embedding) and
+     * "embedding.cache.maxMB" (default 2048).
+     *
+     * @return The shared cache.
+     */
+    public static synchronized EmbeddingCache getShared() {
+        if (null == shared) {
+            File dir = new File(System.getProperty("embedding.cache.dir",
+                    new File(new File(System.getProperty("user.home"), ".cache"), "embedding").getPath()));
+            shared = new EmbeddingCache(dir, Long.getLong("embedding.cache.maxMB", 2048) << 20);
+        }
+        return shared;
+    }
+
+    /**
+     * Look up a vector.
+     *
+     * @param host Ollama endpoint.
+     * @param model Model name.
+     * @param text Fragment text.
+     * @return A copy of the cached vector or null.
+     */
+    public synchronized float[] get(String host, String model, String text) {
+        return get(Collections.singletonList(host), model, text);
+    }
+
+    /**
+     * Look up a vector that may have been made by any of several hosts.
+     *
+     * @param hosts Ollama endpoints.
+     * @param model Model name.
+     * @param text Fragment text.
+     * @return A copy of the cached vector or null.
+     */
+    public synchronized float[] get(Collection<String> hosts, String model, String text) {
+        Slot slot = null;
+        if (open) {
+            slot = lookup(hosts, model, text);
+            if (null == slot && refresh()) {
+                slot = lookup(hosts, model, text);
+            }
+        }
+        if (null == slot) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        MappedByteBuffer buf = slot.segment.buf;
+        int dims = buf.getInt(slot.offset + KEY_SIZE);
+        float[] ret = new float[dims];
+        int pos = slot.offset + KEY_SIZE + 4;
+        for (int i = 0; i < dims; i++, pos += 4) {
+            ret[i] = buf.getFloat(pos);
+        }
+        if (segments.size() > 1 && slot.segment == segments.getFirst()) {
+            append(slot.key, ret);
+        }
+        return ret;
+    }
+
+    private Slot lookup(Collection<String> hosts, String model, String text) {
+        Slot slot = null;
+        for (Iterator<String> it = hosts.iterator(); null == slot && it.hasNext();) {
+            slot = index.get(new Key(it.next(), model, text));
+        }
+        return slot;
+    }
+
+    /**
+     * Store a vector.
+     *
+     * @param host Ollama endpoint.
+     * @param model Model name.
+     * @param text Fragment text.
+     * @param vec The vector.
+     */
+    public synchronized void put(String host, String model, String text, float[] vec) {
+        if (open) {
+            append(new Key(host, model, text), vec);
+        }
+    }
+
+    private void append(Key key, float[] vec) {
+        int size = KEY_SIZE + 4 + vec.length * 4;
+        if (HEADER + size > SEGMENT_SIZE) {
+            return;
+        }
+        try {
+            Segment seg = writer;
+            if (null == seg || seg.limit + size > SEGMENT_SIZE) {
+                seg = newSegment();
+                evict();
+            }
+            MappedByteBuffer buf = seg.buf;
+            int pos = seg.limit;
+            for (int i = 0; i < KEY_SIZE; i++) {
+                buf.put(pos + i, key.sha[i]);
+            }
+            buf.putInt(pos + KEY_SIZE, vec.length);
+            int p = pos + KEY_SIZE + 4;
+            for (float f : vec) {
+                buf.putFloat(p, f);
+                p += 4;
+            }
+            seg.limit += size;
+            // publish the record only after it is complete
+            buf.putInt(8, seg.limit);
+            index.put(key, new Slot(key, seg, pos));
+        } catch (IOException ex) {
+            Logger.getLogger(EmbeddingCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void evict() {
+        while (segments.size() > 1 && (long) segments.size() * SEGMENT_SIZE > maxBytes) {
+            Segment old = segments.getFirst();
+            if (old == writer) {
+                break;
+            }
+            FileChannel ch = claim(old.file);
+            if (null == ch) {
+                // another process is still writing it
+                break;
+            }
+            try {
+                drop(old);
+                if (!old.file.delete()) {
+                    Logger.getLogger(EmbeddingCache.class.getName()).log(Level.WARNING, "Failed to delete {0}", old.file);
+                }
+                evictions.incrementAndGet();
+            } finally {
+                release(ch);
+            }
+        }
+    }
+
+    /**
+     * Forget a segment and its vectors.
+     */
+    private void drop(Segment seg) {
+        segments.remove(seg);
+        for (Iterator<Slot> it = index.values().iterator(); it.hasNext();) {
+            if (it.next().segment == seg) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Start a segment of our own, giving up the one we had.
+     */
+    private Segment newSegment() throws IOException {
+        if (null != writer) {
+            release(writer.channel);
+            writer.channel = null;
+            writer = null;
+        }
+        for (;; nextSeq++) {
+            File f = new File(dir, String.format("seg%012d.bin", nextSeq));
+            FileChannel ch;
+            try {
+                ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                // another process took this number
+                continue;
+            }
+            if (!lock(ch) || !f.exists()) {
+                // another process saw it empty and deleted it
+                release(ch);
+                continue;
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putInt(8, HEADER);
+            Segment seg = new Segment(f, buf);
+            seg.limit = HEADER;
+            seg.channel = ch;
+            segments.add(seg);
+            nextSeq++;
+            writer = seg;
+            return seg;
+        }
+    }
+
+    /**
+     * Take in what other processes appended since the last look.
+     *
+     * @return Whether any vector was added to the index.
+     */
+    private boolean refresh() {
+        boolean found = false;
+        if (System.currentTimeMillis() - lastScan >= SCAN_MILLIS) {
+            try {
+                found = scan();
+            } catch (IOException ex) {
+                Logger.getLogger(EmbeddingCache.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        for (Segment seg : segments) {
+            if (seg != writer && readRecords(seg)) {
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Open the segment files not known yet and forget those that are gone.
+     *
+     * @return Whether any segment was opened.
+     */
+    private boolean scan() throws IOException {
+        lastScan = System.currentTimeMillis();
+        HashSet<String> known = new HashSet<>();
+        for (Segment seg : new ArrayList<>(segments)) {
+            if (seg != writer && !seg.file.exists()) {
+                drop(seg);
+            } else {
+                known.add(seg.file.getName());
+            }
+        }
+        File[] files = dir.listFiles((File d, String name) -> name.startsWith("seg") && name.endsWith(".bin"));
+        if (null == files) {
+            return false;
+        }
+        Arrays.sort(files);
+        boolean added = false;
+        for (File f : files) {
+            if (!known.contains(f.getName()) && openSegment(f)) {
+                added = true;
+            }
+        }
+        if (added) {
+            segments.sort((a, b) -> a.file.getName().compareTo(b.file.getName()));
+        }
+        return added;
+    }
+
+    /**
+     * @return Whether the segment was added.
+     */
+    private boolean openSegment(File f) throws IOException {
+        String name = f.getName();
+        try {
+            nextSeq = Math.max(nextSeq, Long.parseLong(name.substring(3, name.length() - 4)) + 1);
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        if (f.length() != SEGMENT_SIZE) {
+            deleteDamaged(f);
+            return false;
+        }
+        Segment seg = map(f);
+        MappedByteBuffer buf = seg.buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            deleteDamaged(f);
+            return false;
+        }
+        seg.limit = HEADER;
+        readRecords(seg);
+        segments.add(seg);
+        return true;
+    }
+
+    /**
+     * Index the records published in a segment since the last call.
+     *
+     * @return Whether there were any.
+     */
+    private boolean readRecords(Segment seg) {
+        MappedByteBuffer buf = seg.buf;
+        int limit = buf.getInt(8);
+        if (limit > SEGMENT_SIZE) {
+            return false;
+        }
+        int pos = seg.limit;
+        while (pos + KEY_SIZE + 4 <= limit) {
+            byte[] sha = new byte[KEY_SIZE];
+            for (int i = 0; i < KEY_SIZE; i++) {
+                sha[i] = buf.get(pos + i);
+            }
+            int dims = buf.getInt(pos + KEY_SIZE);
+            int size = KEY_SIZE + 4 + dims * 4;
+            if (dims < 0 || pos + size > limit) {
+                break;
+            }
+            Key key = new Key(sha);
+            index.put(key, new Slot(key, seg, pos));
+            pos += size;
+        }
+        boolean found = pos > seg.limit;
+        seg.limit = pos;
+        return found;
+    }
+
+    /**
+     * Delete a segment file that is not valid, unless another process holds
+     * it: then it is still being created.
+     */
+    private static void deleteDamaged(File f) {
+        FileChannel ch = claim(f);
+        if (null != ch) {
+            f.delete();
+            release(ch);
+        }
+    }
+
+    /**
+     * @return An open channel holding the lock of the file, or null if
+     * another process, or another cache in this one, holds it.
+     */
+    private static FileChannel claim(File f) {
+        try {
+            FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (lock(ch)) {
+                return ch;
+            }
+            release(ch);
+        } catch (IOException ex) {
+            // gone
+        }
+        return null;
+    }
+
+    private static boolean lock(FileChannel ch) throws IOException {
+        try {
+            return null != ch.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Close a channel, which releases its lock.
+     */
+    private static void release(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ex) {
+            // we tried
+        }
+    }
+
+    private static Segment map(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return new Segment(f, buf);
+        }
+    }
+
+    /**
+     * @return Number of lookups that found a vector.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of lookups that did not find a vector.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of segments dropped to stay under the size cap.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Number of cached vectors.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Bytes used on disk.
+     */
+    public synchronized long getDiskSize() {
+        return (long) segments.size() * SEGMENT_SIZE;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        if (null != writer) {
+            writer.buf.force();
+            release(writer.channel);
+            writer.channel = null;
+            writer = null;
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EmbeddingCache{%s, %d vectors, %d MB, hits=%d, misses=%d, evictions=%d}",
+                dir, size(), getDiskSize() >> 20, getHits(), getMisses(), getEvictions());
+    }
+
+    private static class Segment {
+
+        final File file;
+        final MappedByteBuffer buf;
+        /**
+         * End of the records indexed, or written by us.
+         */
+        int limit;
+        /**
+         * Holds the lock while this process writes the segment.
+         */
+        FileChannel channel;
+
+        Segment(File file, MappedByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+    }
+
+    private static class Slot {
+
+        final Key key;
+        final Segment segment;
+        final int offset;
+
+        Slot(Key key, Segment segment, int offset) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class Key {
+
+        final byte[] sha;
+        final int hash;
+
+        Key(byte[] sha) {
+            this.sha = sha;
+            this.hash = Arrays.hashCode(sha);
+        }
+
+        Key(String host, String model, String text) {
+            this(digest(host, model, text));
+        }
+
+        private static byte[] digest(String host, String model, String text) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(host.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                md.update(model.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                return md.digest(text.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(sha, ((Key) obj).sha);
+        }
+    }
+}
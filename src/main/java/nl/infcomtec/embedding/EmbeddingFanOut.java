@@ -0,0 +1,213 @@
+package nl.infcomtec.embedding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.infcomtec.jllama.AvailableModels;
+import nl.infcomtec.jllama.Ollama;
+
+/**
+ * Spreads embedding requests over several Ollama hosts.
+ * <p>
+ * Every host gets a fixed number of worker threads that take requests from a
+ * shared queue, so faster hosts simply do more of the work and no host has
+ * more than that number of requests in flight. A request that fails goes to
+ * the retry queue of a host that has not tried it yet, which the workers of
+ * that host look at first, until every host had a go at it.
+ *
+ * @author walter
+ */
+public class EmbeddingFanOut implements AutoCloseable {
+
+    /**
+     * How long an idle worker waits for new work before it looks at its
+     * retry queue again.
+     */
+    private static final long RETRY_POLL_MS = 100;
+    private final EmbeddingCache cache;
+    private final List<String> hosts;
+    private final String model;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Map<String, LinkedBlockingQueue<Request>> retries = new HashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<CachedEmbeddings> clients = new ArrayList<>();
+
+    /**
+     * @param cache Cache to use, may be null.
+     * @param hosts Ollama endpoints, all serving the model.
+     * @param model Model name.
+     * @param perHost Maximum number of requests in flight per host.
+     */
+    public EmbeddingFanOut(EmbeddingCache cache, List<String> hosts, String model, int perHost) {
+        this.cache = cache;
+        this.hosts = new ArrayList<>(hosts);
+        this.model = model;
+        for (String host : hosts) {
+            retries.put(host, new LinkedBlockingQueue<Request>());
+        }
+        for (String host : hosts) {
+            for (int i = 0; i < perHost; i++) {
+                CachedEmbeddings client = new CachedEmbeddings(cache, host, model);
+                clients.add(client);
+                Thread t = new Worker(client);
+                t.setDaemon(true);
+                t.start();
+                workers.add(t);
+            }
+        }
+    }
+
+    /**
+     * Find all known hosts that serve a model.
+     *
+     * @param model Model name.
+     * @return Host names.
+     */
+    public static List<String> hostsServing(String model) {
+        List<String> ret = new ArrayList<>();
+        for (Map.Entry<String, AvailableModels> e : Ollama.getAvailableModels().entrySet()) {
+            for (AvailableModels.AvailableModel am : e.getValue().models) {
+                if (am.name.equals(model)) {
+                    ret.add(e.getKey());
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param host The host selected.
+     * @param model Model name.
+     * @param all Whether to use all hosts serving the model.
+     * @return The hosts serving the model if all and there are any, else
+     * just the host selected.
+     */
+    public static List<String> hostsFor(String host, String model, boolean all) {
+        List<String> ret = all ? hostsServing(model) : new ArrayList<String>();
+        if (ret.isEmpty()) {
+            ret.add(host);
+        }
+        return ret;
+    }
+
+    /**
+     * Queue some text for embedding.
+     *
+     * @param text The text.
+     * @return The future vector, already completed on a cache hit.
+     */
+    public Future<float[]> submit(String text) {
+        float[] vec = null == cache ? null : cache.get(hosts, model, text);
+        if (null != vec) {
+            return CompletableFuture.completedFuture(vec);
+        }
+        Request r = new Request(text);
+        queue.add(r);
+        return r.result;
+    }
+
+    /**
+     * @return Total number of requests that can be in flight.
+     */
+    public int getParallelism() {
+        return workers.size();
+    }
+
+    /**
+     * @param latencies Receives the duration of every request to Ollama,
+     * cache hits excluded, or null.
+     */
+    public void setLatencies(Latencies latencies) {
+        for (CachedEmbeddings client : clients) {
+            client.setLatencies(latencies);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        for (Request r; null != (r = queue.poll());) {
+            r.result.cancel(false);
+        }
+        for (LinkedBlockingQueue<Request> q : retries.values()) {
+            for (Request r; null != (r = q.poll());) {
+                r.result.cancel(false);
+            }
+        }
+    }
+
+    private static class Request {
+
+        final String text;
+        final CompletableFuture<float[]> result = new CompletableFuture<>();
+        /**
+         * Hosts that failed it, only touched by the worker holding it.
+         */
+        final Set<String> tried = new HashSet<>();
+
+        Request(String text) {
+            this.text = text;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final CachedEmbeddings em;
+        private final LinkedBlockingQueue<Request> mine;
+
+        Worker(CachedEmbeddings em) {
+            super("Embed@" + em.getHost());
+            this.em = em;
+            this.mine = retries.get(em.getHost());
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Request r;
+                try {
+                    r = mine.poll();
+                    if (null == r) {
+                        r = queue.poll(RETRY_POLL_MS, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (null == r) {
+                    continue;
+                }
+                try {
+                    r.result.complete(em.fetch(r.text));
+                } catch (Exception ex) {
+                    r.tried.add(em.getHost());
+                    String next = null;
+                    for (String host : hosts) {
+                        if (!r.tried.contains(host)) {
+                            next = host;
+                            break;
+                        }
+                    }
+                    if (null != next) {
+                        Logger.getLogger(EmbeddingFanOut.class.getName()).log(Level.WARNING,
+                                "{0} failed, trying {1}: {2}", new Object[]{em.getHost(), next, ex});
+                        retries.get(next).add(r);
+                    } else {
+                        r.result.completeExceptionally(ex);
+                    }
+                }
+            }
+        }
+    }
+}
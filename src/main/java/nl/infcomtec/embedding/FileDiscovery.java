@@ -0,0 +1,602 @@
+package nl.infcomtec.embedding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds and reads the files of a directory tree on background threads and
+ * hands them over through a bounded queue, so reading overlaps with whatever
+ * the consumer does and cannot run far ahead of it.
+ * <p>
+ * Directories are walked in parallel on a pool of their own, one task per
+ * directory. A file is taken if its name, or for a pattern with a '/' its
+ * path relative to the root, matches one of the include globs and none of
+ * the exclude globs. ".git" directories are never entered and, unless turned
+ * off, the rules of the ".gitignore" files along the way are applied: later
+ * and deeper rules win, '!' negates, a trailing '/' only matches directories
+ * and a pattern with a leading or inner '/' is relative to its ".gitignore".
+ * Files over the size limit and files with a NUL byte in their first 8000
+ * bytes (the test git uses for binary files) are skipped. Symbolic links to
+ * files are followed, those to directories are not.
+ * Given the {@link Manifest} of an earlier scan, files with the recorded
+ * size and modification time are passed on without being read. Entries that
+ * vanish between listing and reading, like during a checkout, are skipped;
+ * they and the directories that could not be listed are told by
+ * {@link #missed(Path)}, so a caller does not take them for deleted.
+ * <p>
+ * Files are decoded as UTF-8 with malformed input replaced. Large files, only
+ * seen when the size limit is raised, are mapped and decoded straight from
+ * the mapping, so they need no byte array on the heap. Files arrive in no
+ * particular order.
+ * <p>
+ * {@link #accepts(Path, boolean)} and {@link #read(Path)} apply the same
+ * rules to single files, for files that change after the walk.
+ *
+ * @author walter
+ */
+public class FileDiscovery implements AutoCloseable {
+
+    /**
+     * Files from this size on are mapped instead of read. Below it the
+     * String constructor, with its fast path for UTF-8, beats a decoder.
+     */
+    public static final int MAP_SIZE = 1 << 20;
+    /**
+     * Bytes checked for a NUL to detect binary files.
+     */
+    public static final int BINARY_CHECK = 8000;
+
+    /**
+     * A file and its text; the text is null if the file is unchanged
+     * according to the manifest.
+     */
+    public static class SourceFile {
+
+        public final Path path;
+        public final String text;
+        /**
+         * Size in bytes.
+         */
+        public final long size;
+        /**
+         * Last modified, milliseconds since the epoch.
+         */
+        public final long modified;
+
+        public SourceFile(Path path, String text, long size, long modified) {
+            this.path = path;
+            this.text = text;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Marks the end of the queue.
+     */
+    private static final SourceFile END = new SourceFile(null, null, 0, 0);
+    private final Path root;
+    private final List<PathMatcher> include = new ArrayList<>();
+    private final List<String> includeGlobs = new ArrayList<>();
+    private final List<PathMatcher> exclude = new ArrayList<>();
+    private final List<String> excludeGlobs = new ArrayList<>();
+    private final BlockingQueue<SourceFile> queue;
+    private final int threads;
+    private long maxBytes;
+    private boolean gitIgnore;
+    private Manifest previous;
+    private ForkJoinPool pool;
+    private volatile boolean closed;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong binary = new AtomicLong();
+    private final AtomicLong huge = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    /**
+     * Directories that could not be listed and entries that could not be
+     * looked at.
+     */
+    private final ConcurrentLinkedQueue<Path> missed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Discovery configured by the system properties "embedding.include"
+     * (comma separated globs, default "*.java"), "embedding.exclude" (default
+     * none), "embedding.maxFileKB" (default 1024), "embedding.gitignore"
+     * (default true), "embedding.readAhead" (files queued, default 64) and
+     * "embedding.readers" (threads, default the number of processors).
+     *
+     * @param root Top of the tree.
+     */
+    public FileDiscovery(Path root) {
+        this(root, Integer.getInteger("embedding.readAhead", 64),
+                Integer.getInteger("embedding.readers", Runtime.getRuntime().availableProcessors()));
+        for (String g : System.getProperty("embedding.include", "*.java").split(",")) {
+            addInclude(g);
+        }
+        for (String g : System.getProperty("embedding.exclude", "").split(",")) {
+            addExclude(g);
+        }
+        setMaxBytes(Long.getLong("embedding.maxFileKB", 1024) << 10);
+        setGitIgnore(Boolean.parseBoolean(System.getProperty("embedding.gitignore", "true")));
+    }
+
+    /**
+     * Discovery without include patterns, add at least one.
+     *
+     * @param root Top of the tree.
+     * @param readAhead Maximum number of files waiting in the queue.
+     * @param threads Number of threads walking and reading.
+     */
+    public FileDiscovery(Path root, int readAhead, int threads) {
+        this.root = root;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, readAhead));
+        this.threads = Math.max(1, threads);
+        this.maxBytes = Long.MAX_VALUE;
+        this.gitIgnore = true;
+    }
+
+    /**
+     * @param glob Pattern for files to take; blank is ignored.
+     */
+    public final void addInclude(String glob) {
+        glob = glob.trim();
+        if (!glob.isEmpty()) {
+            includeGlobs.add(glob);
+            include.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+    }
+
+    /**
+     * @param glob Pattern for files or directories to skip; blank is ignored.
+     */
+    public final void addExclude(String glob) {
+        glob = glob.trim();
+        if (!glob.isEmpty()) {
+            excludeGlobs.add(glob);
+            exclude.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+    }
+
+    /**
+     * @param maxBytes Larger files are skipped.
+     */
+    public final void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param gitIgnore Whether to apply ".gitignore" files.
+     */
+    public final void setGitIgnore(boolean gitIgnore) {
+        this.gitIgnore = gitIgnore;
+    }
+
+    /**
+     * Files with the size and modification time recorded in the manifest are
+     * passed on without their text.
+     *
+     * @param previous Manifest of an earlier scan of the same root, or null.
+     */
+    public final void setManifest(Manifest previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Start walking.
+     */
+    public synchronized void start() {
+        if (null == pool) {
+            pool = new ForkJoinPool(threads);
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new Walk(root, GitIgnore.NONE).invoke();
+                    } finally {
+                        put(END);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait for the next file.
+     *
+     * @return The file, or null when all files have been taken.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public SourceFile take() throws InterruptedException {
+        SourceFile ret = queue.take();
+        if (END == ret) {
+            queue.put(END);
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Stop walking; files still queued are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        synchronized (this) {
+            if (null != pool) {
+                pool.shutdownNow();
+            }
+        }
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void put(SourceFile f) {
+        try {
+            while (!closed && !queue.offer(f, 100, TimeUnit.MILLISECONDS)) {
+                // wait for the consumer, but notice a close
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether the walk would take a file, or enter a directory, found below
+     * the root. The ".gitignore" files along the way are read each call.
+     *
+     * @param p A path below the root.
+     * @param isDir Whether it is a directory.
+     * @return True if taken, ignoring its size and content.
+     */
+    public boolean accepts(Path p, boolean isDir) {
+        Path rel = root.relativize(p);
+        if (rel.startsWith("..")) {
+            return false;
+        }
+        GitIgnore rules = GitIgnore.NONE;
+        Path dir = root;
+        for (int i = 0; i < rel.getNameCount(); i++) {
+            Path name = rel.getName(i);
+            boolean last = i == rel.getNameCount() - 1;
+            if (gitIgnore) {
+                rules = rules.read(dir, root);
+            }
+            dir = dir.resolve(name);
+            if (!last || isDir) {
+                if (".git".equals(name.toString()) || rules.ignored(dir, true)
+                        || matches(exclude, excludeGlobs, root.relativize(dir), name)) {
+                    return false;
+                }
+            }
+        }
+        return isDir || (matches(include, includeGlobs, rel, p.getFileName())
+                && !rules.ignored(p, false) && !matches(exclude, excludeGlobs, rel, p.getFileName()));
+    }
+
+    /**
+     * Read one file now, see {@link #accepts(Path, boolean)} for whether it
+     * should be.
+     *
+     * @param p The file.
+     * @return The file with its text, or null if it is gone, over the size
+     * limit or binary.
+     */
+    public SourceFile read(Path p) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            if (attrs.size() > maxBytes) {
+                huge.incrementAndGet();
+                return null;
+            }
+            return decode(p, attrs);
+        } catch (IOException ex) {
+            // deleted or replaced while looking at it
+            return null;
+        }
+    }
+
+    /**
+     * @param rel Path relative to the root, '/' separated.
+     * @param name File name.
+     */
+    private static boolean matches(List<PathMatcher> matchers, List<String> globs, Path rel, Path name) {
+        for (int i = 0; i < matchers.size(); i++) {
+            if (matchers.get(i).matches(globs.get(i).contains("/") ? rel : name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Walk extends RecursiveAction {
+
+        private final Path dir;
+        private final GitIgnore rules;
+
+        Walk(Path dir, GitIgnore rules) {
+            this.dir = dir;
+            this.rules = rules;
+        }
+
+        @Override
+        protected void compute() {
+            if (closed) {
+                return;
+            }
+            GitIgnore here = gitIgnore ? rules.read(dir, root) : rules;
+            List<Walk> subs = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    if (closed) {
+                        return;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException ex) {
+                        // deleted or replaced since the listing
+                        missed.add(p);
+                        continue;
+                    }
+                    if (attrs.isSymbolicLink()) {
+                        try {
+                            // links to files count, links to directories could make a cycle
+                            BasicFileAttributes target = Files.readAttributes(p, BasicFileAttributes.class);
+                            if (target.isRegularFile()) {
+                                attrs = target;
+                            }
+                        } catch (IOException ex) {
+                            // dangling
+                        }
+                    }
+                    Path rel = root.relativize(p);
+                    Path name = p.getFileName();
+                    if (attrs.isDirectory()) {
+                        if (".git".equals(name.toString()) || here.ignored(p, true)
+                                || matches(exclude, excludeGlobs, rel, name)) {
+                            ignored.incrementAndGet();
+                        } else {
+                            subs.add(new Walk(p, here));
+                        }
+                    } else if (attrs.isRegularFile() && matches(include, includeGlobs, rel, name)) {
+                        if (here.ignored(p, false) || matches(exclude, excludeGlobs, rel, name)) {
+                            ignored.incrementAndGet();
+                        } else if (attrs.size() > maxBytes) {
+                            huge.incrementAndGet();
+                        } else if (isUnchanged(p, attrs)) {
+                            unchanged.incrementAndGet();
+                            put(new SourceFile(p, null, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                        } else {
+                            SourceFile f = tryDecode(p, attrs);
+                            if (null != f) {
+                                put(f);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException ex) {
+                missed.add(dir);
+                Logger.getLogger(FileDiscovery.class.getName()).log(Level.WARNING, "Cannot list " + dir, ex);
+            }
+            invokeAll(subs);
+        }
+
+        private SourceFile tryDecode(Path p, BasicFileAttributes attrs) {
+            try {
+                return decode(p, attrs);
+            } catch (IOException ex) {
+                missed.add(p);
+                Logger.getLogger(FileDiscovery.class.getName()).log(Level.WARNING, "Cannot read " + p, ex);
+                return null;
+            }
+        }
+    }
+
+    private boolean isUnchanged(Path p, BasicFileAttributes attrs) {
+        Manifest.Entry e = null == previous ? null : previous.get(p.toString());
+        return null != e && e.size == attrs.size() && e.modified == attrs.lastModifiedTime().toMillis();
+    }
+
+    /**
+     * @return The file with its text, null if binary.
+     */
+    private SourceFile decode(Path p, BasicFileAttributes attrs) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = ch.size();
+            String text;
+            if (size >= MAP_SIZE) {
+                ByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (isBinary(bb)) {
+                    return null;
+                }
+                text = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(bb).toString();
+            } else {
+                ByteBuffer bb = ByteBuffer.allocate((int) size);
+                while (bb.hasRemaining() && ch.read(bb) >= 0) {
+                    // fill
+                }
+                bb.flip();
+                if (isBinary(bb)) {
+                    return null;
+                }
+                text = new String(bb.array(), 0, bb.limit(), StandardCharsets.UTF_8);
+            }
+            files.incrementAndGet();
+            bytes.addAndGet(size);
+            return new SourceFile(p, text, size, attrs.lastModifiedTime().toMillis());
+        } catch (CharacterCodingException ex) {
+            // cannot happen with REPLACE
+            Logger.getLogger(FileDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    private boolean isBinary(ByteBuffer bb) {
+        for (int i = 0, n = Math.min(bb.limit(), BINARY_CHECK); i < n; i++) {
+            if (0 == bb.get(i)) {
+                binary.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the walk may have missed a file, as it could not look at the
+     * file or list a directory above it. Complete once {@link #take()}
+     * returned null.
+     *
+     * @param p A path below the root.
+     * @return True if it may be there after all.
+     */
+    public boolean missed(Path p) {
+        for (Path m : missed) {
+            if (p.startsWith(m)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of files read.
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return Bytes read.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileDiscovery{%s, %d files, %d bytes, %d unchanged, skipped %d ignored, %d binary, %d huge, %d missed}",
+                root, files.get(), bytes.get(), unchanged.get(), ignored.get(), binary.get(), huge.get(), missed.size());
+    }
+
+    /**
+     * The ".gitignore" rules in force in a directory, immutable.
+     */
+    static class GitIgnore {
+
+        static final GitIgnore NONE = new GitIgnore(null, null, null, false, false);
+        private final GitIgnore parent;
+        private final Path base;
+        private final PathMatcher matcher;
+        /**
+         * The rest of a pattern that starts with two stars and a slash, which
+         * git also matches without any directory in front; the glob does not.
+         */
+        private final PathMatcher top;
+        private final boolean negate;
+        private final boolean dirOnly;
+        private final boolean anchored;
+
+        private GitIgnore(GitIgnore parent, Path base, String pattern, boolean negate, boolean dirOnly) {
+            this.parent = parent;
+            this.base = base;
+            this.negate = negate;
+            this.dirOnly = dirOnly;
+            if (null == pattern) {
+                this.matcher = null;
+                this.top = null;
+                this.anchored = false;
+            } else {
+                this.anchored = pattern.contains("/");
+                String p = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+                this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + p);
+                this.top = p.startsWith("**/")
+                        ? FileSystems.getDefault().getPathMatcher("glob:" + p.substring(3)) : null;
+            }
+        }
+
+        /**
+         * @param dir A directory.
+         * @param root Top of the tree, no ".gitignore" above it is read.
+         * @return These rules plus those of the ".gitignore" in dir.
+         */
+        GitIgnore read(Path dir, Path root) {
+            Path f = dir.resolve(".gitignore");
+            if (!Files.isRegularFile(f)) {
+                return this;
+            }
+            GitIgnore ret = this;
+            try {
+                for (String line : Files.readAllLines(f, StandardCharsets.UTF_8)) {
+                    String s = line.trim();
+                    if (s.isEmpty() || s.startsWith("#")) {
+                        continue;
+                    }
+                    boolean neg = s.startsWith("!");
+                    if (neg) {
+                        s = s.substring(1);
+                    }
+                    boolean dirs = s.endsWith("/");
+                    if (dirs) {
+                        s = s.substring(0, s.length() - 1);
+                    }
+                    if (!s.isEmpty()) {
+                        ret = new GitIgnore(ret, dir, s, neg, dirs);
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(FileDiscovery.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return ret;
+        }
+
+        /**
+         * @param p A file or directory below the directories of the rules.
+         * @param isDir Whether it is a directory.
+         * @return Whether the last matching rule ignores it.
+         */
+        boolean ignored(Path p, boolean isDir) {
+            for (GitIgnore r = this; null != r.matcher; r = r.parent) {
+                if (r.dirOnly && !isDir) {
+                    continue;
+                }
+                Path q = r.anchored ? r.base.relativize(p) : p.getFileName();
+                if (r.matcher.matches(q) || (null != r.top && r.top.matches(q))) {
+                    return !r.negate;
+                }
+            }
+            return false;
+        }
+    }
+}
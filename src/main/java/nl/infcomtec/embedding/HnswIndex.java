@@ -0,0 +1,908 @@
+package nl.infcomtec.embedding;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical navigable small world graph for approximate cosine search over
+ * a {@link VectorStore}.
+ * <p>
+ * The graph only holds links; vectors are read from the store. Fragments are
+ * added with {@link #update()}, so the index can be kept up to date while a
+ * scan is running, or in the background with {@link #updateLater()}. M is the
+ * number of links per node (twice that on the bottom layer), efConstruction
+ * the size of the candidate list while linking and efSearch the size of the
+ * candidate list while searching; larger values give better recall at the
+ * cost of speed.
+ * <p>
+ * An update inserts on "embedding.hnsw.threads" threads at once (default one
+ * per processor). Every link list has its own lock, taken only to copy or
+ * change that list, so searches run alongside the insertions; only growing
+ * the arrays and {@link #save(File)} stop both for a moment. A search also
+ * scans the fragments the index does not have yet exactly, so results are
+ * complete while the index catches up with the store.
+ * <p>
+ * A fragment whose vector is replaced, like that of an edited file, is
+ * linked again with {@link #relink(int)}. Empty fragments, left by files
+ * that shrank or went away, stay in the graph to keep it connected but are
+ * never a hit.
+ *
+ * @author walter
+ */
+public class HnswIndex {
+
+    private static final int MAGIC = 0x57534e48; // "HNSW"
+    private static final int VERSION = 1;
+    /**
+     * Threads inserting during an update, the caller included.
+     */
+    private static final int THREADS = Math.max(1, Integer.getInteger("embedding.hnsw.threads",
+            Runtime.getRuntime().availableProcessors()));
+    /**
+     * Runs the background updates of all indexes.
+     */
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "HnswIndex");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Helps the thread running an update.
+     */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool((Runnable r) -> {
+        Thread t = new Thread(r, "HnswIndex worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final VectorStore store;
+    private final int m;
+    private final int m0;
+    private final int efConstruction;
+    private final double mL;
+    private volatile int efSearch;
+    /**
+     * Read-locked by inserts and searches, write-locked to grow the arrays
+     * or to save.
+     */
+    private final ReentrantReadWriteLock arrays = new ReentrantReadWriteLock();
+    /**
+     * Guard the link lists, node id modulo their number.
+     */
+    private final Object[] locks = new Object[1 << 12];
+    /**
+     * Guards {@link #entry} and {@link #maxLevel}.
+     */
+    private final Object top = new Object();
+    /**
+     * Inserted nodes; guards {@link #claimed}.
+     */
+    private final BitSet done = new BitSet();
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    /**
+     * Nodes handed out to insert.
+     */
+    private int claimed;
+    /**
+     * Nodes 0 to size are all inserted.
+     */
+    private volatile int size;
+    private int entry = -1;
+    private int maxLevel = -1;
+    private int[] levels = new int[1024];
+    /**
+     * Bottom layer, per node a count followed by m0 slots.
+     */
+    private int[] links0;
+    /**
+     * Higher layers, per node and level a count followed by m slots; null
+     * for nodes that only live on the bottom layer.
+     */
+    private int[][][] upper = new int[1024][][];
+
+    /**
+     * Index configured by the system properties "embedding.hnsw.M" (default
+     * 16), "embedding.hnsw.efConstruction" (default 200) and
+     * "embedding.hnsw.efSearch" (default 64).
+     *
+     * @param store The vectors.
+     */
+    public HnswIndex(VectorStore store) {
+        this(store, Integer.getInteger("embedding.hnsw.M", 16),
+                Integer.getInteger("embedding.hnsw.efConstruction", 200),
+                Integer.getInteger("embedding.hnsw.efSearch", 64));
+    }
+
+    /**
+     * @param store The vectors.
+     * @param m Links per node.
+     * @param efConstruction Candidates considered while linking.
+     * @param efSearch Candidates considered while searching.
+     */
+    public HnswIndex(VectorStore store, int m, int efConstruction, int efSearch) {
+        this.store = store;
+        this.m = Math.max(2, m);
+        this.m0 = 2 * this.m;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.efSearch = Math.max(1, efSearch);
+        this.mL = 1 / Math.log(this.m);
+        this.links0 = new int[1024 * (m0 + 1)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param ef Candidates considered while searching, at least k is used.
+     */
+    public void setEfSearch(int ef) {
+        efSearch = Math.max(1, ef);
+    }
+
+    /**
+     * @return Candidates considered while searching.
+     */
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * @return Number of indexed fragments.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add the fragments of the store that are not indexed yet, on several
+     * threads. Searches can run at the same time.
+     */
+    public void update() {
+        Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                while (insertNext()) {
+                    // until the store is indexed
+                }
+            }
+        };
+        List<Future<?>> helpers = new ArrayList<>();
+        for (int w = Math.min(THREADS, store.size() - size) - 1; w > 0; w--) {
+            helpers.add(WORKERS.submit(drain));
+        }
+        drain.run();
+        try {
+            for (Future<?> f : helpers) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(HnswIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private boolean insertNext() {
+        while (true) {
+            int id;
+            arrays.readLock().lock();
+            try {
+                id = claim();
+                if (id >= 0) {
+                    insert(id);
+                    finished(id);
+                    return true;
+                }
+            } finally {
+                arrays.readLock().unlock();
+            }
+            if (-1 == id) {
+                return false;
+            }
+            grow(store.size());
+        }
+    }
+
+    /**
+     * @return Next node to insert, -1 if there is none or -2 if the arrays
+     * must grow first.
+     */
+    private int claim() {
+        synchronized (done) {
+            if (claimed >= store.size()) {
+                return -1;
+            }
+            return claimed < levels.length ? claimed++ : -2;
+        }
+    }
+
+    private void finished(int id) {
+        synchronized (done) {
+            done.set(id);
+            size = done.nextClearBit(size);
+        }
+    }
+
+    /**
+     * Schedule {@link #update()} on a background thread, unless one is
+     * already waiting.
+     */
+    public void updateLater() {
+        if (pending.compareAndSet(false, true)) {
+            BUILDER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.set(false);
+                    update();
+                }
+            });
+        }
+    }
+
+    /**
+     * Find the fragments most similar to another fragment.
+     *
+     * @param index The fragment.
+     * @param k Number of results, the fragment itself is not one of them.
+     * @return Up to k hits, best first.
+     */
+    public List<SimilaritySearch.Hit> similarTo(int index, int k) {
+        return search(store.get(index, null), k, index);
+    }
+
+    /**
+     * Approximate top-k by cosine similarity, exact for the fragments not
+     * indexed yet.
+     *
+     * @param vec The query vector.
+     * @param k Number of results.
+     * @param skip Fragment to leave out, or -1.
+     * @return Up to k hits, best first.
+     */
+    public List<SimilaritySearch.Hit> search(float[] vec, int k, int skip) {
+        int indexed = size;
+        List<SimilaritySearch.Hit> ret;
+        arrays.readLock().lock();
+        try {
+            ret = searchGraph(vec, k, skip);
+        } finally {
+            arrays.readLock().unlock();
+        }
+        if (store.size() > indexed && k > 0) {
+            // the graph may already have some of the tail, those are scored again
+            ret.removeIf(h -> h.index >= indexed);
+            ret.addAll(new SimilaritySearch(store).topK(vec, k, SimilaritySearch.Metric.COSINE, skip, indexed));
+            ret.sort((a, b) -> a.score != b.score ? Float.compare(b.score, a.score)
+                    : Integer.compare(a.index, b.index));
+            if (ret.size() > k) {
+                ret = new ArrayList<>(ret.subList(0, k));
+            }
+        }
+        return ret;
+    }
+
+    private List<SimilaritySearch.Hit> searchGraph(float[] vec, int k, int skip) {
+        List<SimilaritySearch.Hit> ret = new ArrayList<>();
+        int ep;
+        int topLevel;
+        synchronized (top) {
+            ep = entry;
+            topLevel = maxLevel;
+        }
+        if (ep < 0 || k <= 0) {
+            return ret;
+        }
+        Scratch s = scratch.get();
+        s.refresh();
+        float[] q = normalized(vec, s.query = scratch(s.query, vec.length));
+        float epDist = dist(s, q, ep);
+        for (int l = topLevel; l > 0; l--) {
+            ep = greedy(s, q, ep, epDist, l);
+            epDist = dist(s, q, ep);
+        }
+        Heap w = searchLayer(s, q, ep, epDist, Math.max(efSearch, k + 1), 0);
+        int n = w.size;
+        int[] ids = new int[n];
+        float[] ds = new float[n];
+        for (int i = n - 1; i >= 0; i--) {
+            ds[i] = w.topDist();
+            ids[i] = w.pop();
+        }
+        for (int i = 0; i < n && ret.size() < k; i++) {
+            // inserted since the refresh, or not empty
+            if (ids[i] != skip && (ids[i] >= s.lens.length || s.lens[ids[i]] > 0)) {
+                ret.add(new SimilaritySearch.Hit(ids[i], 1 - ds[i]));
+            }
+        }
+        return ret;
+    }
+
+    private void insert(int id) {
+        int level = levelOf(id);
+        synchronized (lock(id)) {
+            levels[id] = level;
+            if (level > 0) {
+                upper[id] = new int[level][m + 1];
+            }
+        }
+        int ep;
+        int topLevel;
+        synchronized (top) {
+            if (entry < 0) {
+                entry = id;
+                maxLevel = level;
+                return;
+            }
+            ep = entry;
+            topLevel = maxLevel;
+        }
+        Scratch s = scratch.get();
+        s.refresh();
+        s.query = scratch(s.query, s.dims);
+        float[] q = normalized(s.vector(id, s.query), s.query);
+        connect(s, q, id, level, ep, topLevel, false);
+        synchronized (top) {
+            if (level > maxLevel) {
+                entry = id;
+                maxLevel = level;
+            }
+        }
+    }
+
+    /**
+     * Link a fragment again after its vector was replaced in the store, as
+     * if it were inserted anew on its own levels: its links are chosen from
+     * a search for the new vector and its new neighbours link back to it.
+     * Links other nodes already had to it stay, pruning drops them in time.
+     * Empty fragments and those not indexed yet are left alone.
+     *
+     * @param id Fragment index.
+     */
+    public void relink(int id) {
+        arrays.readLock().lock();
+        try {
+            synchronized (done) {
+                if (!done.get(id)) {
+                    return;
+                }
+            }
+            Scratch s = scratch.get();
+            s.refresh();
+            if (0 == s.lens[id]) {
+                return;
+            }
+            int level;
+            synchronized (lock(id)) {
+                level = levels[id];
+            }
+            int ep;
+            int topLevel;
+            synchronized (top) {
+                ep = entry;
+                topLevel = maxLevel;
+            }
+            s.query = scratch(s.query, s.dims);
+            float[] q = normalized(s.vector(id, s.query), s.query);
+            connect(s, q, id, level, ep, topLevel, true);
+        } finally {
+            arrays.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search the neighbours of a node from the entry point down and link it
+     * with them on its levels.
+     *
+     * @param replace True to replace the links of the node rather than add
+     * to them, for a node already in the graph.
+     */
+    private void connect(Scratch s, float[] q, int id, int level, int ep, int topLevel, boolean replace) {
+        float epDist = dist(s, q, ep);
+        for (int l = topLevel; l > level; l--) {
+            ep = greedy(s, q, ep, epDist, l);
+            epDist = dist(s, q, ep);
+        }
+        int[] sel = new int[m0];
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            Heap w = searchLayer(s, q, ep, epDist, efConstruction, l);
+            int n = w.size;
+            int[] ids = new int[n];
+            float[] ds = new float[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ds[i] = w.topDist();
+                ids[i] = w.pop();
+            }
+            ep = ids[0];
+            epDist = ds[0];
+            if (replace) {
+                // a node already in the graph finds itself
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    if (ids[i] != id) {
+                        ids[k] = ids[i];
+                        ds[k++] = ds[i];
+                    }
+                }
+                n = k;
+            }
+            int ns = select(s, ids, ds, n, m, sel);
+            if (replace) {
+                synchronized (lock(id)) {
+                    int[] arr = 0 == l ? links0 : upper[id][l - 1];
+                    int off = 0 == l ? id * (m0 + 1) : 0;
+                    System.arraycopy(sel, 0, arr, off + 1, ns);
+                    arr[off] = ns;
+                }
+            } else {
+                for (int i = 0; i < ns; i++) {
+                    link(s, id, sel[i], l);
+                }
+            }
+            for (int i = 0; i < ns; i++) {
+                link(s, sel[i], id, l);
+            }
+        }
+    }
+
+    /**
+     * Level of a node, drawn from a hash of its id so that it does not
+     * depend on which thread inserts it.
+     */
+    private int levelOf(int id) {
+        long z = (id + 1) * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z ^= z >>> 31;
+        double u = (z >>> 11) * 0x1.0p-53;
+        return (int) (-Math.log(1 - u) * mL);
+    }
+
+    private Object lock(int id) {
+        return locks[id & (locks.length - 1)];
+    }
+
+    /**
+     * Copy the links of a node.
+     *
+     * @return Number of links copied to out.
+     */
+    private int neighbours(int c, int l, int[] out) {
+        synchronized (lock(c)) {
+            int[] arr = 0 == l ? links0 : upper[c][l - 1];
+            int off = 0 == l ? c * (m0 + 1) : 0;
+            int n = arr[off];
+            System.arraycopy(arr, off + 1, out, 0, n);
+            return n;
+        }
+    }
+
+    /**
+     * Add a link if it is not there yet, pruning the list of the node if it
+     * is full.
+     */
+    private void link(Scratch s, int from, int to, int l) {
+        synchronized (lock(from)) {
+            int[] arr = 0 == l ? links0 : upper[from][l - 1];
+            int off = 0 == l ? from * (m0 + 1) : 0;
+            int max = 0 == l ? m0 : m;
+            int n = arr[off];
+            for (int i = 1; i <= n; i++) {
+                if (arr[off + i] == to) {
+                    return;
+                }
+            }
+            if (n < max) {
+                arr[off + 1 + n] = to;
+                arr[off] = n + 1;
+                return;
+            }
+            s.base = scratch(s.base, s.dims);
+            float[] b = normalized(s.vector(from, s.base), s.base);
+            int[] ids = new int[n + 1];
+            float[] ds = new float[n + 1];
+            for (int i = 0; i < n; i++) {
+                ids[i] = arr[off + 1 + i];
+            }
+            ids[n] = to;
+            for (int i = 0; i <= n; i++) {
+                ds[i] = dist(s, b, ids[i]);
+            }
+            sortByDist(ids, ds, n + 1);
+            int[] sel = new int[max];
+            int ns = select(s, ids, ds, n + 1, max, sel);
+            System.arraycopy(sel, 0, arr, off + 1, ns);
+            arr[off] = ns;
+        }
+    }
+
+    /**
+     * Neighbour selection heuristic: keep a candidate only if it is closer to
+     * the base than to any candidate kept so far.
+     *
+     * @param ids Candidates, sorted by distance to the base.
+     * @param ds Their distances.
+     * @param n Number of candidates.
+     * @param max Maximum to keep.
+     * @param out Receives the kept candidates.
+     * @return Number kept.
+     */
+    private int select(Scratch s, int[] ids, float[] ds, int n, int max, int[] out) {
+        int dims = s.dims;
+        if (null == s.picked || s.picked.length < m0 || s.picked[0].length != dims) {
+            s.picked = new float[m0][dims];
+        }
+        int ret = 0;
+        for (int i = 0; i < n && ret < max; i++) {
+            s.cand = scratch(s.cand, dims);
+            float[] c = normalized(s.vector(ids[i], s.cand), s.cand);
+            boolean good = true;
+            for (int j = 0; j < ret && good; j++) {
+                good = 1 - SimilaritySearch.dot(c, s.picked[j], dims) >= ds[i];
+            }
+            if (good) {
+                System.arraycopy(c, 0, s.picked[ret], 0, dims);
+                out[ret++] = ids[i];
+            }
+        }
+        return ret;
+    }
+
+    private int greedy(Scratch s, float[] q, int ep, float epDist, int l) {
+        for (boolean changed = true; changed;) {
+            changed = false;
+            int n = neighbours(ep, l, s.links);
+            for (int i = 0; i < n; i++) {
+                int nb = s.links[i];
+                float d = dist(s, q, nb);
+                if (d < epDist) {
+                    epDist = d;
+                    ep = nb;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Best-first search of one layer.
+     *
+     * @return Max-heap of the ef closest nodes found.
+     */
+    private Heap searchLayer(Scratch s, float[] q, int ep, float epDist, int ef, int l) {
+        if (s.visited.length < levels.length) {
+            s.visited = new int[levels.length];
+            s.stamp = 0;
+        }
+        if (++s.stamp == 0) {
+            Arrays.fill(s.visited, 0);
+            s.stamp = 1;
+        }
+        int[] visited = s.visited;
+        int stamp = s.stamp;
+        Heap cands = new Heap(ef + m0, false);
+        Heap res = new Heap(ef + 1, true);
+        visited[ep] = stamp;
+        cands.push(ep, epDist);
+        res.push(ep, epDist);
+        while (cands.size > 0) {
+            float cd = cands.topDist();
+            int c = cands.pop();
+            if (cd > res.topDist() && res.size >= ef) {
+                break;
+            }
+            int n = neighbours(c, l, s.links);
+            for (int i = 0; i < n; i++) {
+                int nb = s.links[i];
+                if (visited[nb] == stamp) {
+                    continue;
+                }
+                visited[nb] = stamp;
+                float d = dist(s, q, nb);
+                if (res.size < ef || d < res.topDist()) {
+                    cands.push(nb, d);
+                    res.push(nb, d);
+                    if (res.size > ef) {
+                        res.pop();
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    private float dist(Scratch s, float[] q, int id) {
+        s.cand = scratch(s.cand, q.length);
+        return 1 - SimilaritySearch.cosine(q, s.vector(id, s.cand), q.length);
+    }
+
+    private static float[] scratch(float[] a, int len) {
+        return null != a && a.length == len ? a : new float[len];
+    }
+
+    private static float[] normalized(float[] vec, float[] into) {
+        float norm = (float) Math.sqrt(SimilaritySearch.dot(vec, vec, vec.length));
+        float f = norm > 0 ? 1 / norm : 0;
+        for (int i = 0; i < vec.length; i++) {
+            into[i] = vec[i] * f;
+        }
+        return into;
+    }
+
+    private static void sortByDist(int[] ids, float[] ds, int n) {
+        for (int i = 1; i < n; i++) {
+            int id = ids[i];
+            float d = ds[i];
+            int j = i - 1;
+            for (; j >= 0 && ds[j] > d; j--) {
+                ids[j + 1] = ids[j];
+                ds[j + 1] = ds[j];
+            }
+            ids[j + 1] = id;
+            ds[j + 1] = d;
+        }
+    }
+
+    private void grow(int n) {
+        arrays.writeLock().lock();
+        try {
+            if (n > levels.length) {
+                int cap = Math.max(n, levels.length * 2);
+                levels = Arrays.copyOf(levels, cap);
+                upper = Arrays.copyOf(upper, cap);
+                links0 = Arrays.copyOf(links0, cap * (m0 + 1));
+            }
+        } finally {
+            arrays.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Save the graph, the vectors are not included.
+     *
+     * @param f Output file, replaced only once it is complete.
+     * @throws IOException If writing failed.
+     */
+    public void save(File f) throws IOException {
+        // no insert is half done while the write lock is held
+        arrays.writeLock().lock();
+        try {
+            write(f);
+        } finally {
+            arrays.writeLock().unlock();
+        }
+    }
+
+    private void write(File f) throws IOException {
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(size);
+            out.writeInt(entry);
+            out.writeInt(maxLevel);
+            for (int id = 0; id < size; id++) {
+                out.writeInt(levels[id]);
+                for (int l = 0; l <= levels[id]; l++) {
+                    int[] arr = 0 == l ? links0 : upper[id][l - 1];
+                    int off = 0 == l ? id * (m0 + 1) : 0;
+                    for (int i = 0; i <= arr[off]; i++) {
+                        out.writeInt(arr[off + i]);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a saved graph.
+     *
+     * @param f The file.
+     * @param store The vectors it was built over.
+     * @return The index.
+     * @throws IOException If the file cannot be read, is not an index or is
+     * larger than the store.
+     */
+    public static HnswIndex load(File f, VectorStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not an HNSW index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(f + " has version " + version + ", expected " + VERSION);
+            }
+            HnswIndex ret = new HnswIndex(store, in.readInt(), in.readInt(), in.readInt());
+            int n = in.readInt();
+            if (n > store.size()) {
+                throw new IOException(f + " indexes " + n + " fragments, the session has " + store.size());
+            }
+            ret.entry = in.readInt();
+            ret.maxLevel = in.readInt();
+            ret.grow(n);
+            for (int id = 0; id < n; id++) {
+                int level = in.readInt();
+                ret.levels[id] = level;
+                if (level > 0) {
+                    ret.upper[id] = new int[level][ret.m + 1];
+                }
+                for (int l = 0; l <= level; l++) {
+                    int[] arr = 0 == l ? ret.links0 : ret.upper[id][l - 1];
+                    int off = 0 == l ? id * (ret.m0 + 1) : 0;
+                    int cnt = in.readInt();
+                    arr[off] = cnt;
+                    for (int i = 1; i <= cnt; i++) {
+                        arr[off + i] = in.readInt();
+                    }
+                }
+            }
+            ret.claimed = n;
+            ret.size = n;
+            ret.done.set(0, n);
+            return ret;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int levelCount;
+        synchronized (top) {
+            levelCount = maxLevel + 1;
+        }
+        return String.format("HnswIndex{%d nodes, M=%d, efConstruction=%d, efSearch=%d, levels=%d}",
+                size, m, efConstruction, efSearch, levelCount);
+    }
+
+    /**
+     * Buffers of one thread, and its copy of the pages of the store so that
+     * reading a vector does not take the monitor of the store.
+     */
+    private class Scratch {
+
+        final int[] links = new int[m0];
+        int[] visited = new int[0];
+        int stamp;
+        float[] query;
+        float[] cand;
+        float[] base;
+        float[][] picked;
+        VectorStore.Encoding enc;
+        ByteBuffer[] pages;
+        /**
+         * Text length per fragment, 0 for an empty one.
+         */
+        int[] lens;
+        int rowsPerPage;
+        int rowBytes;
+        int dims;
+
+        /**
+         * Take a new copy of the pages, which {@link VectorStore#set} may
+         * have replaced.
+         */
+        void refresh() {
+            synchronized (store) {
+                enc = store.encoding;
+                pages = store.pages.toArray(new ByteBuffer[0]);
+                lens = store.textLen;
+                rowsPerPage = store.rowsPerPage;
+                rowBytes = store.rowBytes;
+                dims = store.dims;
+            }
+        }
+
+        /**
+         * @param into Receives the vector, its length is the dimensions.
+         */
+        float[] vector(int id, float[] into) {
+            if (null == pages || id / rowsPerPage >= pages.length) {
+                refresh();
+            }
+            VectorStore.decode(enc, pages[id / rowsPerPage], (id % rowsPerPage) * rowBytes, into);
+            return into;
+        }
+    }
+
+    /**
+     * Binary heap of (node, distance), min or max on distance.
+     */
+    private static class Heap {
+
+        final boolean max;
+        int[] ids;
+        float[] ds;
+        int size;
+
+        Heap(int cap, boolean max) {
+            this.max = max;
+            ids = new int[cap];
+            ds = new float[cap];
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        void push(int id, float d) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                ds = Arrays.copyOf(ds, size * 2);
+            }
+            int c = size++;
+            while (c > 0) {
+                int p = (c - 1) / 2;
+                if (!above(d, ds[p])) {
+                    break;
+                }
+                ids[c] = ids[p];
+                ds[c] = ds[p];
+                c = p;
+            }
+            ids[c] = id;
+            ds[c] = d;
+        }
+
+        float topDist() {
+            return ds[0];
+        }
+
+        int pop() {
+            int ret = ids[0];
+            size--;
+            int id = ids[size];
+            float d = ds[size];
+            int c = 0;
+            while (true) {
+                int l = 2 * c + 1;
+                if (l >= size) {
+                    break;
+                }
+                int b = l + 1 < size && above(ds[l + 1], ds[l]) ? l + 1 : l;
+                if (!above(ds[b], d)) {
+                    break;
+                }
+                ids[c] = ids[b];
+                ds[c] = ds[b];
+                c = b;
+            }
+            if (size > 0) {
+                ids[c] = id;
+                ds[c] = d;
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package nl.infcomtec.embedding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts Java source along its structure.
+ * <p>
+ * At the top of a file the units are the package and import statements and
+ * the type declarations. A unit is a run of code up to a ';' or a closing
+ * '}' at the outer level, together with the comments and annotations in
+ * front of it. A unit over the maximum is opened up: its header up to the
+ * first '{' becomes one unit and the members in its body, or the statements
+ * in a method body, become the next units, and so on. What still does not
+ * fit, like a huge field initializer, is cut by lines. Finally neighbouring
+ * units are merged while one of them is shorter than a quarter of the
+ * maximum and the result fits, so imports and fields end up together instead
+ * of in tiny chunks. Strings, character literals, text blocks and comments are
+ * skipped while looking for braces and semicolons.
+ *
+ * @author walter
+ */
+public class JavaChunker implements Chunker {
+
+    private final int max;
+
+    /**
+     * @param max Maximum characters per chunk.
+     */
+    public JavaChunker(int max) {
+        this.max = Math.max(1, max);
+    }
+
+    @Override
+    public void chunk(CharSequence text, Sink sink) {
+        final List<int[]> units = new ArrayList<>();
+        split(text, 0, text.length(), units);
+        int small = max / 4;
+        int cs = -1;
+        int ce = -1;
+        for (int[] u : units) {
+            if (cs >= 0 && u[0] == ce && u[1] - cs <= max && (ce - cs < small || u[1] - u[0] < small)) {
+                ce = u[1];
+            } else {
+                emit(text, cs, ce, sink);
+                cs = u[0];
+                ce = u[1];
+            }
+        }
+        emit(text, cs, ce, sink);
+    }
+
+    /**
+     * Pass a chunk on without surrounding white space.
+     */
+    private static void emit(CharSequence text, int start, int end, Sink sink) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (end > start) {
+            sink.accept(start, end - start);
+        }
+    }
+
+    /**
+     * Add the units of a range, opening up those over the maximum.
+     */
+    private void split(CharSequence text, int from, int to, final List<int[]> units) {
+        int start = from;
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            int skip = skip(text, i, to);
+            if (skip > i) {
+                i = skip - 1;
+                continue;
+            }
+            char c = text.charAt(i);
+            if ('{' == c) {
+                depth++;
+            } else if ('}' == c) {
+                depth = Math.max(0, depth - 1);
+                if (0 == depth) {
+                    unit(text, start, i + 1, units);
+                    start = i + 1;
+                }
+            } else if (';' == c && 0 == depth) {
+                unit(text, start, i + 1, units);
+                start = i + 1;
+            }
+        }
+        if (start < to) {
+            unit(text, start, to, units);
+        }
+    }
+
+    private void unit(CharSequence text, int from, int to, final List<int[]> units) {
+        if (to - from <= max) {
+            units.add(new int[]{from, to});
+            return;
+        }
+        int brace = -1;
+        for (int i = from; i < to && brace < 0; i++) {
+            int skip = skip(text, i, to);
+            if (skip > i) {
+                i = skip - 1;
+            } else if ('{' == text.charAt(i)) {
+                brace = i;
+            }
+        }
+        if (brace >= 0 && '}' == text.charAt(to - 1) && brace < to - 1) {
+            lines(text, from, brace + 1, units);
+            split(text, brace + 1, to - 1, units);
+            units.add(new int[]{to - 1, to});
+        } else {
+            lines(text, from, to, units);
+        }
+    }
+
+    private void lines(CharSequence text, int from, int to, final List<int[]> units) {
+        if (to - from <= max) {
+            units.add(new int[]{from, to});
+            return;
+        }
+        new Lines(max).chunk(text, from, to, new Sink() {
+            @Override
+            public void accept(int start, int length) {
+                units.add(new int[]{start, start + length});
+            }
+        });
+    }
+
+    /**
+     * @param text The source.
+     * @param i Position in code.
+     * @param to End of the range.
+     * @return Position after the comment or literal starting at i, or i if
+     * none starts there.
+     */
+    static int skip(CharSequence text, int i, int to) {
+        char c = text.charAt(i);
+        char n = i + 1 < to ? text.charAt(i + 1) : 0;
+        if ('/' == c && '/' == n) {
+            while (i < to && text.charAt(i) != '\n') {
+                i++;
+            }
+            return i;
+        }
+        if ('/' == c && '*' == n) {
+            for (i += 2; i + 1 < to; i++) {
+                if ('*' == text.charAt(i) && '/' == text.charAt(i + 1)) {
+                    return i + 2;
+                }
+            }
+            return to;
+        }
+        if ('"' == c && '"' == n && i + 2 < to && '"' == text.charAt(i + 2)) {
+            for (i += 3; i + 2 < to; i++) {
+                if ('\\' == text.charAt(i)) {
+                    i++;
+                } else if ('"' == text.charAt(i) && '"' == text.charAt(i + 1) && '"' == text.charAt(i + 2)) {
+                    return i + 3;
+                }
+            }
+            return to;
+        }
+        if ('"' == c || '\'' == c) {
+            for (i++; i < to; i++) {
+                char d = text.charAt(i);
+                if ('\\' == d) {
+                    i++;
+                } else if (c == d || '\n' == d) {
+                    return i + 1;
+                }
+            }
+            return to;
+        }
+        return i;
+    }
+}
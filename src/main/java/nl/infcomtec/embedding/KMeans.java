@@ -0,0 +1,419 @@
+package nl.infcomtec.embedding;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Mini-batch k-means over the vectors of a {@link VectorStore}.
+ * <p>
+ * Vectors are normalized first, so the clusters group by direction like the
+ * cosine search does. Centroids are seeded with k-means++ on a sample, then
+ * moved by random mini-batches with a per-centroid learning rate (Sculley,
+ * "Web-scale k-means clustering"). Assigning a batch, and finally all
+ * vectors, to the nearest centroid is split over the fork/join pool; the
+ * centroid update is sequential and cheap.
+ * <p>
+ * Empty fragments, left by files that shrank or went away, are not
+ * clustered; their label is -1.
+ *
+ * @author walter
+ */
+public class KMeans {
+
+    /**
+     * Progress callback, called on the thread running {@link #run()}.
+     */
+    public interface Listener {
+
+        /**
+         * @param iteration Iteration number, from 1.
+         * @param nanos Time taken by the iteration.
+         * @param inertia Mean squared distance of the batch to its centroids.
+         */
+        void iteration(int iteration, long nanos, double inertia);
+    }
+
+    /**
+     * Vectors per fork/join leaf.
+     */
+    private static final int LEAF = 256;
+    private final VectorStore store;
+    private final int k;
+    private int batchSize = 4096;
+    private int iterations = 100;
+    private long seed = 42;
+    private Listener listener;
+    private float[][] centroids;
+    private float[] centroidNorms;
+    private int[] labels;
+    private float[] dists;
+    private double inertia;
+
+    /**
+     * @param store The vectors.
+     * @param k Number of clusters.
+     */
+    public KMeans(VectorStore store, int k) {
+        this.store = store;
+        this.k = Math.max(1, k);
+    }
+
+    /**
+     * @param batchSize Vectors per mini-batch, default 4096.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param iterations Number of mini-batches, default 100.
+     */
+    public void setIterations(int iterations) {
+        this.iterations = Math.max(0, iterations);
+    }
+
+    /**
+     * @param seed Seed for sampling, default 42.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param listener Receives the progress, may be null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Fit the centroids and assign every vector in the store.
+     *
+     * @return Cluster per fragment.
+     */
+    public int[] run() {
+        int total = store.size();
+        int[] live = new int[total];
+        int n = 0;
+        for (int i = 0; i < total; i++) {
+            if (store.getLength(i) > 0) {
+                live[n++] = i;
+            }
+        }
+        int dims = store.getDims();
+        Random rnd = new Random(seed);
+        int kk = Math.min(k, Math.max(1, n));
+        centroids = new float[kk][];
+        centroidNorms = new float[kk];
+        labels = new int[total];
+        dists = new float[total];
+        Arrays.fill(labels, -1);
+        if (0 == n) {
+            return labels;
+        }
+        seed(rnd, live, n, dims);
+        int b = Math.min(batchSize, n);
+        int[] batch = new int[b];
+        int[] bLabels = new int[b];
+        float[] bDists = new float[b];
+        long[] counts = new long[kk];
+        float[] vec = new float[dims];
+        for (int it = 1; it <= iterations; it++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < b; i++) {
+                batch[i] = live[rnd.nextInt(n)];
+            }
+            assign(batch, b, bLabels, bDists);
+            double sum = 0;
+            for (int i = 0; i < b; i++) {
+                int c = bLabels[i];
+                float[] cen = centroids[c];
+                float eta = 1f / ++counts[c];
+                normalized(batch[i], vec);
+                for (int d = 0; d < dims; d++) {
+                    cen[d] += eta * (vec[d] - cen[d]);
+                }
+                sum += bDists[i];
+            }
+            reassign(rnd, batch, bDists, counts, vec);
+            for (int c = 0; c < kk; c++) {
+                centroidNorms[c] = SimilaritySearch.dot(centroids[c], centroids[c], dims);
+            }
+            if (null != listener) {
+                listener.iteration(it, System.nanoTime() - t0, sum / b);
+            }
+        }
+        int[] lab = new int[n];
+        float[] dst = new float[n];
+        assign(live, n, lab, dst);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            labels[live[i]] = lab[i];
+            dists[live[i]] = dst[i];
+            sum += dst[i];
+        }
+        inertia = sum / n;
+        return labels;
+    }
+
+    /**
+     * Move centroids that attract almost nothing to batch vectors drawn by
+     * their distance, as starved centroids are usually a seed too many in one
+     * cluster while another cluster got none.
+     */
+    private void reassign(Random rnd, int[] batch, float[] bDists, long[] counts, float[] vec) {
+        long most = 0;
+        for (long c : counts) {
+            most = Math.max(most, c);
+        }
+        double total = 0;
+        for (float d : bDists) {
+            total += d;
+        }
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] < most / 100 && total > 0) {
+                normalized(batch[draw(rnd, bDists, total)], vec);
+                System.arraycopy(vec, 0, centroids[c], 0, vec.length);
+                centroidNorms[c] = SimilaritySearch.dot(vec, vec, vec.length);
+                counts[c] = most / 100;
+            }
+        }
+    }
+
+    /**
+     * Greedy k-means++ on a sample of at most 50 vectors per cluster: of a
+     * few candidates drawn for each centroid the one that lowers the total
+     * distance most is kept.
+     */
+    private void seed(Random rnd, int[] live, int n, int dims) {
+        int kk = centroids.length;
+        int s = Math.min(n, Math.max(kk, 50 * kk));
+        float[][] sample = new float[s][dims];
+        for (int i = 0; i < s; i++) {
+            normalized(live[s == n ? i : rnd.nextInt(n)], sample[i]);
+        }
+        int trials = 2 + (int) Math.log(kk);
+        float[] best = new float[s];
+        float[] cand = new float[s];
+        float[] keep = new float[s];
+        Arrays.fill(best, 2);
+        double total = 2.0 * s;
+        for (int c = 0; c < kk; c++) {
+            double bestTotal = Double.MAX_VALUE;
+            int bestPick = 0;
+            for (int t = 0; t < (0 == c ? 1 : trials); t++) {
+                int pick = 0 == c ? rnd.nextInt(s) : draw(rnd, best, total);
+                centroids[c] = sample[pick];
+                centroidNorms[c] = SimilaritySearch.dot(sample[pick], sample[pick], dims);
+                double sum = 0;
+                for (int i = 0; i < s; i++) {
+                    cand[i] = Math.min(best[i], Math.max(0, dist(sample[i], c)));
+                    sum += cand[i];
+                }
+                if (sum < bestTotal) {
+                    bestTotal = sum;
+                    bestPick = pick;
+                    System.arraycopy(cand, 0, keep, 0, s);
+                }
+            }
+            centroids[c] = sample[bestPick].clone();
+            centroidNorms[c] = SimilaritySearch.dot(centroids[c], centroids[c], dims);
+            System.arraycopy(keep, 0, best, 0, s);
+            total = bestTotal;
+        }
+    }
+
+    /**
+     * @return Index drawn with probability proportional to its weight.
+     */
+    private static int draw(Random rnd, float[] weight, double total) {
+        double r = rnd.nextDouble() * total;
+        for (int i = 0; i < weight.length; i++) {
+            r -= weight[i];
+            if (r <= 0) {
+                return i;
+            }
+        }
+        return weight.length - 1;
+    }
+
+    /**
+     * Assign vectors to their nearest centroid in parallel.
+     *
+     * @param idx Fragments to assign.
+     * @param n Number of vectors.
+     * @param lab Receives the clusters.
+     * @param dst Receives the squared distances.
+     */
+    private void assign(int[] idx, int n, int[] lab, float[] dst) {
+        ForkJoinPool.commonPool().invoke(new Assign(idx, 0, n, lab, dst));
+    }
+
+    private class Assign extends RecursiveAction {
+
+        final int[] idx;
+        final int from;
+        final int to;
+        final int[] lab;
+        final float[] dst;
+
+        Assign(int[] idx, int from, int to, int[] lab, float[] dst) {
+            this.idx = idx;
+            this.from = from;
+            this.to = to;
+            this.lab = lab;
+            this.dst = dst;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Assign(idx, from, mid, lab, dst), new Assign(idx, mid, to, lab, dst));
+                return;
+            }
+            float[] vec = new float[store.getDims()];
+            float[] d4 = new float[4];
+            for (int i = from; i < to; i++) {
+                normalized(idx[i], vec);
+                int bestC = 0;
+                float bestD = Float.MAX_VALUE;
+                int c = 0;
+                // four centroids at a time, each element of vec is loaded once
+                for (; c + 3 < centroids.length; c += 4) {
+                    dot4(vec, c, d4);
+                    for (int j = 0; j < 4; j++) {
+                        float d = 1 + centroidNorms[c + j] - 2 * d4[j];
+                        if (d < bestD) {
+                            bestD = d;
+                            bestC = c + j;
+                        }
+                    }
+                }
+                for (; c < centroids.length; c++) {
+                    float d = dist(vec, c);
+                    if (d < bestD) {
+                        bestD = d;
+                        bestC = c;
+                    }
+                }
+                lab[i] = bestC;
+                dst[i] = Math.max(0, bestD);
+            }
+        }
+    }
+
+    /**
+     * Squared distance of a unit vector to a centroid.
+     */
+    private float dist(float[] unit, int c) {
+        return 1 + centroidNorms[c] - 2 * SimilaritySearch.dot(unit, centroids[c], unit.length);
+    }
+
+    private void dot4(float[] x, int c, float[] into) {
+        float[] c0 = centroids[c];
+        float[] c1 = centroids[c + 1];
+        float[] c2 = centroids[c + 2];
+        float[] c3 = centroids[c + 3];
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int d = 0; d < x.length; d++) {
+            float v = x[d];
+            s0 += v * c0[d];
+            s1 += v * c1[d];
+            s2 += v * c2[d];
+            s3 += v * c3[d];
+        }
+        into[0] = s0;
+        into[1] = s1;
+        into[2] = s2;
+        into[3] = s3;
+    }
+
+    private void normalized(int i, float[] into) {
+        store.get(i, into);
+        float norm = (float) Math.sqrt(SimilaritySearch.dot(into, into, into.length));
+        float f = norm > 0 ? 1 / norm : 0;
+        for (int d = 0; d < into.length; d++) {
+            into[d] *= f;
+        }
+    }
+
+    /**
+     * @return The centroids, after {@link #run()}.
+     */
+    public float[][] getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * @return Cluster per fragment, -1 for an empty one, after
+     * {@link #run()}.
+     */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return Mean squared distance of all vectors to their centroid, after
+     * {@link #run()}.
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * @return Fragments ordered by cluster, nearest to the centroid first,
+     * the empty ones last, after {@link #run()}.
+     */
+    public int[] getOrder() {
+        int n = labels.length;
+        // the empty fragments are a bucket after the clusters
+        int buckets = centroids.length + 1;
+        int[] start = new int[buckets + 1];
+        for (int l : labels) {
+            start[bucket(l) + 1]++;
+        }
+        for (int c = 0; c < buckets; c++) {
+            start[c + 1] += start[c];
+        }
+        // distance bits sort like the distances as they are never negative
+        long[] keys = new long[n];
+        int[] fill = start.clone();
+        for (int i = 0; i < n; i++) {
+            keys[fill[bucket(labels[i])]++] = ((long) Float.floatToIntBits(dists[i]) << 32) | i;
+        }
+        int[] ret = new int[n];
+        for (int c = 0; c < buckets; c++) {
+            Arrays.sort(keys, start[c], start[c + 1]);
+        }
+        for (int i = 0; i < n; i++) {
+            ret[i] = (int) keys[i];
+        }
+        return ret;
+    }
+
+    private int bucket(int label) {
+        return label < 0 ? centroids.length : label;
+    }
+
+    /**
+     * @return Number of fragments per cluster, after {@link #run()}.
+     */
+    public int[] getSizes() {
+        int[] ret = new int[centroids.length];
+        for (int l : labels) {
+            if (l >= 0) {
+                ret[l]++;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KMeans{k=%d, batch=%d, iterations=%d, inertia=%.4f}",
+                k, batchSize, iterations, inertia);
+    }
+}
@@ -0,0 +1,54 @@
+package nl.infcomtec.embedding;
+
+import java.util.Arrays;
+
+/**
+ * Collects durations, like those of embedding requests, to report
+ * percentiles. Every sample is kept, 8 bytes each, so the percentiles are
+ * exact.
+ *
+ * @author walter
+ */
+public class Latencies {
+
+    private long[] nanos = new long[1024];
+    private int count;
+
+    /**
+     * @param took Duration in nanoseconds.
+     */
+    public synchronized void add(long took) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = took;
+    }
+
+    /**
+     * @return Number of samples.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param p Percentile, 0 to 100.
+     * @return The smallest sample with at least p percent of the samples at
+     * or below it, in nanoseconds, or 0 without samples.
+     */
+    public synchronized long percentile(double p) {
+        if (0 == count) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p / 100 * count);
+        return sorted[Math.min(count, Math.max(1, rank)) - 1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d requests, p50 %.1f ms, p99 %.1f ms",
+                count, percentile(50) / 1e6, percentile(99) / 1e6);
+    }
+}
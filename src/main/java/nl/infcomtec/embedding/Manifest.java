@@ -0,0 +1,244 @@
+package nl.infcomtec.embedding;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * What a scan of a directory tree saw: per file its size, modification time
+ * and a hash of its text, and where its fragments are in the
+ * {@link VectorStore} of the scan.
+ * <p>
+ * A rescan of the same root uses the manifest of the previous scan to skip
+ * reading files whose size and time did not change, and to reuse the
+ * fragments of files whose text hashes the same, without embedding them
+ * again. Only the file data is saved; the fragment positions are found again
+ * with {@link #index(VectorStore)}.
+ *
+ * @author walter
+ */
+public class Manifest {
+
+    private static final int MAGIC = 0x4d424d45; // "EMBM"
+    private static final int VERSION = 1;
+
+    /**
+     * One file.
+     */
+    public static class Entry {
+
+        public final String path;
+        /**
+         * Size in bytes, -1 for a file that is not completely in the store,
+         * see {@link #isDirty()}.
+         */
+        public final long size;
+        /**
+         * Last modified, milliseconds since the epoch.
+         */
+        public final long modified;
+        /**
+         * See {@link Manifest#hash(CharSequence)}.
+         */
+        public final long hash;
+        /**
+         * File index in the store, -1 if unknown.
+         */
+        int file = -1;
+        /**
+         * Its fragments in the store, in text order.
+         */
+        int[] fragments = new int[0];
+
+        public Entry(String path, long size, long modified, long hash) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        /**
+         * @return Whether some fragments of the file could not be embedded;
+         * the next scan reads and embeds it again.
+         */
+        public boolean isDirty() {
+            return size < 0;
+        }
+    }
+
+    private final String root;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param root The directory scanned.
+     */
+    public Manifest(String root) {
+        this.root = root;
+    }
+
+    /**
+     * 64-bit FNV-1a over the chars of a text; it only has to tell edited
+     * files apart, not resist attacks.
+     *
+     * @param text The text.
+     * @return The hash.
+     */
+    public static long hash(CharSequence text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return The directory scanned.
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @param e Entry to add or replace.
+     */
+    public synchronized void put(Entry e) {
+        entries.put(e.path, e);
+    }
+
+    /**
+     * @param path File name as stored.
+     * @return Its entry or null.
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return Number of files.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The file names, in the order they were added.
+     */
+    public synchronized List<String> getPaths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * @param path File name as stored.
+     * @return Its entry or null.
+     */
+    public synchronized Entry remove(String path) {
+        return entries.remove(path);
+    }
+
+    /**
+     * Find the files and fragments of the entries in a store. When a path
+     * was added to the store more than once, as the watch mode does, the
+     * last one counts; empty fragments are left out.
+     *
+     * @param store The vectors of the scan.
+     */
+    public synchronized void index(VectorStore store) {
+        for (Entry e : entries.values()) {
+            e.file = -1;
+            e.fragments = new int[0];
+        }
+        synchronized (store) {
+            for (int k = 0, n = store.getFileCount(); k < n; k++) {
+                Entry e = entries.get(store.getFileName(k));
+                if (null != e) {
+                    e.file = k;
+                }
+            }
+            int[] counts = new int[store.getFileCount()];
+            int[] owner = new int[store.size()];
+            for (int i = 0; i < owner.length; i++) {
+                owner[i] = store.getLength(i) > 0 ? store.getFileIndex(i) : -1;
+                if (owner[i] >= 0) {
+                    counts[owner[i]]++;
+                }
+            }
+            for (Entry e : entries.values()) {
+                if (e.file >= 0) {
+                    e.fragments = new int[counts[e.file]];
+                    counts[e.file] = 0;
+                }
+            }
+            for (int i = 0; i < owner.length; i++) {
+                Entry e = owner[i] < 0 ? null : entries.get(store.getFileName(owner[i]));
+                if (null != e && e.file == owner[i]) {
+                    e.fragments[counts[owner[i]]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the file data, replacing the file only once it is complete.
+     *
+     * @param f Output file.
+     * @throws IOException If writing failed.
+     */
+    public synchronized void save(File f) throws IOException {
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root);
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeUTF(e.path);
+                out.writeLong(e.size);
+                out.writeLong(e.modified);
+                out.writeLong(e.hash);
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load saved file data; call {@link #index(VectorStore)} before use.
+     *
+     * @param f The file.
+     * @return The manifest.
+     * @throws IOException If the file cannot be read or is not a manifest.
+     */
+    public static Manifest load(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a manifest");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(f + " has version " + version + ", expected " + VERSION);
+            }
+            Manifest ret = new Manifest(in.readUTF());
+            for (int i = in.readInt(); i > 0; i--) {
+                ret.put(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            return ret;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Manifest{%s, %d files}", root, entries.size());
+    }
+}
@@ -0,0 +1,404 @@
+package nl.infcomtec.embedding;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Two-dimensional positions for the fragments of a {@link VectorStore}.
+ * <p>
+ * Fragments are projected in store order with {@link #update()} or in the
+ * background with {@link #updateLater()}, each with a single pass over its
+ * vector, so points can be shown as soon as they are embedded.
+ * <p>
+ * With {@link Method#RANDOM} the two axes are fixed random directions and a
+ * position never changes. With {@link Method#PCA} the axes start out random
+ * and are replaced by the two principal components of a uniform sample of
+ * the fragments seen so far, each time the number of fragments has doubled
+ * since the last fit. All positions are then recomputed, which costs about as
+ * much as projecting every fragment twice over the whole scan; each fit bumps
+ * {@link #getVersion()}.
+ * <p>
+ * Empty fragments, left by files that shrank or went away, are not in the
+ * fits and have NaN for a position.
+ *
+ * @author walter
+ */
+public class Projection {
+
+    /**
+     * How the axes are chosen.
+     */
+    public enum Method {
+        RANDOM, PCA
+    }
+
+    /**
+     * Power iterations per fit.
+     */
+    private static final int ITERATIONS = 20;
+    /**
+     * Runs the background updates of all projections.
+     */
+    private static final ExecutorService PROJECTOR = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "Projection");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final VectorStore store;
+    private final Method method;
+    private final int sample;
+    private final Random rnd = new Random(42);
+    private float[] axisX;
+    private float[] axisY;
+    /**
+     * Subtracted before projecting; zero until the first fit.
+     */
+    private float[] mean;
+    private float[] xs = new float[1024];
+    private float[] ys = new float[1024];
+    private int size;
+    private int nextFit;
+    private int version;
+    /**
+     * Fits running, and the fragments reprojected while they were; the
+     * positions a fit computed for those are stale.
+     */
+    private int fits;
+    private final BitSet moved = new BitSet();
+    private float minX = Float.POSITIVE_INFINITY;
+    private float maxX = Float.NEGATIVE_INFINITY;
+    private float minY = Float.POSITIVE_INFINITY;
+    private float maxY = Float.NEGATIVE_INFINITY;
+    private float[] vec;
+
+    /**
+     * Projection configured by the system properties "embedding.projection"
+     * (RANDOM or PCA, default PCA) and "embedding.projection.sample"
+     * (fragments per fit, default 2000).
+     *
+     * @param store The vectors.
+     */
+    public Projection(VectorStore store) {
+        this(store, Method.valueOf(System.getProperty("embedding.projection", "PCA")),
+                Integer.getInteger("embedding.projection.sample", 2000));
+    }
+
+    /**
+     * @param store The vectors.
+     * @param method How the axes are chosen.
+     * @param sample Maximum number of fragments a fit looks at.
+     */
+    public Projection(VectorStore store, Method method, int sample) {
+        this.store = store;
+        this.method = method;
+        this.sample = Math.max(2, sample);
+        this.nextFit = Math.min(this.sample, 256);
+    }
+
+    /**
+     * Project the fragments of the store that have no position yet. A fit
+     * runs without holding the lock, so readers are not held up by it.
+     */
+    public void update() {
+        while (true) {
+            boolean refit;
+            synchronized (this) {
+                if (!projectNext()) {
+                    return;
+                }
+                refit = Method.PCA == method && size >= nextFit;
+                if (refit) {
+                    nextFit = size * 2;
+                }
+            }
+            if (refit) {
+                fit();
+            }
+        }
+    }
+
+    /**
+     * Run {@link #update()} on a background thread shared by all
+     * projections. Calls made while an update is waiting are merged.
+     */
+    public void updateLater() {
+        if (pending.compareAndSet(false, true)) {
+            PROJECTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.set(false);
+                    update();
+                }
+            });
+        }
+    }
+
+    /**
+     * Project a fragment again after its vector was replaced in the store.
+     * This counts as a change of the positions for {@link #getVersion()}.
+     *
+     * @param index Fragment index.
+     */
+    public synchronized void reproject(int index) {
+        if (index < size) {
+            project(index);
+            if (fits > 0) {
+                moved.set(index);
+            }
+            version++;
+        }
+    }
+
+    private boolean projectNext() {
+        if (size >= store.size()) {
+            return false;
+        }
+        if (null == axisX) {
+            int dims = store.getDims();
+            mean = new float[dims];
+            axisX = randomAxis(dims, null);
+            axisY = randomAxis(dims, axisX);
+        }
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, size * 2);
+            ys = Arrays.copyOf(ys, size * 2);
+        }
+        project(size++);
+        return true;
+    }
+
+    private void project(int i) {
+        if (0 == store.getLength(i)) {
+            setPosition(i, Float.NaN, Float.NaN);
+            return;
+        }
+        vec = store.get(i, vec);
+        setPosition(i, dot(vec, mean, axisX), dot(vec, mean, axisY));
+    }
+
+    private void setPosition(int i, float x, float y) {
+        xs[i] = x;
+        ys[i] = y;
+        if (Float.isNaN(x)) {
+            return;
+        }
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * @return Dot product of v minus mean with axis.
+     */
+    private static float dot(float[] v, float[] mean, float[] axis) {
+        float ret = 0;
+        for (int d = 0; d < v.length; d++) {
+            ret += (v[d] - mean[d]) * axis[d];
+        }
+        return ret;
+    }
+
+    private float[] randomAxis(int dims, float[] other) {
+        float[] ret = new float[dims];
+        for (int d = 0; d < dims; d++) {
+            ret[d] = (float) rnd.nextGaussian();
+        }
+        orthonormalize(ret, other);
+        return ret;
+    }
+
+    /**
+     * Make a unit vector of v, orthogonal to other if given.
+     */
+    private static void orthonormalize(float[] v, float[] other) {
+        if (null != other) {
+            float p = SimilaritySearch.dot(v, other, v.length);
+            for (int d = 0; d < v.length; d++) {
+                v[d] -= p * other[d];
+            }
+        }
+        float norm = (float) Math.sqrt(SimilaritySearch.dot(v, v, v.length));
+        float f = norm > 0 ? 1 / norm : 0;
+        for (int d = 0; d < v.length; d++) {
+            v[d] *= f;
+        }
+    }
+
+    /**
+     * Fit the axes to a sample of the projected fragments by orthogonal
+     * power iteration on the sample covariance, then project everything
+     * again.
+     */
+    private void fit() {
+        int n;
+        float[] ax;
+        float[] ay;
+        Random r;
+        synchronized (this) {
+            n = size;
+            // start from the current axes, so they do not flip between fits
+            ax = axisX.clone();
+            ay = axisY.clone();
+            r = new Random(rnd.nextLong());
+            fits++;
+        }
+        try {
+            fit(n, ax, ay, r);
+        } finally {
+            synchronized (this) {
+                if (0 == --fits) {
+                    moved.clear();
+                }
+            }
+        }
+    }
+
+    private void fit(int n, float[] ax, float[] ay, Random r) {
+        int[] live = new int[n];
+        int nl = 0;
+        for (int i = 0; i < n; i++) {
+            if (store.getLength(i) > 0) {
+                live[nl++] = i;
+            }
+        }
+        if (0 == nl) {
+            return;
+        }
+        int dims = ax.length;
+        int s = Math.min(nl, sample);
+        float[][] rows = new float[s][];
+        float[] m = new float[dims];
+        for (int i = 0; i < s; i++) {
+            rows[i] = store.get(live[s == nl ? i : r.nextInt(nl)], null);
+            for (int d = 0; d < dims; d++) {
+                m[d] += rows[i][d] / s;
+            }
+        }
+        for (float[] row : rows) {
+            for (int d = 0; d < dims; d++) {
+                row[d] -= m[d];
+            }
+        }
+        for (int it = 0; it < ITERATIONS; it++) {
+            float[] nx = new float[dims];
+            float[] ny = new float[dims];
+            for (float[] row : rows) {
+                float px = SimilaritySearch.dot(row, ax, dims);
+                float py = SimilaritySearch.dot(row, ay, dims);
+                for (int d = 0; d < dims; d++) {
+                    nx[d] += px * row[d];
+                    ny[d] += py * row[d];
+                }
+            }
+            orthonormalize(nx, null);
+            orthonormalize(ny, nx);
+            ax = nx;
+            ay = ny;
+        }
+        float[] px = new float[n];
+        float[] py = new float[n];
+        Arrays.fill(px, Float.NaN);
+        Arrays.fill(py, Float.NaN);
+        float[] v = null;
+        for (int j = 0; j < nl; j++) {
+            int i = live[j];
+            v = store.get(i, v);
+            px[i] = dot(v, m, ax);
+            py[i] = dot(v, m, ay);
+        }
+        synchronized (this) {
+            mean = m;
+            axisX = ax;
+            axisY = ay;
+            minX = minY = Float.POSITIVE_INFINITY;
+            maxX = maxY = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (moved.get(i)) {
+                    // replaced while fitting
+                    project(i);
+                } else {
+                    setPosition(i, px[i], py[i]);
+                }
+            }
+            // added by another thread meanwhile
+            for (int i = n; i < size; i++) {
+                project(i);
+            }
+            version++;
+        }
+    }
+
+    /**
+     * @return Number of fragments with a position.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Incremented each time existing positions change.
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param i Fragment index, less than {@link #size()}.
+     * @return Horizontal position, NaN for an empty fragment.
+     */
+    public synchronized float getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * @param i Fragment index, less than {@link #size()}.
+     * @return Vertical position, NaN for an empty fragment.
+     */
+    public synchronized float getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Copy positions, interleaved x and y.
+     *
+     * @param from First fragment.
+     * @param to One past the last fragment, at most {@link #size()}.
+     * @param into Receives 2 * (to - from) values.
+     */
+    public synchronized void get(int from, int to, float[] into) {
+        for (int i = from, o = 0; i < to; i++) {
+            into[o++] = xs[i];
+            into[o++] = ys[i];
+        }
+    }
+
+    /**
+     * @return Smallest rectangle holding all positions, null while there are
+     * none.
+     */
+    public synchronized Rectangle2D.Float getBounds() {
+        if (minX > maxX) {
+            return null;
+        }
+        return new Rectangle2D.Float(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /**
+     * @return The store the fragments come from.
+     */
+    public VectorStore getStore() {
+        return store;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Projection{%s, %d fragments, version %d}", method, size, version);
+    }
+}
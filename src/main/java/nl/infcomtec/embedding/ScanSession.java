@@ -0,0 +1,394 @@
+package nl.infcomtec.embedding;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a scan: where the vectors came from and the vectors.
+ * <p>
+ * A session is saved as one little-endian binary file:
+ * <pre>
+ * header    64 bytes: magic "EMBS", version, encoding, dims, fragments,
+ *           rows per page, files, text chars and the offsets of the
+ *           table, text and vector sections
+ * meta      host, model, then per file its name and text offset
+ * table     per fragment the text offset (long), then the lengths (int)
+ * text      UTF-16 chars, 8-byte aligned
+ * vectors   the rows of the vector pages back to back, 4K aligned
+ * </pre> Loading maps the text and vector sections instead of reading them,
+ * so even a very large session opens at once; vectors are only paged in when
+ * a tile is rendered.
+ * <p>
+ * An {@link HnswIndex} and a {@link Manifest}, if any, are saved next to the
+ * session with the extension ".hnsw" or ".manifest" added.
+ *
+ * @author walter
+ */
+public class ScanSession {
+
+    private static final int MAGIC = 0x534d4245; // "EMBS"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    /**
+     * Largest region mapped or written in one go.
+     */
+    private static final int CHUNK = 1 << 26;
+    private final String host;
+    private final String model;
+    private final VectorStore store;
+    private volatile HnswIndex index;
+    private volatile CorpusStats stats;
+    private volatile Projection projection;
+    private volatile Manifest manifest;
+
+    /**
+     * @param host Ollama endpoint the vectors came from.
+     * @param model Model name.
+     * @param store The vectors.
+     */
+    public ScanSession(String host, String model, VectorStore store) {
+        this.host = host;
+        this.model = model;
+        this.store = store;
+    }
+
+    /**
+     * @return Ollama endpoint the vectors came from.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return Model name.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return The vectors.
+     */
+    public VectorStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The approximate index over the vectors, or null.
+     */
+    public HnswIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @param index The approximate index over the vectors, or null.
+     */
+    public void setIndex(HnswIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return Per-dimension statistics of the vectors, or null.
+     */
+    public CorpusStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param stats Per-dimension statistics of the vectors, or null.
+     */
+    public void setStats(CorpusStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @return Map positions of the fragments, or null.
+     */
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @param projection Map positions of the fragments, or null.
+     */
+    public void setProjection(Projection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * @return What the scan saw of its files, or null if it is unknown or
+     * the scan did not complete.
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @param manifest What the scan saw of its files, or null.
+     */
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Save the session, replacing the file only once it is complete.
+     *
+     * @param f Output file.
+     * @throws IOException If writing failed.
+     */
+    public void save(File f) throws IOException {
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            synchronized (store) {
+                write(ch);
+            }
+            ch.force(true);
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // an index or manifest left from an earlier save would not match
+        HnswIndex idx = index;
+        if (null != idx) {
+            idx.save(indexFile(f));
+        } else {
+            Files.deleteIfExists(indexFile(f).toPath());
+        }
+        Manifest man = manifest;
+        if (null != man) {
+            man.save(manifestFile(f));
+        } else {
+            Files.deleteIfExists(manifestFile(f).toPath());
+        }
+    }
+
+    private static File indexFile(File f) {
+        return new File(f.getPath() + ".hnsw");
+    }
+
+    private static File manifestFile(File f) {
+        return new File(f.getPath() + ".manifest");
+    }
+
+    private void write(FileChannel ch) throws IOException {
+        VectorStore s = store;
+        int n = s.size;
+        int nFiles = s.files.size();
+        ByteBuffer meta = ByteBuffer.allocate(metaSize()).order(ByteOrder.LITTLE_ENDIAN);
+        putString(meta, host);
+        putString(meta, model);
+        for (int i = 0; i < nFiles; i++) {
+            putString(meta, s.files.get(i));
+            meta.putLong(s.fileStart[i]);
+        }
+        meta.flip();
+        long tablePos = align(HEADER + meta.remaining(), 8);
+        long textPos = align(tablePos + n * 12L, 8);
+        long vecPos = align(textPos + s.textSize * 2, 4096);
+        ByteBuffer hdr = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        hdr.putInt(MAGIC).putInt(VERSION).putInt(s.encoding.ordinal()).putInt(s.dims);
+        hdr.putInt(n).putInt(s.rowsPerPage).putInt(nFiles).putInt(0);
+        hdr.putLong(s.textSize).putLong(tablePos).putLong(textPos).putLong(vecPos);
+        hdr.flip();
+        writeFully(ch, hdr, 0);
+        writeFully(ch, meta, HEADER);
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = tablePos;
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 8) {
+                pos = flush(ch, buf, pos);
+            }
+            buf.putLong(s.textStart[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 4) {
+                pos = flush(ch, buf, pos);
+            }
+            buf.putInt(s.textLen[i]);
+        }
+        flush(ch, buf, pos);
+        pos = textPos;
+        for (long done = 0; done < s.textSize;) {
+            CharBuffer block = s.text.get((int) (done / VectorStore.TEXT_BLOCK)).duplicate();
+            int len = (int) Math.min(VectorStore.TEXT_BLOCK, s.textSize - done);
+            block.position(0).limit(len);
+            while (block.hasRemaining()) {
+                int part = Math.min(block.remaining(), buf.remaining() / 2);
+                CharBuffer slice = block.slice();
+                slice.limit(part);
+                buf.asCharBuffer().put(slice);
+                buf.position(buf.position() + part * 2);
+                block.position(block.position() + part);
+                if (!buf.hasRemaining()) {
+                    pos = flush(ch, buf, pos);
+                }
+            }
+            done += len;
+        }
+        flush(ch, buf, pos);
+        pos = vecPos;
+        for (int p = 0; p < s.pages.size(); p++) {
+            int rows = Math.min(s.rowsPerPage, n - p * s.rowsPerPage);
+            ByteBuffer page = s.pages.get(p).duplicate();
+            page.position(0).limit(rows * s.rowBytes);
+            pos += writeFully(ch, page, pos);
+        }
+    }
+
+    private int metaSize() {
+        int ret = 8 + utf8(host).length + utf8(model).length;
+        for (String f : store.files) {
+            ret += 4 + utf8(f).length + 8;
+        }
+        return ret;
+    }
+
+    /**
+     * Open a saved session. The vectors and text are mapped read-only; a
+     * partial last page or text block is copied so the store can grow.
+     *
+     * @param f The session file.
+     * @return The session.
+     * @throws IOException If the file cannot be read or is not a session.
+     */
+    public static ScanSession load(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer hdr = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (hdr.getInt() != MAGIC) {
+                throw new IOException(f + " is not a scan session");
+            }
+            int version = hdr.getInt();
+            if (version != VERSION) {
+                throw new IOException(f + " has version " + version + ", expected " + VERSION);
+            }
+            VectorStore.Encoding enc = VectorStore.Encoding.values()[hdr.getInt()];
+            int dims = hdr.getInt();
+            int n = hdr.getInt();
+            int rowsPerPage = hdr.getInt();
+            int nFiles = hdr.getInt();
+            hdr.getInt();
+            long textSize = hdr.getLong();
+            long tablePos = hdr.getLong();
+            long textPos = hdr.getLong();
+            long vecPos = hdr.getLong();
+            int rowBytes = 4 + dims * enc.bytes;
+            if (n > 0 && vecPos + (long) n * rowBytes > ch.size()) {
+                throw new IOException(f + " is truncated");
+            }
+            ByteBuffer meta = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, tablePos - HEADER)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            String host = getString(meta);
+            String model = getString(meta);
+            List<String> files = new ArrayList<>(nFiles);
+            long[] fileStart = new long[nFiles];
+            for (int i = 0; i < nFiles; i++) {
+                files.add(getString(meta));
+                fileStart[i] = meta.getLong();
+            }
+            long[] textStart = new long[n];
+            int[] textLen = new int[n];
+            for (int i = 0; i < n;) {
+                int part = Math.min(n - i, CHUNK / 8);
+                ch.map(FileChannel.MapMode.READ_ONLY, tablePos + i * 8L, part * 8L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(textStart, i, part);
+                i += part;
+            }
+            for (int i = 0; i < n;) {
+                int part = Math.min(n - i, CHUNK / 4);
+                ch.map(FileChannel.MapMode.READ_ONLY, tablePos + n * 8L + i * 4L, part * 4L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(textLen, i, part);
+                i += part;
+            }
+            List<CharBuffer> text = new ArrayList<>();
+            for (long done = 0; done < textSize; done += VectorStore.TEXT_BLOCK) {
+                int len = (int) Math.min(VectorStore.TEXT_BLOCK, textSize - done);
+                CharBuffer block = ch.map(FileChannel.MapMode.READ_ONLY, textPos + done * 2, len * 2L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+                if (len < VectorStore.TEXT_BLOCK) {
+                    CharBuffer copy = CharBuffer.wrap(new char[VectorStore.TEXT_BLOCK]);
+                    copy.put(block);
+                    copy.clear();
+                    block = copy;
+                }
+                text.add(block);
+            }
+            List<ByteBuffer> pages = new ArrayList<>();
+            for (int first = 0; first < n; first += rowsPerPage) {
+                int rows = Math.min(rowsPerPage, n - first);
+                ByteBuffer page = ch.map(FileChannel.MapMode.READ_ONLY, vecPos + (long) first * rowBytes,
+                        (long) rows * rowBytes);
+                if (rows < rowsPerPage) {
+                    ByteBuffer copy = VectorStore.newPage(rowsPerPage * rowBytes);
+                    copy.put(page);
+                    copy.clear();
+                    page = copy;
+                }
+                pages.add(page.order(ByteOrder.LITTLE_ENDIAN));
+            }
+            ScanSession ret = new ScanSession(host, model, new VectorStore(enc, dims, rowsPerPage, pages, text,
+                    textSize, textStart, textLen, files, fileStart));
+            File idx = indexFile(f);
+            if (idx.exists()) {
+                ret.index = HnswIndex.load(idx, ret.store);
+            }
+            File man = manifestFile(f);
+            if (man.exists()) {
+                ret.manifest = Manifest.load(man);
+                ret.manifest.index(ret.store);
+            }
+            return ret;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScanSession{" + host + ", " + model + ", " + store + '}';
+    }
+
+    private static long align(long pos, int to) {
+        return (pos + to - 1) / to * to;
+    }
+
+    private static long flush(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        buf.flip();
+        pos += writeFully(ch, buf, pos);
+        buf.clear();
+        return pos;
+    }
+
+    private static int writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        int ret = buf.remaining();
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        return ret;
+    }
+
+    private static byte[] utf8(String s) {
+        return (null == s ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] b = utf8(s);
+        buf.putInt(b.length);
+        buf.put(b);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
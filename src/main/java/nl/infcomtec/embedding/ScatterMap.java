@@ -0,0 +1,204 @@
+package nl.infcomtec.embedding;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Scatter plot of the positions of a {@link Projection}, one dot per
+ * fragment, coloured by file.
+ * <p>
+ * Dots are drawn into an off-screen image that is only added to as fragments
+ * arrive; the image is redrawn from scratch only when the component is
+ * resized, when the projection was refitted or when a new dot falls outside
+ * the mapped area, which then grows by half. For every pixel the image keeps
+ * the last fragment drawn there, so a click maps to a fragment by looking
+ * around the pixel instead of at all positions. While showing, the
+ * projection is polled at most {@link #setMaxFps(int) maxFps} times per
+ * second.
+ *
+ * @author walter
+ */
+public class ScatterMap extends JComponent {
+
+    /**
+     * Radius in pixels within which a click picks a dot.
+     */
+    public static final int PICK_RADIUS = 4;
+    private static final int BATCH = 4096;
+    private final Projection projection;
+    private final Timer poll;
+    private BufferedImage img;
+    private int[] px;
+    /**
+     * Fragment plus one per pixel, 0 for none.
+     */
+    private int[] owner;
+    private int[] colours = new int[1024];
+    private final float[] xy = new float[2 * BATCH];
+    private Rectangle2D.Float area;
+    private int drawn;
+    private int version = -1;
+
+    /**
+     * @param projection The positions.
+     */
+    public ScatterMap(Projection projection) {
+        this.projection = projection;
+        setOpaque(true);
+        setBackground(Color.BLACK);
+        setPreferredSize(new Dimension(800, 800));
+        poll = new Timer(1000 / 30, (e) -> catchUp());
+    }
+
+    /**
+     * Limit the rate of repaints while fragments arrive.
+     *
+     * @param fps Maximum repaints per second, default 30.
+     */
+    public void setMaxFps(int fps) {
+        poll.setDelay(1000 / Math.max(1, fps));
+    }
+
+    /**
+     * @param p A point in this component.
+     * @return Index of the fragment nearest to it within
+     * {@link #PICK_RADIUS}, or -1.
+     */
+    public int indexAt(Point p) {
+        if (null == img) {
+            return -1;
+        }
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int best = -1;
+        int bestD = Integer.MAX_VALUE;
+        for (int y = Math.max(0, p.y - PICK_RADIUS); y <= Math.min(h - 1, p.y + PICK_RADIUS); y++) {
+            for (int x = Math.max(0, p.x - PICK_RADIUS); x <= Math.min(w - 1, p.x + PICK_RADIUS); x++) {
+                int d = (x - p.x) * (x - p.x) + (y - p.y) * (y - p.y);
+                if (owner[y * w + x] > 0 && d < bestD) {
+                    bestD = d;
+                    best = owner[y * w + x] - 1;
+                }
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        poll.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        poll.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Draw the dots added since the last call, or all of them if needed.
+     */
+    private void catchUp() {
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        int n = projection.size();
+        int v = projection.getVersion();
+        Rectangle2D.Float bounds = projection.getBounds();
+        if (null == bounds) {
+            return;
+        }
+        if (null == img || img.getWidth() != w || img.getHeight() != h || v != version
+                || !area.contains(bounds)) {
+            // grow by half around the points, so a few outliers do not redraw all
+            float gx = Math.max(bounds.width, 1e-6f) / 4;
+            float gy = Math.max(bounds.height, 1e-6f) / 4;
+            area = new Rectangle2D.Float(bounds.x - gx, bounds.y - gy, bounds.width + 2 * gx, bounds.height + 2 * gy);
+            if (null == img || img.getWidth() != w || img.getHeight() != h) {
+                img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+                px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+                owner = new int[w * h];
+            } else {
+                Arrays.fill(px, 0);
+                Arrays.fill(owner, 0);
+            }
+            version = v;
+            drawn = 0;
+        }
+        if (drawn == n) {
+            return;
+        }
+        if (n > colours.length) {
+            colours = Arrays.copyOf(colours, Math.max(n, colours.length * 2));
+        }
+        float sx = (w - 1) / area.width;
+        float sy = (h - 1) / area.height;
+        for (int from = drawn; from < n; from += BATCH) {
+            int to = Math.min(n, from + BATCH);
+            projection.get(from, to, xy);
+            for (int i = from; i < to; i++) {
+                if (Float.isNaN(xy[2 * (i - from)])) {
+                    // empty fragment
+                    continue;
+                }
+                int x = (int) ((xy[2 * (i - from)] - area.x) * sx);
+                int y = h - 1 - (int) ((xy[2 * (i - from) + 1] - area.y) * sy);
+                if (0 == colours[i]) {
+                    colours[i] = colour(i);
+                }
+                plot(x, y, w, h, colours[i], i + 1);
+            }
+        }
+        drawn = n;
+        repaint();
+    }
+
+    /**
+     * Draw a dot of 2x2 pixels.
+     */
+    private void plot(int x, int y, int w, int h, int colour, int who) {
+        for (int dy = 0; dy < 2; dy++) {
+            for (int dx = 0; dx < 2; dx++) {
+                int xx = x + dx;
+                int yy = y + dy;
+                if (xx >= 0 && yy >= 0 && xx < w && yy < h) {
+                    px[yy * w + xx] = colour;
+                    owner[yy * w + xx] = who;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A bright colour for the file of the fragment.
+     */
+    private int colour(int i) {
+        String file = projection.getStore().getFile(i);
+        // spread similar names over the colour wheel
+        float hue = null == file ? 0 : ((file.hashCode() * 0x9E3779B9) >>> 16) / 65536f;
+        return Color.HSBtoRGB(hue, 0.7f, 1f);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (null == img || img.getWidth() != getWidth() || img.getHeight() != getHeight()) {
+            catchUp();
+        }
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (null != img) {
+            g.drawImage(img, 0, 0, null);
+        }
+    }
+}
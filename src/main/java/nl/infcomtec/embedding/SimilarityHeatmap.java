@@ -0,0 +1,243 @@
+package nl.infcomtec.embedding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pairwise cosine similarity of all fragments of a {@link VectorStore}.
+ * <p>
+ * The N x N matrix is computed in square tiles of {@link #BLOCK} fragments
+ * and handed to a {@link TileSink} one tile at a time, so it is never held
+ * in memory. Only tiles on or above the diagonal are computed. Within a tile
+ * the dimensions are processed in slices of {@link #SLICE} so the rows being
+ * combined stay in cache. Workers claim a row of tiles at a time and keep the
+ * normalized vectors of that row loaded.
+ *
+ * @author walter
+ */
+public class SimilarityHeatmap {
+
+    /**
+     * Fragments per tile side.
+     */
+    public static final int BLOCK = 256;
+    /**
+     * Dimensions per inner slice.
+     */
+    public static final int SLICE = 256;
+
+    /**
+     * Receives computed tiles, called from several threads at once.
+     */
+    public interface TileSink {
+
+        /**
+         * @param row0 First fragment of the tile rows.
+         * @param col0 First fragment of the tile columns, at least row0.
+         * @param rows Number of rows.
+         * @param cols Number of columns.
+         * @param sims Similarities, row-major with BLOCK columns per row;
+         * reused after the call returns.
+         */
+        void accept(int row0, int col0, int rows, int cols, float[] sims);
+    }
+
+    private final VectorStore store;
+    private final int workers;
+
+    /**
+     * @param store The vectors.
+     */
+    public SimilarityHeatmap(VectorStore store) {
+        this(store, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param store The vectors.
+     * @param workers Number of threads.
+     */
+    public SimilarityHeatmap(VectorStore store, int workers) {
+        this.store = store;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Compute all tiles on or above the diagonal.
+     *
+     * @param sink Receives the tiles.
+     */
+    public void compute(final TileSink sink) {
+        final int n = store.size();
+        final int dims = store.getDims();
+        final int nb = (n + BLOCK - 1) / BLOCK;
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = Math.min(workers, nb); w > 0; w--) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    float[] a = new float[BLOCK * dims];
+                    float[] b = new float[BLOCK * dims];
+                    float[] row = new float[dims];
+                    float[] sims = new float[BLOCK * BLOCK];
+                    for (int i = next.getAndIncrement(); i < nb; i = next.getAndIncrement()) {
+                        int rows = load(i * BLOCK, n, a, row);
+                        for (int j = i; j < nb; j++) {
+                            int cols = j == i ? rows : load(j * BLOCK, n, b, row);
+                            multiply(a, rows, j == i ? a : b, cols, dims, sims);
+                            sink.accept(i * BLOCK, j * BLOCK, rows, cols, sims);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Load a block of normalized vectors.
+     *
+     * @return Number of rows loaded.
+     */
+    private int load(int first, int n, float[] into, float[] row) {
+        int dims = row.length;
+        int rows = Math.min(BLOCK, n - first);
+        for (int r = 0; r < rows; r++) {
+            store.get(first + r, row);
+            float norm = (float) Math.sqrt(SimilaritySearch.dot(row, row, dims));
+            float f = norm > 0 ? 1 / norm : 0;
+            for (int k = 0, o = r * dims; k < dims; k++) {
+                into[o + k] = row[k] * f;
+            }
+        }
+        return rows;
+    }
+
+    private static void multiply(float[] a, int rows, float[] b, int cols, int dims, float[] sims) {
+        Arrays.fill(sims, 0);
+        for (int k0 = 0; k0 < dims; k0 += SLICE) {
+            int len = Math.min(SLICE, dims - k0);
+            for (int r = 0; r < rows; r++) {
+                int ao = r * dims + k0;
+                int c = 0;
+                // four columns at a time, each element of a is loaded once
+                for (; c + 3 < cols; c += 4) {
+                    int b0 = c * dims + k0;
+                    int b1 = b0 + dims;
+                    int b2 = b1 + dims;
+                    int b3 = b2 + dims;
+                    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                    for (int k = 0; k < len; k++) {
+                        float x = a[ao + k];
+                        s0 += x * b[b0 + k];
+                        s1 += x * b[b1 + k];
+                        s2 += x * b[b2 + k];
+                        s3 += x * b[b3 + k];
+                    }
+                    int o = r * BLOCK + c;
+                    sims[o] += s0;
+                    sims[o + 1] += s1;
+                    sims[o + 2] += s2;
+                    sims[o + 3] += s3;
+                }
+                for (; c < cols; c++) {
+                    sims[r * BLOCK + c] += dot(a, ao, b, c * dims + k0, len);
+                }
+            }
+        }
+    }
+
+    private static float dot(float[] a, int ao, float[] b, int bo, int len) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < len; i += 4) {
+            s0 += a[ao + i] * b[bo + i];
+            s1 += a[ao + i + 1] * b[bo + i + 1];
+            s2 += a[ao + i + 2] * b[bo + i + 2];
+            s3 += a[ao + i + 3] * b[bo + i + 3];
+        }
+        for (; i < len; i++) {
+            s0 += a[ao + i] * b[bo + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Render the matrix as an image of at most maxSize square. When there
+     * are more fragments than pixels a pixel shows the highest similarity of
+     * the fragments it covers, so near-duplicates stay visible.
+     *
+     * @param maxSize Maximum width and height.
+     * @return The heatmap, fragment order along both axes.
+     */
+    public BufferedImage toImage(int maxSize) {
+        final int n = store.size();
+        final int size = Math.max(1, Math.min(n, maxSize));
+        final float[] acc = new float[size * size];
+        Arrays.fill(acc, Float.NEGATIVE_INFINITY);
+        compute(new TileSink() {
+            @Override
+            public void accept(int row0, int col0, int rows, int cols, float[] sims) {
+                // pixels may be shared with neighbouring tiles
+                synchronized (acc) {
+                    for (int r = 0; r < rows; r++) {
+                        int y = pixel(row0 + r, n, size);
+                        for (int c = 0; c < cols; c++) {
+                            int x = pixel(col0 + c, n, size);
+                            float s = sims[r * BLOCK + c];
+                            if (s > acc[y * size + x]) {
+                                acc[y * size + x] = s;
+                            }
+                            if (s > acc[x * size + y]) {
+                                acc[x * size + y] = s;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        BufferedImage ret = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < px.length; i++) {
+            px[i] = TileRenderer.colour(acc[i] == Float.NEGATIVE_INFINITY ? 0 : acc[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * @param frag Fragment index.
+     * @param n Number of fragments.
+     * @param size Image size.
+     * @return Pixel showing the fragment.
+     */
+    public static int pixel(int frag, int n, int size) {
+        return (int) ((long) frag * size / n);
+    }
+
+    /**
+     * @param pixel Pixel coordinate.
+     * @param n Number of fragments.
+     * @param size Image size.
+     * @return First fragment shown by the pixel.
+     */
+    public static int fragment(int pixel, int n, int size) {
+        return (int) (((long) pixel * n + size - 1) / size);
+    }
+}
@@ -0,0 +1,358 @@
+package nl.infcomtec.embedding;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exact top-k search over the vectors of a {@link VectorStore}.
+ * <p>
+ * The vector pages are scanned in place, each worker claims whole pages and
+ * copies one row at a time into a reused float array, so the inner loop runs
+ * over contiguous floats and nothing is allocated per candidate. Every worker
+ * keeps its own bounded min-heap; the heaps are merged at the end. Empty
+ * fragments, left by files that shrank or went away, are never a hit.
+ *
+ * @author walter
+ */
+public class SimilaritySearch {
+
+    /**
+     * How to score a candidate.
+     */
+    public enum Metric {
+        /**
+         * Cosine similarity, -1 to 1.
+         */
+        COSINE,
+        /**
+         * Plain dot product.
+         */
+        DOT
+    }
+
+    /**
+     * One result.
+     */
+    public static class Hit {
+
+        /**
+         * Fragment index.
+         */
+        public final int index;
+        /**
+         * Its score, higher is more similar.
+         */
+        public final float score;
+
+        public Hit(int index, float score) {
+            this.index = index;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d (%.4f)", index, score);
+        }
+    }
+
+    private final VectorStore store;
+    private final int workers;
+
+    /**
+     * Search using all cores.
+     *
+     * @param store The vectors.
+     */
+    public SimilaritySearch(VectorStore store) {
+        this(store, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param store The vectors.
+     * @param workers Number of parallel scans.
+     */
+    public SimilaritySearch(VectorStore store, int workers) {
+        this.store = store;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Find the fragments most similar to another fragment.
+     *
+     * @param index The fragment.
+     * @param k Number of results, the fragment itself is not one of them.
+     * @return Up to k hits, best first.
+     */
+    public List<Hit> similarTo(int index, int k) {
+        return topK(store.get(index, null), k, Metric.COSINE, index);
+    }
+
+    /**
+     * Find the best matches for a vector.
+     *
+     * @param query The vector.
+     * @param k Number of results.
+     * @param metric How to score.
+     * @param skip Fragment to leave out, or -1.
+     * @return Up to k hits, best first.
+     */
+    public List<Hit> topK(float[] query, final int k, final Metric metric, final int skip) {
+        return topK(query, k, metric, skip, 0);
+    }
+
+    /**
+     * Find the best matches for a vector among the fragments from an index
+     * on, like those an {@link HnswIndex} does not have yet.
+     *
+     * @param query The vector.
+     * @param k Number of results.
+     * @param metric How to score.
+     * @param skip Fragment to leave out, or -1.
+     * @param from First fragment to consider.
+     * @return Up to k hits, best first.
+     */
+    public List<Hit> topK(float[] query, final int k, final Metric metric, final int skip, final int from) {
+        final int n;
+        final int rowsPerPage;
+        final int rowBytes;
+        final VectorStore.Encoding enc;
+        final ByteBuffer[] pages;
+        final int[] lens;
+        synchronized (store) {
+            n = store.size;
+            // set() changes the lengths in place, add() may only grow the array
+            lens = store.textLen;
+            rowsPerPage = store.rowsPerPage;
+            rowBytes = store.rowBytes;
+            enc = store.encoding;
+            pages = store.pages.toArray(new ByteBuffer[0]);
+            if (n > 0 && query.length != store.dims) {
+                throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + store.dims);
+            }
+        }
+        if (from >= n || k <= 0) {
+            return new ArrayList<>();
+        }
+        final float[] q = query.clone();
+        if (Metric.COSINE == metric) {
+            float norm = (float) Math.sqrt(dot(q, q, q.length));
+            for (int i = 0; i < q.length; i++) {
+                q[i] /= norm > 0 ? norm : 1;
+            }
+        }
+        final int nPages = (n + rowsPerPage - 1) / rowsPerPage;
+        final AtomicInteger next = new AtomicInteger(from / rowsPerPage);
+        List<Callable<TopK>> tasks = new ArrayList<>();
+        for (int w = Math.min(workers, nPages - from / rowsPerPage); w > 0; w--) {
+            tasks.add(new Callable<TopK>() {
+                @Override
+                public TopK call() {
+                    TopK top = new TopK(k);
+                    Scanner scan = new Scanner(enc, q.length, rowBytes);
+                    for (int p = next.getAndIncrement(); p < nPages; p = next.getAndIncrement()) {
+                        int first = p * rowsPerPage;
+                        scan.page(pages[p], first, Math.max(0, from - first), Math.min(rowsPerPage, n - first),
+                                lens, q, metric, skip, top);
+                    }
+                    return top;
+                }
+            });
+        }
+        TopK all = new TopK(k);
+        try {
+            for (Future<TopK> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                TopK t = f.get();
+                for (int i = 0; i < t.size; i++) {
+                    all.offer(t.idx[i], t.score[i]);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+        return all.toList();
+    }
+
+    static float dot(float[] a, float[] b, int len) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < len; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < len; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product and norm in one pass.
+     *
+     * @param q Normalized query.
+     * @param row Candidate.
+     * @param len Dimensions.
+     * @return Cosine similarity, 0 for a zero candidate.
+     */
+    static float cosine(float[] q, float[] row, int len) {
+        float d0 = 0, d1 = 0, n0 = 0, n1 = 0;
+        int i = 0;
+        for (; i + 1 < len; i += 2) {
+            float x0 = row[i];
+            float x1 = row[i + 1];
+            d0 += q[i] * x0;
+            d1 += q[i + 1] * x1;
+            n0 += x0 * x0;
+            n1 += x1 * x1;
+        }
+        if (i < len) {
+            d0 += q[i] * row[i];
+            n0 += row[i] * row[i];
+        }
+        float norm = (float) Math.sqrt(n0 + n1);
+        return norm > 0 ? (d0 + d1) / norm : 0;
+    }
+
+    /**
+     * Per-worker row decoder with reused scratch arrays.
+     */
+    private static class Scanner {
+
+        final VectorStore.Encoding enc;
+        final int dims;
+        final int rowBytes;
+        final float[] row;
+        final short[] halfs;
+        final byte[] bytes;
+
+        Scanner(VectorStore.Encoding enc, int dims, int rowBytes) {
+            this.enc = enc;
+            this.dims = dims;
+            this.rowBytes = rowBytes;
+            this.row = new float[dims];
+            this.halfs = VectorStore.Encoding.F16 == enc ? new short[dims] : null;
+            this.bytes = VectorStore.Encoding.I8 == enc ? new byte[dims] : null;
+        }
+
+        /**
+         * @param first Fragment index of the first row of the page.
+         * @param start First row to score.
+         * @param rows Rows in use.
+         * @param lens Text length per fragment, 0 for an empty one.
+         */
+        void page(ByteBuffer page, int first, int start, int rows, int[] lens, float[] q, Metric metric, int skip,
+                TopK top) {
+            ByteBuffer bb = page.duplicate().order(page.order());
+            // the views below start at the position of the page
+            bb.clear();
+            FloatBuffer fb = VectorStore.Encoding.F32 == enc ? bb.asFloatBuffer() : null;
+            ShortBuffer sb = VectorStore.Encoding.F16 == enc ? bb.asShortBuffer() : null;
+            for (int r = start; r < rows; r++) {
+                if (first + r == skip || 0 == lens[first + r]) {
+                    continue;
+                }
+                int pos = r * rowBytes;
+                float scale = bb.getFloat(pos);
+                switch (enc) {
+                    case F32:
+                        fb.position(pos / 4 + 1);
+                        fb.get(row);
+                        break;
+                    case F16: {
+                        sb.position(pos / 2 + 2);
+                        sb.get(halfs);
+                        for (int i = 0; i < dims; i++) {
+                            row[i] = VectorStore.fromHalf(halfs[i]);
+                        }
+                        break;
+                    }
+                    case I8:
+                        bb.position(pos + 4);
+                        bb.get(bytes);
+                        for (int i = 0; i < dims; i++) {
+                            row[i] = bytes[i];
+                        }
+                        break;
+                }
+                float d;
+                if (Metric.COSINE == metric) {
+                    d = cosine(q, row, dims);
+                } else {
+                    d = dot(q, row, dims) * scale;
+                }
+                top.offer(first + r, d);
+            }
+        }
+    }
+
+    /**
+     * Bounded min-heap on score in two primitive arrays.
+     */
+    private static class TopK {
+
+        final int[] idx;
+        final float[] score;
+        int size;
+
+        TopK(int k) {
+            idx = new int[k];
+            score = new float[k];
+        }
+
+        void offer(int i, float s) {
+            if (size < idx.length) {
+                int c = size++;
+                while (c > 0) {
+                    int p = (c - 1) / 2;
+                    if (score[p] <= s) {
+                        break;
+                    }
+                    idx[c] = idx[p];
+                    score[c] = score[p];
+                    c = p;
+                }
+                idx[c] = i;
+                score[c] = s;
+            } else if (s > score[0]) {
+                int c = 0;
+                while (true) {
+                    int l = 2 * c + 1;
+                    if (l >= size) {
+                        break;
+                    }
+                    int m = l + 1 < size && score[l + 1] < score[l] ? l + 1 : l;
+                    if (score[m] >= s) {
+                        break;
+                    }
+                    idx[c] = idx[m];
+                    score[c] = score[m];
+                    c = m;
+                }
+                idx[c] = i;
+                score[c] = s;
+            }
+        }
+
+        List<Hit> toList() {
+            Hit[] ret = new Hit[size];
+            for (int i = 0; i < size; i++) {
+                ret[i] = new Hit(idx[i], score[i]);
+            }
+            Arrays.sort(ret, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score)
+                    : Integer.compare(a.index, b.index));
+            return Arrays.asList(ret);
+        }
+    }
+}
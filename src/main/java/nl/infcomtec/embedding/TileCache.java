@@ -0,0 +1,81 @@
+package nl.infcomtec.embedding;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of tiles rendered on demand from a {@link VectorStore}.
+ * <p>
+ * Tiles are coloured relative to their own extremes or, given corpus
+ * statistics, by standard deviations from the corpus mean. In the latter case
+ * a tile reflects the statistics at the time it was rendered.
+ *
+ * @author walter
+ */
+public class TileCache {
+
+    private final VectorStore store;
+    private final CorpusStats stats;
+    private final LinkedHashMap<Integer, BufferedImage> tiles;
+    private float[] scratch;
+    private float[] z;
+
+    /**
+     * @param store Source of the vectors.
+     * @param maxTiles Maximum number of tiles to keep.
+     */
+    public TileCache(VectorStore store, int maxTiles) {
+        this(store, maxTiles, null);
+    }
+
+    /**
+     * @param store Source of the vectors.
+     * @param maxTiles Maximum number of tiles to keep.
+     * @param stats Corpus statistics to colour by, or null.
+     */
+    public TileCache(VectorStore store, final int maxTiles, CorpusStats stats) {
+        this.store = store;
+        this.stats = stats;
+        this.tiles = new LinkedHashMap<Integer, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage> eldest) {
+                return size() > maxTiles;
+            }
+        };
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return Its tile, do not modify.
+     */
+    public synchronized BufferedImage get(int index) {
+        BufferedImage ret = tiles.get(index);
+        if (null == ret) {
+            scratch = store.get(index, scratch);
+            if (null == stats || 0 == stats.getCount()) {
+                ret = TileRenderer.toImage(scratch);
+            } else {
+                ret = TileRenderer.toImage(z = stats.normalize(scratch, z), 3, null);
+            }
+            tiles.put(index, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Forget a tile whose vector was replaced.
+     *
+     * @param index Fragment index.
+     */
+    public synchronized void invalidate(int index) {
+        tiles.remove(index);
+    }
+
+    /**
+     * @return The store the tiles come from.
+     */
+    public VectorStore getStore() {
+        return store;
+    }
+}
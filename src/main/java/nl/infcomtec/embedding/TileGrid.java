@@ -0,0 +1,353 @@
+package nl.infcomtec.embedding;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.Timer;
+
+/**
+ * Scrollable grid of equally sized tiles, meant to live in a JScrollPane.
+ * <p>
+ * Tiles are laid out row by row to fill the width of the viewport. Only the
+ * tiles in the clip area are painted and a point maps to a tile index by
+ * arithmetic, so the cost of painting and clicking does not depend on the
+ * number of tiles. Call {@link #tilesAdded(int, int)} or
+ * {@link #tilesChanged()} on the EDT when the model changes.
+ * <p>
+ * Tiles are drawn once into atlas pages, strips of {@link #PAGE_ROWS} rows,
+ * and painting copies from those. Only pages near the viewport are kept, up to
+ * a memory budget. Appended tiles only mark their rows dirty; the dirty rows
+ * are repainted at most {@link #setMaxFps(int) maxFps} times per second.
+ *
+ * @author walter
+ */
+public class TileGrid extends JComponent implements Scrollable {
+
+    /**
+     * Source of the tiles, only called on the EDT.
+     */
+    public interface Model {
+
+        /**
+         * @return Number of tiles.
+         */
+        int size();
+
+        /**
+         * @param index Tile index.
+         * @return The tile.
+         */
+        BufferedImage getTile(int index);
+    }
+
+    /**
+     * Rows of tiles in one atlas page.
+     */
+    public static final int PAGE_ROWS = 8;
+    private final Model model;
+    private final LinkedHashMap<Integer, Page> pages = new LinkedHashMap<Integer, Page>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > maxPages();
+        }
+    };
+    private final Timer flush;
+    private int cellW = 64;
+    private int cellH = 64;
+    private int rows;
+    private int pageCols;
+    private long atlasBytes = 64L << 20;
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo;
+
+    /**
+     * @param model Source of the tiles.
+     */
+    public TileGrid(Model model) {
+        this.model = model;
+        setOpaque(true);
+        setBackground(Color.BLACK);
+        flush = new Timer(1000 / 30, (e) -> flush());
+        flush.setRepeats(false);
+    }
+
+    /**
+     * Limit the rate of repaints caused by {@link #tilesAdded(int, int)}.
+     *
+     * @param fps Maximum repaints per second, default 30.
+     */
+    public void setMaxFps(int fps) {
+        flush.setInitialDelay(1000 / Math.max(1, fps));
+    }
+
+    /**
+     * Set the memory budget for the atlas; at least two pages are kept
+     * regardless.
+     *
+     * @param bytes Budget, default 64 MB.
+     */
+    public void setAtlasBudget(long bytes) {
+        atlasBytes = bytes;
+        pages.clear();
+    }
+
+    /**
+     * Set the size of one cell; by default it is taken from the first tile.
+     *
+     * @param w Width.
+     * @param h Height.
+     */
+    public void setCellSize(int w, int h) {
+        cellW = Math.max(1, w);
+        cellH = Math.max(1, h);
+        tilesChanged();
+    }
+
+    /**
+     * @return Number of tiles per row.
+     */
+    public int getColumns() {
+        int w = getWidth();
+        if (w <= 0 && getParent() instanceof JViewport) {
+            w = getParent().getWidth();
+        }
+        return Math.max(1, w / cellW);
+    }
+
+    /**
+     * @param index Tile index.
+     * @return Bounds of the tile.
+     */
+    public Rectangle getTileBounds(int index) {
+        int cols = getColumns();
+        return new Rectangle((index % cols) * cellW, (index / cols) * cellH, cellW, cellH);
+    }
+
+    /**
+     * @param p A point in this component.
+     * @return Index of the tile under it or -1.
+     */
+    public int indexAt(Point p) {
+        int cols = getColumns();
+        int col = p.x / cellW;
+        if (p.x < 0 || p.y < 0 || col >= cols) {
+            return -1;
+        }
+        long index = (long) (p.y / cellH) * cols + col;
+        return index < model.size() ? (int) index : -1;
+    }
+
+    /**
+     * Tiles were appended to the model. The repaint is deferred and merged
+     * with other additions.
+     *
+     * @param from First new index.
+     * @param to One past the last new index.
+     */
+    public void tilesAdded(int from, int to) {
+        if (0 == from && to > 0) {
+            BufferedImage first = model.getTile(0);
+            if (first.getWidth() != cellW || first.getHeight() != cellH) {
+                cellW = first.getWidth();
+                cellH = first.getHeight();
+                tilesChanged();
+                return;
+            }
+        }
+        if (from < to) {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+            if (!flush.isRunning()) {
+                flush.start();
+            }
+        }
+    }
+
+    /**
+     * One tile of the model was replaced. It is redrawn in its atlas page, if
+     * that page is kept, and the repaint is merged like additions.
+     *
+     * @param index Tile index.
+     */
+    public void tileChanged(int index) {
+        int cols = getColumns();
+        Page page = cols == pageCols ? pages.get(index / (PAGE_ROWS * cols)) : null;
+        if (null != page && index < page.filled) {
+            int j = index - page.first;
+            Graphics2D g = page.img.createGraphics();
+            g.drawImage(model.getTile(index), (j % cols) * cellW, (j / cols) * cellH, null);
+            g.dispose();
+        }
+        dirtyFrom = Math.min(dirtyFrom, index);
+        dirtyTo = Math.max(dirtyTo, index + 1);
+        if (!flush.isRunning()) {
+            flush.start();
+        }
+    }
+
+    /**
+     * Anything in the model may have changed.
+     */
+    public void tilesChanged() {
+        flush.stop();
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = 0;
+        pages.clear();
+        updateRows();
+        repaint();
+    }
+
+    /**
+     * Repaint the rows touched since the last flush.
+     */
+    private void flush() {
+        if (dirtyFrom < dirtyTo) {
+            updateRows();
+            int cols = getColumns();
+            int r0 = dirtyFrom / cols;
+            int r1 = (dirtyTo - 1) / cols;
+            repaint(0, r0 * cellH, cols * cellW, (r1 - r0 + 1) * cellH);
+        }
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = 0;
+    }
+
+    private int maxPages() {
+        long page = (long) pageCols * cellW * PAGE_ROWS * cellH * 4;
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, atlasBytes / Math.max(1, page)));
+    }
+
+    /**
+     * Get an atlas page with all tiles of the model that fall in it drawn.
+     *
+     * @param p Page number.
+     * @param cols Current number of columns.
+     * @return The page.
+     */
+    private Page getPage(int p, int cols) {
+        if (cols != pageCols) {
+            pages.clear();
+            pageCols = cols;
+        }
+        Page page = pages.get(p);
+        if (null == page) {
+            page = new Page(new BufferedImage(cols * cellW, PAGE_ROWS * cellH, BufferedImage.TYPE_INT_RGB),
+                    p * PAGE_ROWS * cols);
+            pages.put(p, page);
+        }
+        int end = Math.min(model.size(), (p + 1) * PAGE_ROWS * cols);
+        if (page.filled < end) {
+            Graphics2D g = page.img.createGraphics();
+            for (int i = page.filled; i < end; i++) {
+                int j = i - page.first;
+                g.drawImage(model.getTile(i), (j % cols) * cellW, (j / cols) * cellH, null);
+            }
+            g.dispose();
+            page.filled = end;
+        }
+        return page;
+    }
+
+    private void updateRows() {
+        int cols = getColumns();
+        int n = (model.size() + cols - 1) / cols;
+        if (n != rows) {
+            rows = n;
+            revalidate();
+        }
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        boolean newWidth = width != getWidth();
+        super.setBounds(x, y, width, height);
+        if (newWidth) {
+            updateRows();
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (null == clip) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        int cols = getColumns();
+        int n = model.size();
+        if (0 == n) {
+            return;
+        }
+        int lastRow = (n - 1) / cols;
+        int p0 = clip.y / cellH / PAGE_ROWS;
+        int p1 = Math.min(lastRow, (clip.y + clip.height - 1) / cellH) / PAGE_ROWS;
+        for (int p = p0; p <= p1; p++) {
+            g.drawImage(getPage(p, cols).img, 0, p * PAGE_ROWS * cellH, null);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        int cols = getColumns();
+        int n = (model.size() + cols - 1) / cols;
+        return new Dimension(cols * cellW, n * cellH);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return SwingConstants.VERTICAL == orientation ? cellH : cellW;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        if (SwingConstants.VERTICAL == orientation) {
+            return Math.max(cellH, visibleRect.height / cellH * cellH);
+        }
+        return visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+
+    private static class Page {
+
+        final BufferedImage img;
+        /**
+         * Index of the first tile on the page.
+         */
+        final int first;
+        /**
+         * Tiles before this index have been drawn.
+         */
+        int filled;
+
+        Page(BufferedImage img, int first) {
+            this.img = img;
+            this.first = first;
+            this.filled = first;
+        }
+    }
+}
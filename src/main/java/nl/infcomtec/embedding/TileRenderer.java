@@ -0,0 +1,213 @@
+package nl.infcomtec.embedding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Renders embedding vectors as square-ish tiles, one pixel per dimension.
+ * <p>
+ * Negative values map to red, positive values to blue, both on a log scale
+ * relative to the extremes of the vector. Pixels are written as packed ints
+ * straight into the image raster using a colour lookup table.
+ *
+ * @author walter
+ */
+public final class TileRenderer {
+
+    /**
+     * Colours for negative values, indexed by the scaled magnitude.
+     */
+    private static final int[] NEG = new int[256];
+    /**
+     * Colours for positive values, indexed by the scaled magnitude.
+     */
+    private static final int[] POS = new int[256];
+    private static final ThreadLocal<double[]> SCRATCH = new ThreadLocal<>();
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            int g = 64 + v / 4;
+            NEG[v] = 0xFF000000 | (v << 16) | (g << 8);
+            POS[v] = 0xFF000000 | (g << 8) | v;
+        }
+    }
+
+    private TileRenderer() {
+    }
+
+    /**
+     * @param dims Number of dimensions.
+     * @return Width of the tile.
+     */
+    public static int width(int dims) {
+        return (int) Math.round(Math.sqrt(dims));
+    }
+
+    /**
+     * @param dims Number of dimensions.
+     * @return Height of the tile.
+     */
+    public static int height(int dims) {
+        int w = width(dims);
+        int h = dims / w;
+        if (w * h < dims) {
+            h++;
+        }
+        return h;
+    }
+
+    /**
+     * Render a vector into a new TYPE_INT_ARGB image.
+     *
+     * @param vec The vector.
+     * @return The tile.
+     */
+    public static BufferedImage toImage(double[] vec) {
+        return toImage(vec, null);
+    }
+
+    /**
+     * Render a vector into a new TYPE_INT_ARGB image.
+     *
+     * @param vec The vector.
+     * @return The tile.
+     */
+    public static BufferedImage toImage(float[] vec) {
+        return toImage(vec, null);
+    }
+
+    /**
+     * Render a vector, reusing an image if it has the right size and is of
+     * TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * @param vec The vector.
+     * @param reuse Image to render into, may be null.
+     * @return The tile, either reuse or a new TYPE_INT_ARGB image.
+     */
+    public static BufferedImage toImage(float[] vec, BufferedImage reuse) {
+        double[] d = SCRATCH.get();
+        if (null == d || d.length != vec.length) {
+            SCRATCH.set(d = new double[vec.length]);
+        }
+        for (int i = 0; i < vec.length; i++) {
+            d[i] = vec[i];
+        }
+        return toImage(d, reuse);
+    }
+
+    /**
+     * Render a vector, reusing an image if it has the right size and is of
+     * TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * @param vec The vector.
+     * @param reuse Image to render into, may be null.
+     * @return The tile, either reuse or a new TYPE_INT_ARGB image.
+     */
+    public static BufferedImage toImage(double[] vec, BufferedImage reuse) {
+        int w = width(vec.length);
+        int h = height(vec.length);
+        BufferedImage ret = isTarget(reuse, w, h) ? reuse : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        render(vec, px);
+        Arrays.fill(px, vec.length, w * h, 0);
+        return ret;
+    }
+
+    /**
+     * Render values on a fixed linear scale instead of relative to the
+     * extremes of the vector, so tiles can be compared with each other.
+     *
+     * @param vec The values, for instance z-scores from
+     * {@link CorpusStats#normalize}.
+     * @param range Values from -range to range use the full colour scale,
+     * beyond that they are clamped.
+     * @param reuse Image to render into, may be null.
+     * @return The tile, either reuse or a new TYPE_INT_ARGB image.
+     */
+    public static BufferedImage toImage(float[] vec, float range, BufferedImage reuse) {
+        int w = width(vec.length);
+        int h = height(vec.length);
+        BufferedImage ret = isTarget(reuse, w, h) ? reuse : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < vec.length; i++) {
+            px[i] = colour(vec[i] / range);
+        }
+        Arrays.fill(px, vec.length, w * h, 0);
+        return ret;
+    }
+
+    /**
+     * Render many vectors into one reused image. The sink must copy or draw
+     * the image before it returns.
+     *
+     * @param vectors The vectors.
+     * @param sink Receives each tile in turn.
+     */
+    public static void toImages(Iterable<float[]> vectors, Consumer<BufferedImage> sink) {
+        BufferedImage img = null;
+        for (float[] vec : vectors) {
+            img = toImage(vec, img);
+            sink.accept(img);
+        }
+    }
+
+    /**
+     * Fill packed ARGB pixels, same mapping as the original per-pixel code.
+     *
+     * @param vec The vector.
+     * @param px Destination, at least vec.length long.
+     */
+    static void render(double[] vec, int[] px) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double d : vec) {
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+        double rf = 255.0 / Math.log(-min);
+        double bf = 255 / Math.log(max);
+        for (int i = 0; i < vec.length; i++) {
+            double d = vec[i];
+            if (d < 0) {
+                px[i] = NEG[index(Math.log(-d) * rf)];
+            } else {
+                px[i] = POS[index(Math.log(d) * bf)];
+            }
+        }
+    }
+
+    /**
+     * Colour of a value in -1..1, red for negative, blue for positive, the
+     * same colours as the tiles.
+     *
+     * @param v The value.
+     * @return Packed ARGB.
+     */
+    static int colour(float v) {
+        return v < 0 ? NEG[index(-v * 255.0)] : POS[index(v * 255.0)];
+    }
+
+    /**
+     * Clamp to 0..255, NaN becomes 0 just like (int) NaN.
+     */
+    private static int index(double v) {
+        return v >= 255 ? 255 : (v > 0 ? (int) v : 0);
+    }
+
+    private static boolean isTarget(BufferedImage img, int w, int h) {
+        if (null == img || img.getWidth() != w || img.getHeight() != h) {
+            return false;
+        }
+        if (img.getType() != BufferedImage.TYPE_INT_ARGB && img.getType() != BufferedImage.TYPE_INT_RGB) {
+            return false;
+        }
+        WritableRaster r = img.getRaster();
+        return r.getSampleModelTranslateX() == 0 && r.getSampleModelTranslateY() == 0
+                && r.getDataBuffer().getOffset() == 0
+                && ((SinglePixelPackedSampleModel) r.getSampleModel()).getScanlineStride() == w;
+    }
+}
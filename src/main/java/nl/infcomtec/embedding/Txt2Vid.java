@@ -0,0 +1,135 @@
+package nl.infcomtec.embedding;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import nl.infcomtec.ffmpeg.Ffmpeg;
+import nl.infcomtec.ffmpeg.FfmpegProgress;
+import nl.infcomtec.ffmpeg.RawVideoEncoder;
+import nl.infcomtec.ffmpeg.SegmentedEncoder;
+
+/**
+ * Turns a text into a movie: every frame shows the embedding of the text up
+ * to and including one more character, of at most the last 256 characters.
+ * <p>
+ * Frames go to ffmpeg as raw video. With the system property
+ * "embedding.encodeWorkers" above 1 the vectors are collected first and the
+ * movie is encoded in segments in parallel; with "embedding.pngFrames" the
+ * frames are written as PNG files, for debugging, and encoded afterwards.
+ *
+ * @author walter
+ */
+public class Txt2Vid {
+
+    /**
+     * Name of the movie in the output directory.
+     */
+    public static final String MOVIE = "LLM_the_Movie.mp4";
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 360;
+
+    /**
+     * Told about the progress of the embedding.
+     */
+    public interface Listener {
+
+        /**
+         * @param frames Number of frames embedded so far.
+         */
+        void embedded(int frames);
+    }
+
+    private final CachedEmbeddings em;
+    private final FfmpegProgress progress;
+
+    /**
+     * @param em Source of the vectors.
+     * @param progress Receives the progress of ffmpeg.
+     */
+    public Txt2Vid(CachedEmbeddings em, FfmpegProgress progress) {
+        this.em = em;
+        this.progress = progress;
+    }
+
+    /**
+     * Make the movie; the directory must exist.
+     *
+     * @param input The text, one frame per character.
+     * @param dir Output directory.
+     * @param listener Told about the progress, or null.
+     * @return The movie.
+     * @throws Exception If embedding or encoding failed.
+     */
+    public File make(String input, File dir, Listener listener) throws Exception {
+        File movie = new File(dir, MOVIE);
+        // try for 10 second movie
+        int rate = input.length() / 10;
+        if (rate <= 0) {
+            rate = 1;
+        }
+        if (rate > 24) {
+            rate = 24;
+        }
+        // PNG frames are only written for debugging, normally ffmpeg gets raw frames
+        boolean png = Boolean.getBoolean("embedding.pngFrames");
+        int workers = png ? 1 : Integer.getInteger("embedding.encodeWorkers", 1);
+        BufferedImage out = new BufferedImage(WIDTH, HEIGHT,
+                png ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR);
+        // with several encode workers the vectors are kept and the frames rendered per segment
+        final List<float[]> vectors = new ArrayList<>();
+        try (RawVideoEncoder enc = png || workers > 1 ? null : new RawVideoEncoder(WIDTH, HEIGHT, rate, movie, progress)) {
+            StringBuilder chars = new StringBuilder();
+            int fNum = 0;
+            for (char ch : input.toCharArray()) {
+                chars.append(ch);
+                float[] vec = em.getVector(chars.toString());
+                if (workers > 1) {
+                    vectors.add(vec);
+                } else {
+                    drawFrame(vec, out);
+                    if (null == enc) {
+                        File frame = new File(dir, String.format("frm%04d.png", fNum));
+                        ImageIO.write(out, "png", frame);
+                    } else {
+                        enc.write(out);
+                    }
+                }
+                ++fNum;
+                if (null != listener) {
+                    listener.embedded(fNum);
+                }
+                while (chars.length() > 256) {
+                    chars.deleteCharAt(0);
+                }
+            }
+        }
+        if (workers > 1) {
+            SegmentedEncoder.encode(WIDTH, HEIGHT, rate, vectors.size(),
+                    (f, img) -> drawFrame(vectors.get(f), img), movie, workers, progress);
+        }
+        if (png) {
+            Ffmpeg.imgToMP4(dir, rate, new File(dir, "frm*.png").getPath(), movie, progress);
+        }
+        return movie;
+    }
+
+    /**
+     * Draw a vector as a movie frame.
+     *
+     * @param vec The vector.
+     * @param out The frame, reused so it is cleared first.
+     */
+    static void drawFrame(float[] vec, BufferedImage out) {
+        Image img = TileRenderer.toImage(vec).getScaledInstance(WIDTH, HEIGHT, BufferedImage.SCALE_DEFAULT);
+        Graphics2D gr = out.createGraphics();
+        gr.setBackground(Color.BLACK);
+        gr.clearRect(0, 0, WIDTH, HEIGHT);
+        gr.drawImage(img, 0, 0, null);
+        gr.dispose();
+    }
+}
@@ -0,0 +1,664 @@
+package nl.infcomtec.embedding;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact store of fragment vectors and their text, appended to by a scan.
+ * <p>
+ * Vectors live outside the Java heap in fixed-size pages, one row per
+ * fragment, encoded as float32, float16 or int8 with a per-row scale. Pages
+ * are direct buffers, which count against -XX:MaxDirectMemorySize, unless the
+ * system property "embedding.store.dir" names a directory: then every page is
+ * mapped from a temporary file there and left to the operating system to
+ * page in and out. The text
+ * of a fragment is an offset and length into a shared character buffer, so
+ * the overlapping fragments of a file share one copy of its content. One
+ * writer and any number of readers may use the store at the same time.
+ * <p>
+ * A fragment can be replaced in place with {@link #set(int, float[], long, int)},
+ * which the watch mode uses to keep the indices, and so the tile positions,
+ * of an edited file. The new content of a file is appended with
+ * {@link #addFile(String, CharSequence)} under the same name; {@link #compact()}
+ * drops the text no fragment uses any more.
+ * <p>
+ * The pages and text blocks may also be mapped from a session file, see
+ * {@link ScanSession}; they are copied to memory when first written to.
+ *
+ * @author walter
+ */
+public class VectorStore {
+
+    /**
+     * How a vector component is stored.
+     */
+    public enum Encoding {
+        /**
+         * 32-bit float, lossless.
+         */
+        F32(4),
+        /**
+         * 16-bit float relative to the largest magnitude of the vector.
+         */
+        F16(2),
+        /**
+         * Signed byte relative to the largest magnitude of the vector.
+         */
+        I8(1);
+
+        /**
+         * Bytes per component.
+         */
+        public final int bytes;
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Target size of one vector page.
+     */
+    public static final int PAGE_SIZE = 16 << 20;
+    /**
+     * Size of a block of the text buffer, in chars.
+     */
+    static final int TEXT_BLOCK = 1 << 20;
+    final Encoding encoding;
+    final ArrayList<ByteBuffer> pages = new ArrayList<>();
+    final ArrayList<CharBuffer> text = new ArrayList<>();
+    final ArrayList<String> files = new ArrayList<>();
+    int dims;
+    int rowBytes;
+    int rowsPerPage;
+    int size;
+    long textSize;
+    long[] textStart = new long[1024];
+    int[] textLen = new int[1024];
+    long[] fileStart = new long[64];
+
+    /**
+     * @param encoding How to store the vectors.
+     */
+    public VectorStore(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Store with the encoding named by the system property "embedding.store"
+     * (F32, F16 or I8, default F16, which halves the memory for a relative
+     * error of at most 2^-11 of the largest component).
+     */
+    public VectorStore() {
+        this(Encoding.valueOf(System.getProperty("embedding.store", Encoding.F16.name())));
+    }
+
+    /**
+     * Restore a store from its parts, used when loading a session.
+     *
+     * @param encoding How the vectors are stored.
+     * @param dims Dimensions.
+     * @param rowsPerPage Rows in a full page.
+     * @param pages Vector pages, all but the last full.
+     * @param text Text blocks, all but the last full.
+     * @param textSize Chars of text.
+     * @param textStart Text offset per fragment.
+     * @param textLen Text length per fragment.
+     * @param files File names.
+     * @param fileStart Text offset per file.
+     */
+    VectorStore(Encoding encoding, int dims, int rowsPerPage, List<ByteBuffer> pages, List<CharBuffer> text,
+            long textSize, long[] textStart, int[] textLen, List<String> files, long[] fileStart) {
+        this.encoding = encoding;
+        this.dims = dims;
+        this.rowBytes = 4 + dims * encoding.bytes;
+        this.rowsPerPage = rowsPerPage;
+        this.pages.addAll(pages);
+        this.text.addAll(text);
+        this.textSize = textSize;
+        this.size = textStart.length;
+        this.textStart = Arrays.copyOf(textStart, Math.max(1024, size));
+        this.textLen = Arrays.copyOf(textLen, Math.max(1024, size));
+        this.files.addAll(files);
+        this.fileStart = Arrays.copyOf(fileStart, Math.max(64, files.size()));
+    }
+
+    /**
+     * Append the content of a file to the shared buffer.
+     *
+     * @param path Name of the file.
+     * @param content The text.
+     * @return Offset of the text in the buffer.
+     */
+    public synchronized long addFile(String path, CharSequence content) {
+        if (files.size() == fileStart.length) {
+            fileStart = Arrays.copyOf(fileStart, files.size() * 2);
+        }
+        fileStart[files.size()] = textSize;
+        files.add(path);
+        return addText(content);
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return Name of the file the fragment came from, or null.
+     */
+    public synchronized String getFile(int index) {
+        int i = getFileIndex(index);
+        return i < 0 ? null : files.get(i);
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return Index of the file the fragment came from, or -1.
+     */
+    public synchronized int getFileIndex(int index) {
+        checkIndex(index);
+        return fileAt(textStart[index]);
+    }
+
+    /**
+     * @param start Offset in the text buffer.
+     * @return Index of the file the text at the offset belongs to, or -1.
+     */
+    private int fileAt(long start) {
+        int i = Arrays.binarySearch(fileStart, 0, files.size(), start);
+        if (i < 0) {
+            i = -i - 2;
+        } else {
+            // several empty files can share an offset, take the last
+            while (i + 1 < files.size() && fileStart[i + 1] == start) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @param file File index.
+     * @return Name of the file.
+     */
+    public synchronized String getFileName(int file) {
+        return files.get(file);
+    }
+
+    /**
+     * @param file File index.
+     * @return Offset of its text in the text buffer.
+     */
+    public synchronized long getFileStart(int file) {
+        if (file < 0 || file >= files.size()) {
+            throw new IndexOutOfBoundsException(file + " >= " + files.size());
+        }
+        return fileStart[file];
+    }
+
+    /**
+     * @param file File index.
+     * @return The text of the file.
+     */
+    public synchronized String getFileText(int file) {
+        return getText(getFileStart(file), getFileLength(file));
+    }
+
+    /**
+     * @param file File index.
+     * @return Length of its text.
+     */
+    public synchronized int getFileLength(int file) {
+        long start = getFileStart(file);
+        long end = file + 1 < files.size() ? fileStart[file + 1] : textSize;
+        return (int) (end - start);
+    }
+
+    /**
+     * @return Chars in the text buffer.
+     */
+    public synchronized long getTextSize() {
+        return textSize;
+    }
+
+    /**
+     * Drop the text of the files, and of text outside any file, that no
+     * fragment refers to, like the old content of an edited file. Fragment
+     * indices stay the same, file indices and text offsets change. Files
+     * without any text are kept.
+     *
+     * @return Chars freed.
+     */
+    public synchronized long compact() {
+        int nFiles = files.size();
+        // per piece of text: 0 for the text before the first file, then the files
+        boolean[] used = new boolean[nFiles + 1];
+        for (int i = 0; i < size; i++) {
+            if (textLen[i] > 0) {
+                used[fileAt(textStart[i]) + 1] = true;
+            }
+        }
+        long[] from = new long[nFiles + 1];
+        long[] to = new long[nFiles + 1];
+        long kept = 0;
+        for (int u = 0; u <= nFiles; u++) {
+            from[u] = u > 0 ? fileStart[u - 1] : 0;
+            long end = u < nFiles ? fileStart[u] : textSize;
+            used[u] |= end == from[u];
+            to[u] = kept;
+            if (used[u]) {
+                kept += end - from[u];
+            }
+        }
+        long freed = textSize - kept;
+        if (0 == freed) {
+            return 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int u = fileAt(textStart[i]) + 1;
+            // only empty fragments are in text that is dropped
+            textStart[i] = used[u] ? textStart[i] - from[u] + to[u] : 0;
+        }
+        List<CharBuffer> old = new ArrayList<>(text);
+        long oldSize = textSize;
+        text.clear();
+        textSize = 0;
+        ArrayList<String> names = new ArrayList<>();
+        long[] starts = new long[Math.max(64, nFiles)];
+        for (int u = 0; u <= nFiles; u++) {
+            if (!used[u]) {
+                continue;
+            }
+            if (u > 0) {
+                starts[names.size()] = textSize;
+                names.add(files.get(u - 1));
+            }
+            long end = u < nFiles ? fileStart[u] : oldSize;
+            for (long p = from[u]; p < end;) {
+                int o = (int) (p % TEXT_BLOCK);
+                int n = (int) Math.min(end - p, TEXT_BLOCK - o);
+                CharBuffer part = old.get((int) (p / TEXT_BLOCK)).duplicate();
+                part.limit(o + n).position(o);
+                addText(part);
+                p += n;
+            }
+        }
+        files.clear();
+        files.addAll(names);
+        fileStart = starts;
+        return freed;
+    }
+
+    /**
+     * @return Number of files.
+     */
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Append text to the shared buffer, usually the content of a file.
+     *
+     * @param s The text.
+     * @return Offset of the text in the buffer.
+     */
+    public synchronized long addText(CharSequence s) {
+        long start = textSize;
+        int n = s.length();
+        for (int i = 0; i < n;) {
+            int b = (int) (textSize / TEXT_BLOCK);
+            int o = (int) (textSize % TEXT_BLOCK);
+            if (b == text.size()) {
+                text.add(CharBuffer.wrap(new char[TEXT_BLOCK]));
+            }
+            int len = Math.min(n - i, TEXT_BLOCK - o);
+            CharBuffer block = text.get(b);
+            if (block.isReadOnly()) {
+                CharBuffer copy = CharBuffer.wrap(new char[TEXT_BLOCK]);
+                copy.put(block.duplicate());
+                copy.clear();
+                text.set(b, block = copy);
+            }
+            for (int j = 0; j < len; j++) {
+                block.put(o + j, s.charAt(i + j));
+            }
+            i += len;
+            textSize += len;
+        }
+        return start;
+    }
+
+    /**
+     * Append a fragment.
+     *
+     * @param vec Its vector, all vectors must have the same length.
+     * @param start Offset of its text, as returned by {@link #addText}.
+     * @param len Length of its text.
+     * @return Index of the fragment.
+     */
+    public synchronized int add(float[] vec, long start, int len) {
+        if (0 == size) {
+            dims = vec.length;
+            rowBytes = 4 + dims * encoding.bytes;
+            rowsPerPage = Math.max(1, PAGE_SIZE / rowBytes);
+        } else if (vec.length != dims) {
+            throw new IllegalArgumentException("Vector has " + vec.length + " dimensions, expected " + dims);
+        }
+        if (size == textStart.length) {
+            textStart = Arrays.copyOf(textStart, size * 2);
+            textLen = Arrays.copyOf(textLen, size * 2);
+        }
+        int page = size / rowsPerPage;
+        if (page == pages.size()) {
+            pages.add(newPage(rowsPerPage * rowBytes));
+        }
+        encode(vec, pages.get(page), (size % rowsPerPage) * rowBytes);
+        textStart[size] = start;
+        textLen[size] = len;
+        return size++;
+    }
+
+    /**
+     * Replace a fragment.
+     *
+     * @param index Fragment index.
+     * @param vec Its new vector.
+     * @param start Offset of its new text, as returned by {@link #addText}.
+     * @param len Length of its new text, 0 to leave an empty slot.
+     */
+    public synchronized void set(int index, float[] vec, long start, int len) {
+        checkIndex(index);
+        if (vec.length != dims) {
+            throw new IllegalArgumentException("Vector has " + vec.length + " dimensions, expected " + dims);
+        }
+        if (start < 0 || len < 0 || start + len > textSize) {
+            throw new IndexOutOfBoundsException(start + "+" + len + " > " + textSize);
+        }
+        int page = index / rowsPerPage;
+        ByteBuffer buf = pages.get(page);
+        if (buf.isReadOnly()) {
+            // mapped from a session, searches holding the old page keep it
+            ByteBuffer copy = newPage(rowsPerPage * rowBytes);
+            copy.put(buf.duplicate());
+            copy.clear();
+            pages.set(page, buf = copy);
+        }
+        encode(vec, buf, (index % rowsPerPage) * rowBytes);
+        textStart[index] = start;
+        textLen[index] = len;
+    }
+
+    /**
+     * @param bytes Size of the page.
+     * @return A new writable little-endian page, see the class comment for
+     * where it lives.
+     */
+    static ByteBuffer newPage(int bytes) {
+        String dir = System.getProperty("embedding.store.dir");
+        if (null != dir) {
+            try {
+                File f = File.createTempFile("page", ".vec", new File(dir));
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+                } finally {
+                    // the mapping outlives the name where the system allows it
+                    if (!f.delete()) {
+                        f.deleteOnExit();
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(VectorStore.class.getName()).log(Level.WARNING,
+                        "Cannot map a page in " + dir + ", using memory", ex);
+            }
+        }
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void encode(float[] vec, ByteBuffer buf, int pos) {
+        float max = 0;
+        for (float f : vec) {
+            max = Math.max(max, Math.abs(f));
+        }
+        switch (encoding) {
+            case F32:
+                buf.putFloat(pos, 1);
+                for (int i = 0, p = pos + 4; i < vec.length; i++, p += 4) {
+                    buf.putFloat(p, vec[i]);
+                }
+                break;
+            case F16: {
+                float scale = max > 0 ? max : 1;
+                buf.putFloat(pos, scale);
+                for (int i = 0, p = pos + 4; i < vec.length; i++, p += 2) {
+                    buf.putShort(p, toHalf(vec[i] / scale));
+                }
+                break;
+            }
+            case I8: {
+                float scale = max > 0 ? max / 127 : 1;
+                buf.putFloat(pos, scale);
+                for (int i = 0, p = pos + 4; i < vec.length; i++, p++) {
+                    buf.put(p, (byte) Math.round(vec[i] / scale));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read a vector.
+     *
+     * @param index Fragment index.
+     * @param into Array to fill if it has the right length, may be null.
+     * @return The vector, into or a new array.
+     */
+    public synchronized float[] get(int index, float[] into) {
+        checkIndex(index);
+        float[] ret = null != into && into.length == dims ? into : new float[dims];
+        decode(encoding, pages.get(index / rowsPerPage), (index % rowsPerPage) * rowBytes, ret);
+        return ret;
+    }
+
+    /**
+     * Decode a row without the monitor, for readers holding a copy of
+     * {@link #pages}.
+     *
+     * @param encoding How the page is encoded.
+     * @param buf The page.
+     * @param pos Offset of the row.
+     * @param into Receives the vector, its length is the dimensions.
+     */
+    static void decode(Encoding encoding, ByteBuffer buf, int pos, float[] into) {
+        float scale = buf.getFloat(pos);
+        pos += 4;
+        switch (encoding) {
+            case F32:
+                for (int i = 0; i < into.length; i++, pos += 4) {
+                    into[i] = buf.getFloat(pos);
+                }
+                break;
+            case F16:
+                for (int i = 0; i < into.length; i++, pos += 2) {
+                    into[i] = fromHalf(buf.getShort(pos)) * scale;
+                }
+                break;
+            case I8:
+                for (int i = 0; i < into.length; i++, pos++) {
+                    into[i] = buf.get(pos) * scale;
+                }
+                break;
+        }
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return The text of the fragment.
+     */
+    public synchronized String getText(int index) {
+        checkIndex(index);
+        return getText(textStart[index], textLen[index]);
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return Offset of its text in the text buffer.
+     */
+    public synchronized long getStart(int index) {
+        checkIndex(index);
+        return textStart[index];
+    }
+
+    /**
+     * @param index Fragment index.
+     * @return Length of its text.
+     */
+    public synchronized int getLength(int index) {
+        checkIndex(index);
+        return textLen[index];
+    }
+
+    /**
+     * @param start Offset in the text buffer.
+     * @param len Number of chars.
+     * @return The text.
+     */
+    public synchronized String getText(long start, int len) {
+        if (start < 0 || len < 0 || start + len > textSize) {
+            throw new IndexOutOfBoundsException(start + "+" + len + " > " + textSize);
+        }
+        StringBuilder sb = new StringBuilder(len);
+        while (len > 0) {
+            int o = (int) (start % TEXT_BLOCK);
+            int n = Math.min(len, TEXT_BLOCK - o);
+            sb.append(text.get((int) (start / TEXT_BLOCK)), o, o + n);
+            start += n;
+            len -= n;
+        }
+        return sb.toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+    }
+
+    /**
+     * @return Number of fragments.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Dimensions of the vectors, 0 while empty.
+     */
+    public synchronized int getDims() {
+        return dims;
+    }
+
+    /**
+     * @return How the vectors are stored.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return Bytes of Java heap used, roughly.
+     */
+    public synchronized long getHeapSize() {
+        long ret = textStart.length * 12L + fileStart.length * 8L;
+        for (CharBuffer cb : text) {
+            ret += cb.isDirect() ? 0 : cb.capacity() * 2L;
+        }
+        return ret;
+    }
+
+    /**
+     * @return Bytes used outside the Java heap, including mapped pages.
+     */
+    public synchronized long getOffHeapSize() {
+        long ret = 0;
+        for (ByteBuffer bb : pages) {
+            ret += bb.capacity();
+        }
+        for (CharBuffer cb : text) {
+            ret += cb.isDirect() ? cb.capacity() * 2L : 0;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VectorStore{%s, %d x %d, heap %d KB, off-heap %d KB}",
+                encoding, size(), getDims(), getHeapSize() >> 10, getOffHeapSize() >> 10);
+    }
+
+    /**
+     * Convert to IEEE 754 half precision, rounding to nearest.
+     *
+     * @param f The value.
+     * @return The half float bits.
+     */
+    static short toHalf(float f) {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        int val = abs + 0x1000;
+        if (val >= 0x47800000) {
+            if (abs >= 0x47800000) {
+                if (abs < 0x7f800000) {
+                    // too large, infinity
+                    return (short) (sign | 0x7c00);
+                }
+                // infinity or NaN
+                return (short) (sign | 0x7c00 | ((bits & 0x007fffff) >>> 13));
+            }
+            // rounds up to infinity, use the largest finite value
+            return (short) (sign | 0x7bff);
+        }
+        if (val >= 0x38800000) {
+            return (short) (sign | ((val - 0x38000000) >>> 13));
+        }
+        if (val < 0x33000000) {
+            return (short) sign;
+        }
+        // subnormal
+        int exp = abs >>> 23;
+        return (short) (sign | (((bits & 0x7fffff) | 0x800000) + (0x800000 >>> (exp - 102)) >>> (126 - exp)));
+    }
+
+    /**
+     * Convert from IEEE 754 half precision.
+     *
+     * @param h The half float bits.
+     * @return The value.
+     */
+    static float fromHalf(short h) {
+        int bits = h & 0xffff;
+        int mant = bits & 0x03ff;
+        int exp = bits & 0x7c00;
+        if (exp == 0x7c00) {
+            exp = 0x3fc00;
+        } else if (exp != 0) {
+            exp += 0x1c000;
+        } else if (mant != 0) {
+            // subnormal, normalize
+            exp = 0x1c400;
+            do {
+                mant <<= 1;
+                exp -= 0x400;
+            } while ((mant & 0x400) == 0);
+            mant &= 0x3ff;
+        }
+        return Float.intBitsToFloat(((bits & 0x8000) << 16) | ((exp | mant) << 13));
+    }
+}
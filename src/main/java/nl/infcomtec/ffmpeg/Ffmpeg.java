@@ -9,10 +9,14 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -23,6 +27,12 @@ import javax.imageio.ImageIO;
  */
 public class Ffmpeg {
 
+    /**
+     * Shared, thread-safe Gson instance.
+     */
+    public static final Gson GSON = new Gson();
+    private static final ProbeCache probeCache = new ProbeCache();
+
     /**
      * Takes snapshots from a movie file starting at a specified time.
      *
@@ -174,6 +184,133 @@ public class Ffmpeg {
         };
     }
 
+    /**
+     * Takes snapshots at several times from a single ffmpeg process.
+     * <p>
+     * The movie is opened once, seeked to the first time and the frames at
+     * the requested times are picked with a select filter. They are piped to
+     * stdout as PPM images and handed to the sink as each one is decoded.
+     * Times that fall within the same frame produce only one snapshot.
+     *
+     * @param movie The movie file from which to take the snapshots.
+     * @param tu The TimeUnit for the times.
+     * @param times Times in the specified TimeUnit, sorted ascending.
+     * @param sink Receives the snapshots in time order.
+     * @return The number of snapshots taken.
+     * @throws IOException If ffmpeg could not be run or failed.
+     * @throws InterruptedException If interrupted while waiting for ffmpeg.
+     */
+    public static int takeSnapShotsAt(File movie, TimeUnit tu, long[] times, Consumer<BufferedImage> sink)
+            throws IOException, InterruptedException {
+        return takeSnapShotsAt(movie, tu, times, sink, null);
+    }
+
+    /**
+     * Takes snapshots at several times from a single ffmpeg process,
+     * reporting progress while it runs.
+     *
+     * @param movie The movie file from which to take the snapshots.
+     * @param tu The TimeUnit for the times.
+     * @param times Times in the specified TimeUnit, sorted ascending.
+     * @param sink Receives the snapshots in time order.
+     * @param progress Receives the progress, may be null. Its frame count
+     * is the number of snapshots taken so far.
+     * @return The number of snapshots taken.
+     * @throws IOException If ffmpeg could not be run or failed.
+     * @throws InterruptedException If interrupted while waiting for ffmpeg.
+     */
+    public static int takeSnapShotsAt(File movie, TimeUnit tu, long[] times, Consumer<BufferedImage> sink,
+            FfmpegProgress progress) throws IOException, InterruptedException {
+        if (0 == times.length) {
+            return 0;
+        }
+        long first = TimeUnit.MICROSECONDS.convert(times[0], tu);
+        StringBuilder select = new StringBuilder("select='gt(0");
+        for (long t : times) {
+            // times relative to the seek point, which becomes pts 0
+            String ts = String.format(Locale.ROOT, "%.6f", (TimeUnit.MICROSECONDS.convert(t, tu) - first) / 1e6);
+            select.append("+gte(pts*TB,").append(ts)
+                    .append(")*(isnan(prev_pts)+lt(prev_pts*TB,").append(ts).append("))");
+        }
+        select.append(",0)'");
+        List<String> args = new ArrayList<>();
+        args.add("ffmpeg");
+        args.add("-v");
+        args.add("error");
+        args.add("-nostdin");
+        if (null != progress) {
+            progress.setExpectedFrames(times.length);
+            args.add("-progress");
+            args.add("pipe:2");
+            args.add("-nostats");
+        }
+        args.add("-ss");
+        args.add(String.format(Locale.ROOT, "%.6f", first / 1e6));
+        args.add("-i");
+        args.add(movie.getAbsolutePath());
+        args.add("-vf");
+        args.add(select.toString());
+        args.add("-vsync");
+        args.add("0");
+        args.add("-f");
+        args.add("image2pipe");
+        args.add("-c:v");
+        args.add("ppm");
+        args.add("-");
+        ProcessBuilder pb = new ProcessBuilder(args);
+        if (null == progress) {
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        }
+        Process p = pb.start();
+        ProcessLines errLines = null;
+        if (null != progress) {
+            errLines = new ProcessLines(p, StandardCharsets.UTF_8, null, new Consumer<String>() {
+                @Override
+                public void accept(String line) {
+                    if (line.indexOf('=') > 0) {
+                        progress.accept(line);
+                    } else {
+                        System.err.println(line);
+                    }
+                }
+            });
+        }
+        int count = 0;
+        int exit;
+        try (PPMReader in = new PPMReader(p.getInputStream())) {
+            for (BufferedImage img; null != (img = in.read());) {
+                count++;
+                sink.accept(img);
+            }
+        } finally {
+            exit = null != errLines ? errLines.waitFor() : p.waitFor();
+        }
+        if (0 != exit) {
+            throw new IOException("ffmpeg exited with " + exit);
+        }
+        return count;
+    }
+
+    /**
+     * Creates a Callable task that takes snapshots at several times from a
+     * single ffmpeg process.
+     *
+     * @param movie The movie file from which to take the snapshots.
+     * @param tu The TimeUnit for the times.
+     * @param times Times in the specified TimeUnit, sorted ascending.
+     * @return Callable task that returns the snapshots in time order.
+     */
+    public static Callable<List<BufferedImage>> takeSnapShotsAt(File movie, TimeUnit tu, long... times) {
+        return new Callable<List<BufferedImage>>() {
+            @Override
+            public List<BufferedImage> call() throws Exception {
+                List<BufferedImage> ret = new ArrayList<>();
+                takeSnapShotsAt(movie, tu, times, ret::add);
+                return ret;
+            }
+        };
+    }
+
     /**
      * Converts a series of images in a directory to an MP4 video file.
      *
@@ -184,8 +321,28 @@ public class Ffmpeg {
      * @throws Exception If an error occurs during the conversion process.
      */
     public static void imgToMP4(File dir, int fRate, String glob, File outF) throws Exception {
+        imgToMP4(dir, fRate, glob, outF, null);
+    }
+
+    /**
+     * Converts a series of images in a directory to an MP4 video file,
+     * reporting progress while it runs.
+     *
+     * @param dir Directory containing the image files.
+     * @param fRate Frame rate of the output video.
+     * @param glob Glob pattern to match the image files in the directory.
+     * @param outF Output file for the MP4 video.
+     * @param progress Receives the progress, may be null.
+     * @throws Exception If an error occurs during the conversion process.
+     */
+    public static void imgToMP4(File dir, int fRate, String glob, File outF, FfmpegProgress progress) throws Exception {
         List<String> args = new ArrayList<>();
         args.add("ffmpeg");
+        if (null != progress) {
+            args.add("-progress");
+            args.add("pipe:1");
+            args.add("-nostats");
+        }
         args.add("-framerate");
         args.add("" + fRate);
         args.add("-pattern_type");
@@ -199,7 +356,51 @@ public class Ffmpeg {
         args.add(outF.getAbsolutePath());
         ProcessBuilder pb = new ProcessBuilder(args);
         pb.directory(dir);
-        System.out.println(InOutErrConsumer.exec(pb.start()));
+        int exit = InOutErrConsumer.exec(pb.start(),
+                null == progress ? System.out::println : progress::accept,
+                System.out::println).waitFor();
+        if (0 != exit) {
+            throw new IOException("ffmpeg exited with " + exit);
+        }
+    }
+
+    /**
+     * Joins MP4 segments that were encoded with the same parameters into one
+     * file, without re-encoding.
+     *
+     * @param segments The segments in order.
+     * @param outF Output file for the MP4 video.
+     * @throws Exception If ffmpeg failed.
+     */
+    public static void concat(List<File> segments, File outF) throws Exception {
+        File list = File.createTempFile("concat", ".txt", outF.getAbsoluteFile().getParentFile());
+        try {
+            List<String> lines = new ArrayList<>();
+            for (File seg : segments) {
+                lines.add("file '" + seg.getAbsolutePath().replace("'", "'\\''") + "'");
+            }
+            Files.write(list.toPath(), lines, StandardCharsets.UTF_8);
+            List<String> args = new ArrayList<>();
+            args.add("ffmpeg");
+            args.add("-y");
+            args.add("-v");
+            args.add("error");
+            args.add("-f");
+            args.add("concat");
+            args.add("-safe");
+            args.add("0");
+            args.add("-i");
+            args.add(list.getAbsolutePath());
+            args.add("-c");
+            args.add("copy");
+            args.add(outF.getAbsolutePath());
+            int exit = InOutErrConsumer.exec(new ProcessBuilder(args).start(), null, System.out::println).waitFor();
+            if (0 != exit) {
+                throw new IOException("ffmpeg exited with " + exit);
+            }
+        } finally {
+            list.delete();
+        }
     }
 
     /**
@@ -227,11 +428,56 @@ public class Ffmpeg {
         args.add("-show_format");
         args.add(movie.getAbsolutePath());
         ProcessBuilder pb = new ProcessBuilder(args);
-        List<String> out = InOutErrConsumer.exec(pb.start());
+        List<String> out = new ArrayList<>();
+        List<String> err = new ArrayList<>();
+        int exit = InOutErrConsumer.exec(pb.start(), out::add, err::add).waitFor();
+        if (0 != exit) {
+            throw new IOException("ffprobe exited with " + exit + ": " + Utils.listToString(err));
+        }
         return Utils.listToString(out);
     }
 
     public static P probe(File movie) throws Exception {
-        return new Gson().fromJson(ffprobe(movie), P.class);
+        return GSON.fromJson(ffprobe(movie), P.class);
+    }
+
+    /**
+     * Runs ffprobe on a movie file to get all its streams and its format.
+     *
+     * @param movie The movie file to be probed.
+     * @return The typed probe result.
+     * @throws Exception If an error occurs during the execution of ffprobe.
+     */
+    public static Probe probeStreams(File movie) throws Exception {
+        List<String> args = new ArrayList<>();
+        args.add("ffprobe");
+        args.add("-v");
+        args.add("error");
+        args.add("-hide_banner");
+        args.add("-print_format");
+        args.add("json");
+        args.add("-show_streams");
+        args.add("-show_format");
+        args.add(movie.getAbsolutePath());
+        ProcessBuilder pb = new ProcessBuilder(args);
+        StringBuilder out = new StringBuilder();
+        List<String> err = new ArrayList<>();
+        int exit = InOutErrConsumer.exec(pb.start(), line -> out.append(line).append('\n'), err::add).waitFor();
+        if (0 != exit) {
+            throw new IOException("ffprobe exited with " + exit + ": " + Utils.listToString(err));
+        }
+        return GSON.fromJson(out.toString(), Probe.class);
+    }
+
+    /**
+     * Probes many movie files, running one ffprobe per processor at most and
+     * remembering the results for as long as the files do not change.
+     *
+     * @param movies The movie files to be probed.
+     * @return Results in the order of the files, null where ffprobe failed.
+     * @throws InterruptedException If interrupted.
+     */
+    public static List<Probe> probe(List<File> movies) throws InterruptedException {
+        return probeCache.probe(movies, Runtime.getRuntime().availableProcessors());
     }
 }
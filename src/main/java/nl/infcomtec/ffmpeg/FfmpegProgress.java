@@ -0,0 +1,225 @@
+package nl.infcomtec.ffmpeg;
+
+import java.util.function.Consumer;
+
+/**
+ * Live progress of an ffmpeg job, parsed from its "-progress" output.
+ * <p>
+ * ffmpeg writes a block of key=value lines about twice a second, ending with
+ * "progress=continue" or "progress=end". Feed every line to
+ * {@link #accept(String)}; the listener is called after each block. Values
+ * are written by one reader thread and can be read from any thread.
+ *
+ * @author walter
+ */
+public class FfmpegProgress {
+
+    private final long startNanos = System.nanoTime();
+    private volatile long expectedFrames;
+    private volatile long frame;
+    private volatile double fps;
+    private volatile double speed;
+    private volatile long totalSize;
+    private volatile long outTimeUs;
+    private volatile boolean done;
+    private volatile long lastUpdateNanos = startNanos;
+    private volatile Consumer<FfmpegProgress> listener;
+
+    public FfmpegProgress() {
+    }
+
+    /**
+     * @param expectedFrames Number of frames the job will produce, needed for
+     * the ETA.
+     */
+    public FfmpegProgress(long expectedFrames) {
+        this.expectedFrames = expectedFrames;
+    }
+
+    /**
+     * Parse one line of ffmpeg progress output, other lines are ignored.
+     *
+     * @param line The line.
+     */
+    public void accept(String line) {
+        int eq = line.indexOf('=');
+        if (eq <= 0) {
+            return;
+        }
+        String key = line.substring(0, eq).trim();
+        String val = line.substring(eq + 1).trim();
+        try {
+            switch (key) {
+                case "frame":
+                    frame = Long.parseLong(val);
+                    break;
+                case "fps":
+                    fps = Double.parseDouble(val);
+                    break;
+                case "total_size":
+                    totalSize = Long.parseLong(val);
+                    break;
+                case "out_time_us":
+                    outTimeUs = Long.parseLong(val);
+                    break;
+                case "speed":
+                    speed = val.endsWith("x") ? Double.parseDouble(val.substring(0, val.length() - 1)) : 0;
+                    break;
+                case "progress":
+                    done = "end".equals(val);
+                    lastUpdateNanos = System.nanoTime();
+                    Consumer<FfmpegProgress> l = listener;
+                    if (null != l) {
+                        l.accept(this);
+                    }
+                    break;
+            }
+        } catch (NumberFormatException ex) {
+            // "N/A" while ffmpeg is starting up
+        }
+    }
+
+    /**
+     * Set this progress to the sum of some parallel jobs and notify the
+     * listener.
+     *
+     * @param parts Progress of the jobs.
+     */
+    synchronized void combine(FfmpegProgress[] parts) {
+        long f = 0;
+        long size = 0;
+        long us = 0;
+        double rate = 0;
+        double sp = 0;
+        boolean end = true;
+        for (FfmpegProgress p : parts) {
+            f += p.frame;
+            size += p.totalSize;
+            us += p.outTimeUs;
+            if (!p.done) {
+                rate += p.fps;
+                sp += p.speed;
+                end = false;
+            }
+        }
+        frame = f;
+        totalSize = size;
+        outTimeUs = us;
+        fps = rate;
+        speed = sp;
+        done = end;
+        lastUpdateNanos = System.nanoTime();
+        Consumer<FfmpegProgress> l = listener;
+        if (null != l) {
+            l.accept(this);
+        }
+    }
+
+    /**
+     * @param listener Called after each progress block, on the reader thread.
+     */
+    public void setListener(Consumer<FfmpegProgress> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param expectedFrames Number of frames the job will produce.
+     */
+    public void setExpectedFrames(long expectedFrames) {
+        this.expectedFrames = expectedFrames;
+    }
+
+    /**
+     * @return Number of frames the job will produce, 0 if unknown.
+     */
+    public long getExpectedFrames() {
+        return expectedFrames;
+    }
+
+    /**
+     * @return Frames encoded so far.
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return Frames per second as reported by ffmpeg.
+     */
+    public double getFps() {
+        return fps;
+    }
+
+    /**
+     * @return Encoding speed as a factor of real time.
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return Output size in bytes.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return Position in the output, in microseconds.
+     */
+    public long getOutTimeUs() {
+        return outTimeUs;
+    }
+
+    /**
+     * @return True once ffmpeg reported the end.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return Estimated seconds to go, or -1 if unknown.
+     */
+    public double getEta() {
+        long exp = expectedFrames;
+        long f = frame;
+        if (done) {
+            return 0;
+        }
+        if (exp <= 0 || f <= 0) {
+            return -1;
+        }
+        double rate = fps;
+        if (rate <= 0) {
+            rate = f / ((System.nanoTime() - startNanos) / 1e9);
+        }
+        return Math.max(0, exp - f) / rate;
+    }
+
+    /**
+     * @param millis Allowed silence.
+     * @return True if ffmpeg has not reported progress for that long.
+     */
+    public boolean isStalled(long millis) {
+        return !done && System.nanoTime() - lastUpdateNanos > millis * 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("frame ").append(frame);
+        if (expectedFrames > 0) {
+            sb.append('/').append(expectedFrames);
+        }
+        sb.append(String.format(", %.1f fps, %.2fx, %.1f MB", fps, speed, totalSize / 1e6));
+        if (done) {
+            sb.append(", done");
+        } else {
+            double eta = getEta();
+            if (eta >= 0) {
+                sb.append(String.format(", ETA %.0f s", eta));
+            }
+        }
+        return sb.toString();
+    }
+}
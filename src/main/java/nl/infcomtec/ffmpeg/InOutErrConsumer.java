@@ -12,25 +12,35 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Whenever you need to consume an InputStream, OutputStream and/or
  * "ErrorStream".
+ * <p>
+ * The streams are pumped in chunks by three daemon threads. The output stream
+ * is closed after the last line has been written, so the process sees a clean
+ * end of input. The error stream can be capped, keeping only its tail.
  *
  * @author Walter Stroebel
  */
 public class InOutErrConsumer implements AutoCloseable {
 
+    /**
+     * Size of the pump buffers.
+     */
+    public static final int CHUNK = 1 << 16;
     private ByteArrayInputStream bais;
 
     private final InputStream err;
-    private final ByteArrayOutputStream fromErr = new ByteArrayOutputStream();
-    private final ByteArrayOutputStream fromIn = new ByteArrayOutputStream();
+    private final CappedBuffer fromErr = new CappedBuffer();
+    private final CappedBuffer fromIn = new CappedBuffer();
     private final InputStream in;
     private final OutputStream out;
     private List<String> outLines;
+    private final List<Thread> pumps = new ArrayList<>();
 
     public InOutErrConsumer(InputStream in, InputStream err, OutputStream out) {
         this.in = in;
@@ -57,10 +67,30 @@ public class InOutErrConsumer implements AutoCloseable {
         try (InOutErrConsumer ioec = new InOutErrConsumer(p)) {
             ioec.start();
             p.waitFor();
+            ioec.waitFor();
             return ioec.getInputLines();
         }
     }
 
+    /**
+     * Execute something and get its output line by line as it arrives.
+     *
+     * @param p Process to run, its stdin is closed.
+     * @param out Receives stdout lines, may be null.
+     * @param err Receives stderr lines, may be null.
+     * @return Handle to wait for or cancel the process.
+     */
+    public static ProcessLines exec(Process p, Consumer<String> out, Consumer<String> err) {
+        try {
+            p.getOutputStream().close();
+        } catch (IOException ex) {
+            // already gone
+        }
+        Consumer<String> discard = line -> {
+        };
+        return new ProcessLines(p, StandardCharsets.UTF_8, null == out ? discard : out, null == err ? discard : err);
+    }
+
     @Override
     public void close() {
         try {
@@ -92,25 +122,33 @@ public class InOutErrConsumer implements AutoCloseable {
     }
 
     public List<String> getInputLines(Charset cs) {
-        ArrayList<String> ret = new ArrayList<>();
         return Utils.BaosToList(fromIn, cs);
     }
 
-    public int outByte() {
-        if (null == bais) {
-            return -1;
-        }
-        int ch = bais.read();
-        if (ch < 0) {
-            if (null != outLines && !outLines.isEmpty()) {
-                String s = outLines.remove(0);
-                bais = new ByteArrayInputStream(s.getBytes());
-            } else {
-                bais = null;
-                return -1;
-            }
-        }
-        return ch;
+    public List<String> getErrorLines() {
+        return getErrorLines(StandardCharsets.UTF_8);
+    }
+
+    public List<String> getErrorLines(Charset cs) {
+        return Utils.BaosToList(fromErr, cs);
+    }
+
+    /**
+     * Keep at most this many bytes of the error stream, dropping the oldest.
+     *
+     * @param limit Number of bytes, the default is unlimited.
+     */
+    public void setErrorLimit(int limit) {
+        fromErr.setLimit(limit);
+    }
+
+    /**
+     * Keep at most this many bytes of the input stream, dropping the oldest.
+     *
+     * @param limit Number of bytes, the default is unlimited.
+     */
+    public void setInputLimit(int limit) {
+        fromIn.setLimit(limit);
     }
 
     /**
@@ -125,57 +163,99 @@ public class InOutErrConsumer implements AutoCloseable {
     }
 
     public void start() {
-        new Thread() {
+        pump("err", err, fromErr);
+        pump("in", in, fromIn);
+        Thread t = new Thread("IOEC-out") {
             @Override
             public void run() {
-                while (true) {
-                    int ch;
-                    try {
-                        ch = err.read();
-                    } catch (IOException ex) {
-                        Logger.getLogger(InOutErrConsumer.class.getName()).log(Level.SEVERE, null, ex);
-                        break;
-                    }
-                    if (ch < 0) {
-                        break;
+                try {
+                    byte[] chunk = new byte[CHUNK];
+                    while (null != bais) {
+                        for (int n; (n = bais.read(chunk, 0, chunk.length)) > 0;) {
+                            out.write(chunk, 0, n);
+                        }
+                        if (null != outLines && !outLines.isEmpty()) {
+                            bais = new ByteArrayInputStream(outLines.remove(0).getBytes());
+                        } else {
+                            bais = null;
+                        }
                     }
-                    fromErr.write(ch);
-                }
-            }
-        }.start();
-        new Thread() {
-            @Override
-            public void run() {
-                while (true) {
-                    int ch;
+                    out.flush();
+                } catch (IOException ex) {
+                    Logger.getLogger(InOutErrConsumer.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
                     try {
-                        ch = in.read();
+                        // end of input
+                        out.close();
                     } catch (IOException ex) {
-                        Logger.getLogger(InOutErrConsumer.class.getName()).log(Level.SEVERE, null, ex);
-                        break;
-                    }
-                    if (ch < 0) {
-                        break;
+                        // already gone
                     }
-                    fromIn.write(ch);
                 }
             }
-        }.start();
-        new Thread() {
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Wait until the input and error streams have been read to the end.
+     *
+     * @throws InterruptedException If interrupted.
+     */
+    public void waitFor() throws InterruptedException {
+        for (Thread t : pumps) {
+            t.join();
+        }
+    }
+
+    private void pump(String name, final InputStream src, final CappedBuffer dst) {
+        Thread t = new Thread("IOEC-" + name) {
             @Override
             public void run() {
-                while (true) {
-                    try {
-                        int ch;
-                        out.write(ch = outByte());
-                        if (ch < 0) {
-                            break;
-                        }
-                    } catch (IOException ex) {
-                        Logger.getLogger(InOutErrConsumer.class.getName()).log(Level.SEVERE, null, ex);
+                byte[] chunk = new byte[CHUNK];
+                try {
+                    for (int n; (n = src.read(chunk)) >= 0;) {
+                        dst.write(chunk, 0, n);
                     }
+                } catch (IOException ex) {
+                    Logger.getLogger(InOutErrConsumer.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-        }.start();
+        };
+        t.setDaemon(true);
+        t.start();
+        pumps.add(t);
+    }
+
+    /**
+     * Byte buffer that, once over its limit, drops the oldest half of its
+     * content.
+     */
+    private static class CappedBuffer extends ByteArrayOutputStream {
+
+        private int limit = Integer.MAX_VALUE;
+
+        CappedBuffer() {
+            super(CHUNK);
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = Math.max(2, limit);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (len >= limit) {
+                reset();
+                super.write(b, off + len - limit, limit);
+                return;
+            }
+            if (count + len > limit) {
+                int keep = Math.min(count, Math.min(limit / 2, limit - len));
+                System.arraycopy(buf, count - keep, buf, 0, keep);
+                count = keep;
+            }
+            super.write(b, off, len);
+        }
     }
 }
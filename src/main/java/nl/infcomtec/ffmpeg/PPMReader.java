@@ -0,0 +1,85 @@
+package nl.infcomtec.ffmpeg;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream of binary (P6) PPM images, as written by ffmpeg with
+ * "-f image2pipe -c:v ppm".
+ *
+ * @author walter
+ */
+public class PPMReader implements AutoCloseable {
+
+    private final InputStream in;
+    private byte[] buf;
+
+    public PPMReader(InputStream in) {
+        this.in = new BufferedInputStream(in, 1 << 16);
+    }
+
+    /**
+     * Read the next image.
+     *
+     * @return A TYPE_INT_RGB image or null at end of stream.
+     * @throws IOException On a short or malformed image.
+     */
+    public BufferedImage read() throws IOException {
+        int c = in.read();
+        if (c < 0) {
+            return null;
+        }
+        if ('P' != c || '6' != in.read()) {
+            throw new IOException("Not a PPM image");
+        }
+        int w = number();
+        int h = number();
+        if (255 != number()) {
+            throw new IOException("Only 8-bit PPM is supported");
+        }
+        int n = w * h * 3;
+        if (null == buf || buf.length < n) {
+            buf = new byte[n];
+        }
+        for (int off = 0; off < n;) {
+            int r = in.read(buf, off, n - off);
+            if (r < 0) {
+                throw new IOException("Short PPM image");
+            }
+            off += r;
+        }
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        for (int i = 0, j = 0; i < px.length; i++, j += 3) {
+            px[i] = ((buf[j] & 0xFF) << 16) | ((buf[j + 1] & 0xFF) << 8) | (buf[j + 2] & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Parse a header number, consuming the single whitespace after it.
+     */
+    private int number() throws IOException {
+        int c = in.read();
+        while (Character.isWhitespace(c)) {
+            c = in.read();
+        }
+        int ret = 0;
+        while (c >= '0' && c <= '9') {
+            ret = ret * 10 + c - '0';
+            c = in.read();
+        }
+        if (c < 0) {
+            throw new IOException("Short PPM header");
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,41 @@
+package nl.infcomtec.ffmpeg;
+
+/**
+ * Typed result of "ffprobe -show_streams -show_format", see {@link P} for the
+ * untyped variant.
+ *
+ * @author walter
+ */
+public class Probe {
+
+    public S[] streams;
+    public F format;
+
+    /**
+     * @return The first video stream or null.
+     */
+    public S getVideo() {
+        if (null != streams) {
+            for (S s : streams) {
+                if (s.isVideo()) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The first audio stream or null.
+     */
+    public S getAudio() {
+        if (null != streams) {
+            for (S s : streams) {
+                if (s.isAudio()) {
+                    return s;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,169 @@
+package nl.infcomtec.ffmpeg;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of typed ffprobe results, keyed by absolute path and valid as long as
+ * size and modification time of the file are unchanged.
+ * <p>
+ * Optionally backed by a JSON file, see {@link #load()} and {@link #save()}.
+ *
+ * @author walter
+ */
+public class ProbeCache {
+
+    private final File store;
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+
+    /**
+     * In-memory cache.
+     */
+    public ProbeCache() {
+        this(null);
+    }
+
+    /**
+     * Cache persisted in a file, loaded right away if it exists.
+     *
+     * @param store JSON file, may be null for an in-memory cache.
+     */
+    public ProbeCache(File store) {
+        this.store = store;
+        if (null != store && store.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Probe a file, running ffprobe only if the cache has no valid entry.
+     *
+     * @param movie The file.
+     * @return The probe result.
+     * @throws Exception If ffprobe failed.
+     */
+    public Probe probe(File movie) throws Exception {
+        String key = movie.getAbsolutePath();
+        long size = movie.length();
+        long mtime = movie.lastModified();
+        Entry e = map.get(key);
+        if (null != e && e.size == size && e.mtime == mtime) {
+            return e.probe;
+        }
+        Probe ret = Ffmpeg.probeStreams(movie);
+        map.put(key, new Entry(size, mtime, ret));
+        return ret;
+    }
+
+    /**
+     * Probe many files, running at most the given number of ffprobe processes
+     * at once.
+     *
+     * @param movies The files.
+     * @param parallel Maximum number of concurrent ffprobe processes.
+     * @return Results in the order of the files, null where ffprobe failed.
+     * @throws InterruptedException If interrupted.
+     */
+    public List<Probe> probe(List<File> movies, int parallel) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallel));
+        try {
+            List<Future<Probe>> jobs = new ArrayList<>();
+            for (File movie : movies) {
+                jobs.add(pool.submit(() -> probe(movie)));
+            }
+            List<Probe> ret = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    ret.add(jobs.get(i).get());
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(ProbeCache.class.getName()).log(Level.WARNING,
+                            "Probing {0} failed: {1}", new Object[]{movies.get(i), ex.getCause()});
+                    ret.add(null);
+                }
+            }
+            return ret;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Number of cached results.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Merge the store file into the cache; does nothing for an in-memory
+     * cache.
+     */
+    public final void load() {
+        if (null == store) {
+            return;
+        }
+        try (Reader r = Files.newBufferedReader(store.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, Entry> m = Ffmpeg.GSON.fromJson(r, new TypeToken<Map<String, Entry>>() {
+            }.getType());
+            if (null != m) {
+                map.putAll(m);
+            }
+        } catch (IOException | JsonParseException ex) {
+            Logger.getLogger(ProbeCache.class.getName()).log(Level.WARNING, "Cannot load " + store, ex);
+        }
+    }
+
+    /**
+     * Write the cache to the store file; does nothing for an in-memory
+     * cache.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    public void save() throws IOException {
+        if (null == store) {
+            return;
+        }
+        File tmp = new File(store.getPath() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            Ffmpeg.GSON.toJson(map, w);
+        }
+        Files.move(tmp.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Entry {
+
+        long size;
+        long mtime;
+        Probe probe;
+
+        Entry(long size, long mtime, Probe probe) {
+            this.size = size;
+            this.mtime = mtime;
+            this.probe = probe;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nl.infcomtec.ffmpeg;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handle on a running process whose stdout and stderr are delivered line by
+ * line as they arrive.
+ * <p>
+ * Each stream is decoded incrementally by its own daemon thread, the line
+ * consumers are called on those threads. Nothing is buffered beyond the
+ * current line.
+ *
+ * @author walter
+ */
+public class ProcessLines {
+
+    private final Process process;
+    private final Thread outReader;
+    private final Thread errReader;
+    private volatile boolean cancelled;
+
+    /**
+     * Start delivering the lines of a process.
+     *
+     * @param p Process to follow.
+     * @param cs Character set of the output.
+     * @param out Receives stdout lines, null to leave stdout to the caller.
+     * @param err Receives stderr lines, null to leave stderr to the caller.
+     */
+    public ProcessLines(Process p, Charset cs, Consumer<String> out, Consumer<String> err) {
+        this.process = p;
+        outReader = reader("out", p.getInputStream(), cs, out);
+        errReader = reader("err", p.getErrorStream(), cs, err);
+    }
+
+    private Thread reader(String name, final InputStream src, final Charset cs, final Consumer<String> sink) {
+        if (null == sink) {
+            return null;
+        }
+        Thread t = new Thread("Lines-" + name + "-" + process.pid()) {
+            @Override
+            public void run() {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(src, cs), InOutErrConsumer.CHUNK)) {
+                    for (String line; null != (line = br.readLine());) {
+                        sink.accept(line);
+                    }
+                } catch (IOException ex) {
+                    if (!cancelled) {
+                        Logger.getLogger(ProcessLines.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Wait for the process to end and all its lines to be delivered.
+     *
+     * @return The exit code.
+     * @throws InterruptedException If interrupted, the process keeps running.
+     */
+    public int waitFor() throws InterruptedException {
+        int ret = process.waitFor();
+        if (null != outReader) {
+            outReader.join();
+        }
+        if (null != errReader) {
+            errReader.join();
+        }
+        return ret;
+    }
+
+    /**
+     * Wait for the process to end and all its lines to be delivered. When
+     * the time is up the process tree is killed.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of timeout.
+     * @return The exit code.
+     * @throws InterruptedException If interrupted, the process keeps running.
+     * @throws TimeoutException If the process was killed.
+     */
+    public int waitFor(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!process.waitFor(timeout, unit)) {
+            cancel();
+            throw new TimeoutException("Killed " + process.info().command().orElse("process")
+                    + " after " + timeout + " " + unit);
+        }
+        return waitFor();
+    }
+
+    /**
+     * Kill the process and all its descendants.
+     */
+    public void cancel() {
+        cancelled = true;
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    /**
+     * @return True if cancel() was called or the time ran out.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return True while the process runs.
+     */
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * @return The process.
+     */
+    public Process getProcess() {
+        return process;
+    }
+}
@@ -0,0 +1,156 @@
+package nl.infcomtec.ffmpeg;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoder session that feeds raw frames to ffmpeg over stdin.
+ * <p>
+ * Frames are sent as bgr24, as soon as they are written. A full pipe blocks
+ * the writer until ffmpeg catches up, so memory use does not depend on the
+ * length of the movie and no temporary files are needed.
+ *
+ * @author Walter Stroebel
+ */
+public class RawVideoEncoder implements AutoCloseable {
+
+    private final int width;
+    private final int height;
+    private final Process process;
+    private final ProcessLines progressLines;
+    private final OutputStream stdin;
+    private final byte[] frame;
+    private final int[] row;
+    private long frames;
+
+    /**
+     * Start ffmpeg.
+     *
+     * @param width Frame width.
+     * @param height Frame height.
+     * @param fRate Frame rate of the output video.
+     * @param outF Output file for the MP4 video.
+     * @throws IOException If ffmpeg could not be started.
+     */
+    public RawVideoEncoder(int width, int height, int fRate, File outF) throws IOException {
+        this(width, height, fRate, outF, null);
+    }
+
+    /**
+     * Start ffmpeg, reporting progress while it runs.
+     *
+     * @param width Frame width.
+     * @param height Frame height.
+     * @param fRate Frame rate of the output video.
+     * @param outF Output file for the MP4 video.
+     * @param progress Receives the progress, may be null.
+     * @throws IOException If ffmpeg could not be started.
+     */
+    public RawVideoEncoder(int width, int height, int fRate, File outF, FfmpegProgress progress) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.frame = new byte[width * height * 3];
+        this.row = new int[width];
+        List<String> args = new ArrayList<>();
+        args.add("ffmpeg");
+        args.add("-y");
+        args.add("-hide_banner");
+        if (null != progress) {
+            args.add("-progress");
+            args.add("pipe:1");
+            args.add("-nostats");
+        }
+        args.add("-f");
+        args.add("rawvideo");
+        args.add("-pix_fmt");
+        args.add("bgr24");
+        args.add("-s");
+        args.add(width + "x" + height);
+        args.add("-framerate");
+        args.add("" + fRate);
+        args.add("-i");
+        args.add("-");
+        args.add("-c:v");
+        args.add("libx264");
+        args.add("-pix_fmt");
+        args.add("yuv420p");
+        args.add(outF.getAbsolutePath());
+        ProcessBuilder pb = new ProcessBuilder(args);
+        if (null == progress) {
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        }
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        process = pb.start();
+        stdin = process.getOutputStream();
+        progressLines = null == progress ? null
+                : new ProcessLines(process, StandardCharsets.UTF_8, progress::accept, null);
+    }
+
+    /**
+     * Send one frame, blocks while ffmpeg is busy.
+     *
+     * @param img Frame of the session size, TYPE_3BYTE_BGR images are sent
+     * without conversion.
+     * @throws IOException If ffmpeg is gone.
+     */
+    public void write(BufferedImage img) throws IOException {
+        if (img.getWidth() != width || img.getHeight() != height) {
+            throw new IllegalArgumentException("Frame is " + img.getWidth() + "x" + img.getHeight()
+                    + ", expected " + width + "x" + height);
+        }
+        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR && null == img.getRaster().getParent()) {
+            byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+            if (data.length == frame.length) {
+                stdin.write(data);
+                frames++;
+                return;
+            }
+        }
+        int p = 0;
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            for (int rgb : row) {
+                frame[p++] = (byte) rgb;
+                frame[p++] = (byte) (rgb >> 8);
+                frame[p++] = (byte) (rgb >> 16);
+            }
+        }
+        stdin.write(frame);
+        frames++;
+    }
+
+    /**
+     * @return Number of frames sent so far.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Signal end of input and wait for ffmpeg to finish the file.
+     *
+     * @throws IOException If ffmpeg failed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            stdin.close();
+        } finally {
+            try {
+                int exit = null == progressLines ? process.waitFor() : progressLines.waitFor();
+                if (0 != exit) {
+                    throw new IOException("ffmpeg exited with " + exit);
+                }
+            } catch (InterruptedException ex) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package nl.infcomtec.ffmpeg;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.Map;
+
+/**
+ * One stream as reported by "ffprobe -show_streams".
+ *
+ * @author walter
+ */
+public class S {
+
+    public int index;
+    @SerializedName(value = "codec_name")
+    public String codecName;
+    @SerializedName(value = "codec_long_name")
+    public String codecLongName;
+    public String profile;
+    @SerializedName(value = "codec_type")
+    public String codecType;
+    public int width;
+    public int height;
+    @SerializedName(value = "pix_fmt")
+    public String pixFmt;
+    @SerializedName(value = "r_frame_rate")
+    public String rFrameRate;
+    @SerializedName(value = "avg_frame_rate")
+    public String avgFrameRate;
+    @SerializedName(value = "time_base")
+    public String timeBase;
+    @SerializedName(value = "start_time")
+    public double startTime;
+    public double duration;
+    @SerializedName(value = "bit_rate")
+    public long bitRate;
+    @SerializedName(value = "nb_frames")
+    public long nbFrames;
+    @SerializedName(value = "sample_rate")
+    public int sampleRate;
+    public int channels;
+    @SerializedName(value = "channel_layout")
+    public String channelLayout;
+    public Map<String, String> tags;
+
+    /**
+     * @return True for a video stream.
+     */
+    public boolean isVideo() {
+        return "video".equals(codecType);
+    }
+
+    /**
+     * @return True for an audio stream.
+     */
+    public boolean isAudio() {
+        return "audio".equals(codecType);
+    }
+
+    /**
+     * @return The frame rate as a number, 0 if unknown.
+     */
+    public double getFrameRate() {
+        return rational(null == avgFrameRate || avgFrameRate.startsWith("0/") ? rFrameRate : avgFrameRate);
+    }
+
+    private static double rational(String r) {
+        if (null == r) {
+            return 0;
+        }
+        int slash = r.indexOf('/');
+        try {
+            if (slash < 0) {
+                return Double.parseDouble(r);
+            }
+            double den = Double.parseDouble(r.substring(slash + 1));
+            return 0 == den ? 0 : Double.parseDouble(r.substring(0, slash)) / den;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package nl.infcomtec.ffmpeg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes a frame sequence as N segments in parallel ffmpeg processes and
+ * joins them losslessly with the concat demuxer.
+ * <p>
+ * Every segment is encoded with the same parameters as
+ * {@link RawVideoEncoder} and starts with a key frame, so the joined file
+ * plays the same as a single-process encode. Frames are asked from a
+ * {@link FrameSource} by number, each worker renders its own range.
+ *
+ * @author walter
+ */
+public class SegmentedEncoder {
+
+    /**
+     * Renders frames on demand, called from several threads at once.
+     */
+    public interface FrameSource {
+
+        /**
+         * Render a frame.
+         *
+         * @param frame Frame number.
+         * @param into Image to draw into, TYPE_3BYTE_BGR of the movie size and
+         * owned by the calling worker.
+         * @throws Exception If the frame could not be made.
+         */
+        void render(int frame, BufferedImage into) throws Exception;
+    }
+
+    private SegmentedEncoder() {
+    }
+
+    /**
+     * Encode a movie.
+     *
+     * @param width Frame width.
+     * @param height Frame height.
+     * @param fRate Frame rate of the output video.
+     * @param frames Number of frames, at least one.
+     * @param source Renders the frames.
+     * @param outF Output file for the MP4 video.
+     * @param workers Number of parallel ffmpeg processes.
+     * @param progress Receives the combined progress, may be null.
+     * @throws Exception If rendering or encoding failed.
+     */
+    public static void encode(int width, int height, int fRate, int frames, FrameSource source, File outF,
+            int workers, FfmpegProgress progress) throws Exception {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("No frames to encode");
+        }
+        workers = Math.max(1, Math.min(workers, frames));
+        final int per = (frames + workers - 1) / workers;
+        final int n = (frames + per - 1) / per;
+        final File[] segs = new File[n];
+        final FfmpegProgress[] parts = new FfmpegProgress[n];
+        for (int i = 0; i < n; i++) {
+            parts[i] = new FfmpegProgress(Math.min(frames, (i + 1) * per) - i * per);
+            if (null != progress) {
+                parts[i].setListener(p -> progress.combine(parts));
+            }
+        }
+        if (null != progress) {
+            progress.setExpectedFrames(frames);
+        }
+        File dir = Files.createTempDirectory(outF.getAbsoluteFile().getParentFile().toPath(), "segments").toFile();
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<Void>> jobs = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                final int from = i * per;
+                final int to = Math.min(frames, from + per);
+                final File seg = segs[i] = new File(dir, String.format("seg%04d.mp4", i));
+                final FfmpegProgress part = parts[i];
+                jobs.add(pool.submit(() -> {
+                    BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                    try (RawVideoEncoder enc = new RawVideoEncoder(width, height, fRate, seg, part)) {
+                        for (int f = from; f < to; f++) {
+                            source.render(f, img);
+                            enc.write(img);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> job : jobs) {
+                try {
+                    job.get();
+                } catch (ExecutionException ex) {
+                    for (Future<Void> other : jobs) {
+                        other.cancel(true);
+                    }
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+            }
+            Ffmpeg.concat(Arrays.asList(segs), outF);
+        } finally {
+            pool.shutdownNow();
+            File[] sub = dir.listFiles();
+            if (null != sub) {
+                for (File f : sub) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
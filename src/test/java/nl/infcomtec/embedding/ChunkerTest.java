@@ -0,0 +1,88 @@
+package nl.infcomtec.embedding;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * The window and lines chunkers.
+ *
+ * @author walter
+ */
+public class ChunkerTest {
+
+    /**
+     * @return The chunks as strings.
+     */
+    static List<String> chunks(Chunker c, final String text) {
+        final List<String> ret = new ArrayList<>();
+        c.chunk(text, new Chunker.Sink() {
+            @Override
+            public void accept(int start, int length) {
+                assertTrue("empty chunk at " + start, length > 0);
+                ret.add(text.substring(start, start + length));
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * The lines chunker covers the text exactly, in order, within the
+     * maximum.
+     */
+    private static List<String> lines(String text, int max) {
+        List<String> ret = chunks(new Chunker.Lines(max), text);
+        StringBuilder all = new StringBuilder();
+        for (String s : ret) {
+            assertTrue(s.length() + " > " + max, s.length() <= max);
+            all.append(s);
+        }
+        assertEquals(text, all.toString());
+        return ret;
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void linesArePacked() {
+        assertEquals(List.of("aaa\nbbb\n", "ccc\n"), lines("aaa\nbbb\nccc\n", 8));
+        assertEquals(List.of("aaa\nbbb\nccc\n"), lines("aaa\nbbb\nccc\n", 100));
+    }
+
+    @Test
+    public void noTrailingNewline() {
+        assertEquals(List.of("one\ntwo"), lines("one\ntwo", 100));
+        assertEquals(List.of("one\n", "two"), lines("one\ntwo", 5));
+        assertEquals(List.of("x"), lines("x", 1));
+    }
+
+    @Test
+    public void longLineIsCut() {
+        String x = repeat('x', 25);
+        assertEquals(List.of("ab\n", x.substring(0, 10), x.substring(10, 20), x.substring(20) + "\n", "cd"),
+                lines("ab\n" + x + "\ncd", 10));
+        // without a newline at all
+        assertEquals(List.of(x.substring(0, 10), x.substring(10, 20), x.substring(20)), lines(x, 10));
+    }
+
+    @Test
+    public void emptyText() {
+        assertEquals(List.of(), lines("", 10));
+        assertEquals(List.of(), chunks(new Chunker.Window(10, 5), ""));
+    }
+
+    @Test
+    public void windowsOverlap() {
+        assertEquals(List.of("abcd", "cdef", "efgh", "ghij"), chunks(new Chunker.Window(4, 2), "abcdefghij"));
+        assertEquals(List.of("abcd", "cdef", "efg"), chunks(new Chunker.Window(4, 2), "abcdefg"));
+        assertEquals(List.of("abc"), chunks(new Chunker.Window(4, 2), "abc"));
+    }
+}
@@ -0,0 +1,46 @@
+package nl.infcomtec.embedding;
+
+import java.awt.image.BufferedImage;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * The running statistics and their profile.
+ *
+ * @author walter
+ */
+public class CorpusStatsTest {
+
+    @Test
+    public void meanAndRemove() {
+        CorpusStats s = new CorpusStats();
+        s.add(new float[]{1, 2});
+        s.add(new float[]{3, 2});
+        s.add(new float[]{5, 2});
+        assertEquals(3, s.getMean(0), 1e-9);
+        assertEquals(Math.sqrt(8.0 / 3), s.getStdDev(0), 1e-9);
+        s.remove(new float[]{5, 2});
+        assertEquals(2, s.getCount());
+        assertEquals(2, s.getMean(0), 1e-9);
+        assertEquals(0, s.getStdDev(1), 1e-9);
+    }
+
+    /**
+     * Without quantiles the band is the mean plus or minus one standard
+     * deviation, which for a skewed dimension lies outside its extremes.
+     */
+    @Test
+    public void profileOfSkewedDimension() {
+        for (CorpusStats s : new CorpusStats[]{new CorpusStats(), new CorpusStats(0.5)}) {
+            for (int i = 0; i < 9; i++) {
+                s.add(new float[]{0, 1});
+            }
+            s.add(new float[]{10, 1});
+            for (int h : new int[]{1, 2, 100}) {
+                BufferedImage img = s.profile(h);
+                assertEquals(2, img.getWidth());
+                assertEquals(h, img.getHeight());
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package nl.infcomtec.embedding;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The ".gitignore" rules of the walk.
+ *
+ * @author walter
+ */
+public class FileDiscoveryTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("discovery");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(root)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * @return The rules of the root with these lines.
+     */
+    private FileDiscovery.GitIgnore rules(String... lines) throws IOException {
+        Files.write(root.resolve(".gitignore"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        return FileDiscovery.GitIgnore.NONE.read(root, root);
+    }
+
+    private boolean file(FileDiscovery.GitIgnore r, String rel) {
+        return r.ignored(root.resolve(rel), false);
+    }
+
+    private boolean dir(FileDiscovery.GitIgnore r, String rel) {
+        return r.ignored(root.resolve(rel), true);
+    }
+
+    @Test
+    public void negation() throws IOException {
+        FileDiscovery.GitIgnore r = rules("# logs", "*.log", "!keep.log");
+        assertTrue(file(r, "a.log"));
+        assertTrue(file(r, "sub/b.log"));
+        assertFalse(file(r, "keep.log"));
+        assertFalse(file(r, "sub/keep.log"));
+        assertFalse(file(r, "a.txt"));
+        // the last matching rule wins
+        r = rules("!keep.log", "*.log");
+        assertTrue(file(r, "keep.log"));
+    }
+
+    @Test
+    public void trailingSlashOnlyMatchesDirectories() throws IOException {
+        FileDiscovery.GitIgnore r = rules("build/");
+        assertTrue(dir(r, "build"));
+        assertTrue(dir(r, "sub/build"));
+        assertFalse(file(r, "build"));
+        assertFalse(file(r, "sub/build"));
+    }
+
+    @Test
+    public void anchoredAndNot() throws IOException {
+        FileDiscovery.GitIgnore r = rules("/todo.txt", "doc/*.md", "*.tmp");
+        assertTrue(file(r, "todo.txt"));
+        assertFalse(file(r, "sub/todo.txt"));
+        assertTrue(file(r, "doc/a.md"));
+        assertFalse(file(r, "sub/doc/a.md"));
+        assertFalse(file(r, "doc/deeper/a.md"));
+        assertTrue(file(r, "x.tmp"));
+        assertTrue(file(r, "a/b/c/x.tmp"));
+    }
+
+    @Test
+    public void leadingStarStar() throws IOException {
+        FileDiscovery.GitIgnore r = rules("**/generated", "**/out/*.class");
+        assertTrue(dir(r, "generated"));
+        assertTrue(dir(r, "a/b/generated"));
+        assertTrue(file(r, "out/A.class"));
+        assertTrue(file(r, "a/out/A.class"));
+        assertFalse(file(r, "a/out/A.java"));
+    }
+
+    @Test
+    public void nestedFiles() throws IOException {
+        FileDiscovery.GitIgnore top = rules("*.log");
+        Path sub = Files.createDirectory(root.resolve("sub"));
+        Files.write(sub.resolve(".gitignore"), "!important.log\n/local.txt\n".getBytes(StandardCharsets.UTF_8));
+        FileDiscovery.GitIgnore r = top.read(sub, root);
+        assertTrue(file(r, "sub/other.log"));
+        assertFalse(file(r, "sub/important.log"));
+        assertTrue(file(r, "sub/local.txt"));
+        // anchored to the directory of its .gitignore
+        assertFalse(file(r, "local.txt"));
+        assertFalse(file(r, "sub/deeper/local.txt"));
+    }
+
+    @Test
+    public void acceptsReadsTheFilesAlongTheWay() throws IOException {
+        rules("ignored/", "*.bak");
+        Path sub = Files.createDirectories(root.resolve("src/ignored"));
+        Files.write(root.resolve("src/.gitignore"), "!ok.bak\n".getBytes(StandardCharsets.UTF_8));
+        FileDiscovery d = new FileDiscovery(root, 1, 1);
+        d.addInclude("*");
+        assertFalse(d.accepts(sub, true));
+        assertFalse(d.accepts(sub.resolve("A.java"), false));
+        assertFalse(d.accepts(root.resolve("x.bak"), false));
+        assertTrue(d.accepts(root.resolve("src/ok.bak"), false));
+        assertFalse(d.accepts(root.resolve(".git/config"), false));
+        assertFalse(d.accepts(root.getParent().resolve("elsewhere.txt"), false));
+    }
+}
@@ -0,0 +1,114 @@
+package nl.infcomtec.embedding;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Recall of the HNSW index against exact search on a synthetic corpus; see
+ * {@link SearchBench} for recall against latency at other sizes.
+ *
+ * @author walter
+ */
+public class HnswIndexTest {
+
+    private static final int K = 10;
+
+    private static double recall(VectorStore store, HnswIndex index, float[][] queries) {
+        SimilaritySearch exact = new SimilaritySearch(store);
+        double sum = 0;
+        for (float[] q : queries) {
+            sum += SyntheticCorpus.recall(exact.topK(q, K, SimilaritySearch.Metric.COSINE, -1), index.search(q, K, -1));
+        }
+        return sum / queries.length;
+    }
+
+    @Test
+    public void recallOnClusters() {
+        SyntheticCorpus corpus = new SyntheticCorpus(32, 50, 1);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 5000);
+        HnswIndex index = new HnswIndex(store, 16, 100, 64);
+        index.update();
+        assertEquals(5000, index.size());
+        double r = recall(store, index, corpus.queries(100));
+        assertTrue("recall@10 " + r, r >= 0.95);
+    }
+
+    @Test
+    public void recallGrowsWithEfSearch() {
+        SyntheticCorpus corpus = new SyntheticCorpus(32, 0, 2);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 5000);
+        HnswIndex index = new HnswIndex(store, 16, 100, 10);
+        index.update();
+        float[][] queries = corpus.queries(100);
+        double low = recall(store, index, queries);
+        index.setEfSearch(200);
+        double high = recall(store, index, queries);
+        assertTrue("recall@10 " + low + " at ef 10, " + high + " at ef 200", high > low && high >= 0.9);
+    }
+
+    @Test
+    public void unindexedTailIsSearched() {
+        SyntheticCorpus corpus = new SyntheticCorpus(32, 50, 3);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 1000);
+        HnswIndex index = new HnswIndex(store, 16, 100, 64);
+        index.update();
+        for (int i = 0; i < 2000; i++) {
+            store.add(corpus.next(), 0, 9);
+        }
+        assertEquals(1000, index.size());
+        double r = recall(store, index, corpus.queries(100));
+        assertTrue("recall@10 " + r, r >= 0.95);
+    }
+
+    @Test
+    public void relinkReplacedFragments() {
+        SyntheticCorpus corpus = new SyntheticCorpus(32, 0, 5);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 5000);
+        HnswIndex index = new HnswIndex(store, 16, 100, 64);
+        index.update();
+        float[][] queries = new float[100][];
+        for (int i = 0, q = 0; i < store.size(); i += 3) {
+            float[] v = corpus.next();
+            store.set(i, v, 0, 9);
+            index.relink(i);
+            if (q < queries.length && 0 == i % 5) {
+                // near the replaced vector
+                float[] noise = corpus.gaussian(0.3);
+                for (int j = 0; j < v.length; j++) {
+                    noise[j] += v[j];
+                }
+                queries[q++] = noise;
+            }
+        }
+        double r = recall(store, index, queries);
+        assertTrue("recall@10 " + r, r >= 0.9);
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(16, 20, 4);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 2000);
+        HnswIndex index = new HnswIndex(store, 8, 50, 32);
+        index.update();
+        File f = File.createTempFile("hnsw", ".idx");
+        try {
+            index.save(f);
+            HnswIndex loaded = HnswIndex.load(f, store);
+            assertEquals(index.size(), loaded.size());
+            for (float[] q : corpus.queries(20)) {
+                List<SimilaritySearch.Hit> a = index.search(q, K, -1);
+                List<SimilaritySearch.Hit> b = loaded.search(q, K, -1);
+                assertEquals(a.size(), b.size());
+                for (int i = 0; i < a.size(); i++) {
+                    assertEquals(a.get(i).index, b.get(i).index);
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package nl.infcomtec.embedding;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * The Java chunker.
+ *
+ * @author walter
+ */
+public class JavaChunkerTest {
+
+    private static final String METHOD_A = "void a() {\n"
+            + "        String s = \"} ; \\\" }\";\n"
+            + "        char c = '}';\n"
+            + "        char q = '\\'';\n"
+            + "        // } ;\n"
+            + "        /* } ; */\n"
+            + "        String t = \"\"\"\n"
+            + "            } ; \"\" }\n"
+            + "            \"\"\";\n"
+            + "    }";
+    private static final String METHOD_B = "void b() {\n        return;\n    }";
+    private static final String SOURCE = "package p;\n\nclass A {\n\n    "
+            + METHOD_A + "\n\n    " + METHOD_B + "\n}\n";
+
+    @Test
+    public void literalsAndCommentsAreSkipped() {
+        // the class does not fit, the method just does
+        int max = METHOD_A.length() + 10;
+        assertEquals(List.of("package p;\n\nclass A {", METHOD_A, METHOD_B + "\n}"),
+                ChunkerTest.chunks(new JavaChunker(max), SOURCE));
+    }
+
+    @Test
+    public void smallUnitsAreMerged() {
+        String imports = "package p;\n\nimport a.B;\nimport c.D;\nimport e.F;";
+        String fields = "class G {\n    int x;\n    int y;\n}";
+        assertEquals(List.of(imports + "\n\n" + fields),
+                ChunkerTest.chunks(new JavaChunker(1024), imports + "\n\n" + fields + "\n"));
+        // the imports merge, but do not fit with the class
+        assertEquals(List.of(imports, fields),
+                ChunkerTest.chunks(new JavaChunker(60), imports + "\n\n" + fields + "\n"));
+    }
+
+    @Test
+    public void wholeSourceFitsMaximum() {
+        assertEquals(List.of(SOURCE.trim()), ChunkerTest.chunks(new JavaChunker(SOURCE.length()), SOURCE));
+    }
+
+    /**
+     * On a real file: chunks in order, not overlapping, within the maximum,
+     * and together they hold all of the code.
+     */
+    @Test
+    public void ownSource() throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get("src/main/java/nl/infcomtec/embedding/JavaChunker.java")),
+                StandardCharsets.UTF_8);
+        for (int max : new int[]{64, 256, 1024}) {
+            final int[] last = {0};
+            final StringBuilder code = new StringBuilder();
+            new JavaChunker(max).chunk(text, new Chunker.Sink() {
+                @Override
+                public void accept(int start, int length) {
+                    assertTrue(start >= last[0]);
+                    assertTrue(length > 0 && length <= max);
+                    last[0] = start + length;
+                    code.append(text, start, start + length);
+                }
+            });
+            assertEquals(text.replaceAll("\\s", ""), code.toString().replaceAll("\\s", ""));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package nl.infcomtec.embedding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search speed on a synthetic corpus, to reproduce the numbers quoted for
+ * it:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=nl.infcomtec.embedding.SearchBench \
+ *     -Dexec.args="hnsw 20000 256 100 200"
+ * </pre>
+ * "hnsw n dims clusters queries" gives recall against latency of the HNSW
+ * index, measured against exact search, for a range of efSearch; clusters is
+ * 0 for unclustered vectors, M and efConstruction come from the usual system
+ * properties. "exact n dims queries" gives the time and bandwidth of exact
+ * search per encoding, on one thread and on all cores. "relink n dims
+ * queries" replaces every third vector of an indexed store, as an in-place
+ * rescan does, and gives recall near the new vectors with and without
+ * {@link HnswIndex#relink(int)}.
+ *
+ * @author walter
+ */
+public class SearchBench {
+
+    private static final int K = 10;
+    private static final int[] EF = {10, 20, 40, 64, 100, 200, 400};
+
+    public static void main(String[] args) {
+        // the mode may be left out, hnsw is the default
+        String mode = args.length > 0 ? args[0] : "hnsw";
+        int o = args.length > 0 && !Character.isDigit(args[0].charAt(0)) ? 1 : 0;
+        if ("exact".equals(mode)) {
+            exact(arg(args, o, 100000), arg(args, o + 1, 1024), arg(args, o + 2, 20));
+        } else if ("relink".equals(mode)) {
+            relink(arg(args, o, 20000), arg(args, o + 1, 32), arg(args, o + 2, 300));
+        } else {
+            hnsw(arg(args, o, 20000), arg(args, o + 1, 256), arg(args, o + 2, 100), arg(args, o + 3, 200));
+        }
+    }
+
+    private static int arg(String[] args, int i, int def) {
+        return args.length > i ? Integer.parseInt(args[i]) : def;
+    }
+
+    private static void exact(int n, int dims, int nq) {
+        System.out.printf("%d x %d, %d queries, top %d%n", n, dims, nq, K);
+        for (VectorStore.Encoding enc : VectorStore.Encoding.values()) {
+            SyntheticCorpus corpus = new SyntheticCorpus(dims, 0, 1);
+            VectorStore store = corpus.store(enc, n);
+            float[][] queries = corpus.queries(nq);
+            double gb = (double) n * dims * enc.bytes / 1e9;
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int workers : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+                SimilaritySearch search = new SimilaritySearch(store, workers);
+                // warm up
+                search.topK(queries[0], K, SimilaritySearch.Metric.COSINE, -1);
+                long t = System.nanoTime();
+                for (float[] q : queries) {
+                    search.topK(q, K, SimilaritySearch.Metric.COSINE, -1);
+                }
+                double ms = (System.nanoTime() - t) / 1e6 / nq;
+                System.out.printf("%s, %2d threads: %.1f ms/query, %.2f GB/s%n", enc, workers, ms, gb / ms * 1e3);
+            }
+        }
+    }
+
+    private static void relink(int n, int dims, int nq) {
+        System.out.printf("%d x %d, unclustered, every third replaced, %d queries%n", n, dims, nq);
+        for (boolean relink : new boolean[]{false, true}) {
+            SyntheticCorpus corpus = new SyntheticCorpus(dims, 0, 1);
+            VectorStore store = corpus.store(VectorStore.Encoding.F32, n);
+            HnswIndex index = new HnswIndex(store, 16, 100, 64);
+            index.update();
+            List<float[]> queries = new ArrayList<>();
+            long t = System.nanoTime();
+            int replaced = 0;
+            for (int i = 0; i < n; i += 3, replaced++) {
+                float[] v = corpus.next();
+                store.set(i, v, 0, 9);
+                if (relink) {
+                    index.relink(i);
+                }
+                if (queries.size() < nq && 0 == replaced % 7) {
+                    float[] q = corpus.gaussian(0.3);
+                    for (int j = 0; j < dims; j++) {
+                        q[j] += v[j];
+                    }
+                    queries.add(q);
+                }
+            }
+            double ms = (System.nanoTime() - t) / 1e6;
+            SimilaritySearch exact = new SimilaritySearch(store);
+            double recall = 0;
+            for (float[] q : queries) {
+                recall += SyntheticCorpus.recall(exact.topK(q, K, SimilaritySearch.Metric.COSINE, -1), index.search(q, K, -1));
+            }
+            System.out.printf("relink %-5s: recall@%d %.3f, %d replaced in %.0f ms%n", relink, K,
+                    recall / queries.size(), replaced, ms);
+        }
+    }
+
+    private static void hnsw(int n, int dims, int clusters, int nq) {
+        SyntheticCorpus corpus = new SyntheticCorpus(dims, clusters, 1);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, n);
+        float[][] queries = corpus.queries(nq);
+
+        HnswIndex index = new HnswIndex(store);
+        long t = System.nanoTime();
+        index.update();
+        double build = (System.nanoTime() - t) / 1e6;
+        System.out.printf("%d x %d, %s, %d queries%n", n, dims,
+                0 == clusters ? "unclustered" : clusters + " clusters", nq);
+        System.out.printf("build %.0f ms, %.3f ms/insert: %s%n", build, build / n, index);
+
+        SimilaritySearch exact = new SimilaritySearch(store, 1);
+        @SuppressWarnings("unchecked")
+        List<SimilaritySearch.Hit>[] truth = new List[nq];
+        t = System.nanoTime();
+        for (int i = 0; i < nq; i++) {
+            truth[i] = exact.topK(queries[i], K, SimilaritySearch.Metric.COSINE, -1);
+        }
+        System.out.printf("exact, one thread: %.2f ms/query%n", (System.nanoTime() - t) / 1e6 / nq);
+
+        for (int ef : EF) {
+            index.setEfSearch(ef);
+            double recall = 0;
+            t = System.nanoTime();
+            for (int i = 0; i < nq; i++) {
+                recall += SyntheticCorpus.recall(truth[i], index.search(queries[i], K, -1));
+            }
+            System.out.printf("efSearch %4d: recall@%d %.3f at %.3f ms/query%n", ef, K, recall / nq,
+                    (System.nanoTime() - t) / 1e6 / nq);
+        }
+    }
+}
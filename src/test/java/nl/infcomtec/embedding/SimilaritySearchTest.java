@@ -0,0 +1,112 @@
+package nl.infcomtec.embedding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Exact search against a full sort of the decoded vectors.
+ *
+ * @author walter
+ */
+public class SimilaritySearchTest {
+
+    private static final int K = 20;
+
+    /**
+     * Score every fragment the slow way and sort.
+     */
+    private static List<SimilaritySearch.Hit> sorted(VectorStore store, float[] q, SimilaritySearch.Metric metric, int skip, int from) {
+        List<SimilaritySearch.Hit> ret = new ArrayList<>();
+        double qq = 0;
+        for (float f : q) {
+            qq += f * f;
+        }
+        float[] v = null;
+        for (int i = from; i < store.size(); i++) {
+            if (i == skip || 0 == store.getLength(i)) {
+                continue;
+            }
+            v = store.get(i, v);
+            double dot = 0, vv = 0;
+            for (int j = 0; j < q.length; j++) {
+                dot += q[j] * v[j];
+                vv += v[j] * v[j];
+            }
+            ret.add(new SimilaritySearch.Hit(i, (float) (SimilaritySearch.Metric.DOT == metric ? dot : dot / Math.sqrt(qq * vv))));
+        }
+        Collections.sort(ret, new Comparator<SimilaritySearch.Hit>() {
+            @Override
+            public int compare(SimilaritySearch.Hit a, SimilaritySearch.Hit b) {
+                return Float.compare(b.score, a.score);
+            }
+        });
+        return ret.subList(0, Math.min(K, ret.size()));
+    }
+
+    private static void same(List<SimilaritySearch.Hit> want, List<SimilaritySearch.Hit> got) {
+        assertEquals(want.size(), got.size());
+        for (int i = 0; i < want.size(); i++) {
+            assertEquals("hit " + i, want.get(i).index, got.get(i).index);
+            assertEquals("hit " + i, want.get(i).score, got.get(i).score, 1e-3 * Math.max(1, Math.abs(want.get(i).score)));
+        }
+    }
+
+    private static void check(VectorStore.Encoding enc) {
+        SyntheticCorpus corpus = new SyntheticCorpus(64, 0, enc.ordinal());
+        // more than one page, so the workers split the store
+        VectorStore store = corpus.store(enc, 70000);
+        SimilaritySearch search = new SimilaritySearch(store, 4);
+        for (float[] q : corpus.queries(5)) {
+            for (SimilaritySearch.Metric metric : SimilaritySearch.Metric.values()) {
+                same(sorted(store, q, metric, -1, 0), search.topK(q, K, metric, -1));
+            }
+        }
+    }
+
+    @Test
+    public void f32() {
+        check(VectorStore.Encoding.F32);
+    }
+
+    @Test
+    public void f16() {
+        check(VectorStore.Encoding.F16);
+    }
+
+    @Test
+    public void i8() {
+        check(VectorStore.Encoding.I8);
+    }
+
+    @Test
+    public void skipAndFrom() {
+        SyntheticCorpus corpus = new SyntheticCorpus(16, 10, 7);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 3000);
+        SimilaritySearch search = new SimilaritySearch(store);
+        List<SimilaritySearch.Hit> similar = search.similarTo(42, K);
+        same(sorted(store, store.get(42, null), SimilaritySearch.Metric.COSINE, 42, 0), similar);
+        float[] q = corpus.next();
+        List<SimilaritySearch.Hit> tail = search.topK(q, K, SimilaritySearch.Metric.COSINE, -1, 2000);
+        same(sorted(store, q, SimilaritySearch.Metric.COSINE, -1, 2000), tail);
+        for (SimilaritySearch.Hit h : tail) {
+            assertTrue(h.index >= 2000);
+        }
+    }
+
+    @Test
+    public void emptyFragmentsAreLeftOut() {
+        SyntheticCorpus corpus = new SyntheticCorpus(16, 0, 8);
+        VectorStore store = corpus.store(VectorStore.Encoding.F32, 100);
+        float[] q = corpus.next();
+        int best = new SimilaritySearch(store).topK(q, 1, SimilaritySearch.Metric.COSINE, -1).get(0).index;
+        store.set(best, new float[16], 0, 0);
+        for (SimilaritySearch.Hit h : new SimilaritySearch(store).topK(q, K, SimilaritySearch.Metric.COSINE, -1)) {
+            assertTrue(h.index != best);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package nl.infcomtec.embedding;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Random vectors to measure search on, the same for the same seed: gaussian
+ * clusters, closer to what a model produces, or plain gaussian noise, the
+ * worst case for an approximate index.
+ *
+ * @author walter
+ */
+class SyntheticCorpus {
+
+    /**
+     * Spread of the vectors of a cluster around its centre, relative to the
+     * spread of the centres.
+     */
+    static final float SPREAD = 0.5f;
+
+    private final Random rnd;
+    private final int dims;
+    private final float[][] centres;
+
+    /**
+     * @param dims Dimensions.
+     * @param clusters Number of clusters, 0 for unclustered vectors.
+     * @param seed Random seed.
+     */
+    SyntheticCorpus(int dims, int clusters, long seed) {
+        this.rnd = new Random(seed);
+        this.dims = dims;
+        this.centres = new float[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            centres[c] = gaussian(1);
+        }
+    }
+
+    /**
+     * @return A vector from the corpus distribution.
+     */
+    float[] next() {
+        if (0 == centres.length) {
+            return gaussian(1);
+        }
+        float[] ret = gaussian(SPREAD);
+        float[] c = centres[rnd.nextInt(centres.length)];
+        for (int i = 0; i < dims; i++) {
+            ret[i] += c[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @param sigma Standard deviation.
+     * @return A vector of independent gaussians.
+     */
+    float[] gaussian(double sigma) {
+        float[] ret = new float[dims];
+        for (int i = 0; i < dims; i++) {
+            ret[i] = (float) (sigma * rnd.nextGaussian());
+        }
+        return ret;
+    }
+
+    /**
+     * Make a store of vectors; every fragment points at the same text, empty
+     * fragments are left out of searches.
+     *
+     * @param enc Encoding of the store.
+     * @param n Number of vectors.
+     * @return The store.
+     */
+    VectorStore store(VectorStore.Encoding enc, int n) {
+        VectorStore ret = new VectorStore(enc);
+        long start = ret.addFile("corpus.txt", "synthetic");
+        for (int i = 0; i < n; i++) {
+            ret.add(next(), start, 9);
+        }
+        return ret;
+    }
+
+    /**
+     * @param n Number of queries.
+     * @return Vectors from the corpus distribution that are not in it.
+     */
+    float[][] queries(int n) {
+        float[][] ret = new float[n][];
+        for (int i = 0; i < n; i++) {
+            ret[i] = next();
+        }
+        return ret;
+    }
+
+    /**
+     * @param exact The true nearest fragments.
+     * @param found Those an approximate search returned.
+     * @return The fraction of the true ones found.
+     */
+    static double recall(List<SimilaritySearch.Hit> exact, List<SimilaritySearch.Hit> found) {
+        if (exact.isEmpty()) {
+            return 1;
+        }
+        Set<Integer> want = new HashSet<>();
+        for (SimilaritySearch.Hit h : exact) {
+            want.add(h.index);
+        }
+        int ret = 0;
+        for (SimilaritySearch.Hit h : found) {
+            if (want.contains(h.index)) {
+                ret++;
+            }
+        }
+        return (double) ret / want.size();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2021 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ffmpeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * The pumps against real processes; needs a POSIX shell.
+ *
+ * @author Walter Stroebel
+ */
+public class InOutErrConsumerTest {
+
+    private static Process sh(String script) throws Exception {
+        return new ProcessBuilder("sh", "-c", script).start();
+    }
+
+    @Test
+    public void allLinesArrive() throws Exception {
+        List<String> lines = InOutErrConsumer.exec(sh("seq 1 200000"));
+        assertEquals(200000, lines.size());
+        assertEquals("1", lines.get(0));
+        assertEquals("200000", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void inputIsClosedAfterTheLastLine() throws Exception {
+        // cat only ends when it sees the end of its input
+        Process p = sh("cat");
+        try (InOutErrConsumer ioec = new InOutErrConsumer(p, new ArrayList<>(Arrays.asList("one\n", "two\n")))) {
+            ioec.start();
+            assertEquals(0, p.waitFor());
+            ioec.waitFor();
+            assertEquals(Arrays.asList("one", "two"), ioec.getInputLines());
+        }
+    }
+
+    @Test
+    public void errorLimitKeepsTheTail() throws Exception {
+        Process p = sh("seq 1 100000 >&2");
+        try (InOutErrConsumer ioec = new InOutErrConsumer(p)) {
+            ioec.setErrorLimit(1000);
+            ioec.start();
+            p.waitFor();
+            ioec.waitFor();
+            List<String> err = ioec.getErrorLines();
+            assertTrue(err.size() < 1000 / 6 + 2);
+            assertEquals("100000", err.get(err.size() - 1));
+        }
+    }
+}
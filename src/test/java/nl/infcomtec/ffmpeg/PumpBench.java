@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2021 by Walter Stroebel and InfComTec.
+ */
+package nl.infcomtec.ffmpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Throughput of {@link InOutErrConsumer#exec(Process)} against reading one
+ * byte per call, the way the pumps used to work, on a process writing the
+ * same base64 text to stdout and stderr:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=nl.infcomtec.ffmpeg.PumpBench -Dexec.args="32"
+ * </pre>
+ * The argument is the MiB of random data to encode; needs a POSIX shell
+ * with head and base64.
+ *
+ * @author Walter Stroebel
+ */
+public class PumpBench {
+
+    public static void main(String[] args) throws Exception {
+        int mib = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        String script = "head -c " + mib + "M /dev/urandom | base64 | tee /dev/stderr";
+        for (int run = 0; run < 3; run++) {
+            long t = System.nanoTime();
+            Process p = new ProcessBuilder("sh", "-c", script).start();
+            long[] bytes = new long[2];
+            Thread err = byteByByte(p.getErrorStream(), bytes, 1);
+            byteByByte(p.getInputStream(), bytes, 0).join();
+            err.join();
+            p.waitFor();
+            report("byte per call", t, bytes[0] + bytes[1], -1);
+
+            t = System.nanoTime();
+            p = new ProcessBuilder("sh", "-c", script).start();
+            try (InOutErrConsumer ioec = new InOutErrConsumer(p)) {
+                ioec.start();
+                p.waitFor();
+                ioec.waitFor();
+                List<String> lines = ioec.getInputLines();
+                long total = 0;
+                for (String s : lines) {
+                    total += s.length() + 1;
+                }
+                report("chunked", t, 2 * total, lines.size());
+            }
+        }
+    }
+
+    private static Thread byteByByte(final InputStream src, final long[] bytes, final int slot) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream dst = new ByteArrayOutputStream();
+                try {
+                    for (int c; (c = src.read()) >= 0;) {
+                        dst.write(c);
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                bytes[slot] = dst.size();
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static void report(String what, long start, long bytes, int lines) {
+        double s = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-14s %.2f s, %.0f MB/s%s%n", what, s, bytes / s / 1e6,
+                lines < 0 ? "" : ", " + lines + " lines");
+    }
+}